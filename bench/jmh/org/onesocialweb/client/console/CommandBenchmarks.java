@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and dispatching command lines, and completing command names. The
+ * dispatched commands stay off the network: /goto with nothing on screen is
+ * at the end of the command chain, /connect without a server is at the start
+ * and reports an error, and an unknown command prints the help.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommandBenchmarks {
+
+	/** Command lines, parameters of the parsing and dispatch benchmarks only */
+	@State(Scope.Thread)
+	public static class Line {
+		@Param({ "/goto 3", "/connect", "/nosuch command with several arguments" })
+		public String line;
+	}
+
+	/** What was typed, parameter of the completion benchmark only */
+	@State(Scope.Thread)
+	public static class Typed {
+		@Param({ "", "/s", "sub" })
+		public String prefix;
+	}
+
+	private ConsoleClient console;
+
+	@Setup
+	public void setup() throws Exception {
+		console = SyntheticConsole.create();
+	}
+
+	@Benchmark
+	public List<String> extractCmdBits(Line line) {
+		return console.extractCmdBits(line.line);
+	}
+
+	@Benchmark
+	public void doLine(Line line) {
+		console.doLine(line.line);
+	}
+
+	@Benchmark
+	public List<String> complete(Typed typed) {
+		List<String> candidates = new ArrayList<String>();
+		console.completor.complete(typed.prefix, typed.prefix.length(), candidates);
+		return candidates;
+	}
+}
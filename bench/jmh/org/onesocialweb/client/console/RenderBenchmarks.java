@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.onesocialweb.model.activity.ActivityEntry;
+import org.onesocialweb.model.relation.Relation;
+import org.onesocialweb.model.vcard4.Profile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Painting the inbox, a relation and a profile. Run with -prof gc for the
+ * bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RenderBenchmarks {
+
+	@Param({ "100", "10000", "1000000" })
+	public int entries;
+
+	private ConsoleClient console;
+
+	private List<ActivityEntry> inbox;
+
+	private Relation relation;
+
+	private Profile profile;
+
+	@Setup
+	public void setup() throws Exception {
+		console = SyntheticConsole.create();
+		inbox = SyntheticConsole.inbox(entries);
+		relation = SyntheticConsole.relation();
+		profile = SyntheticConsole.profile();
+	}
+
+	/**
+	 * A frame of the inbox view, once its rows are formatted.
+	 */
+	@Benchmark
+	public void renderActivities() {
+		console.renderActivities(inbox);
+	}
+
+	@Benchmark
+	public String renderRelation() {
+		return console.render(relation);
+	}
+
+	@Benchmark
+	public void renderProfile() {
+		console.render(profile);
+	}
+}
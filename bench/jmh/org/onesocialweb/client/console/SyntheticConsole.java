@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.onesocialweb.model.activity.ActivityActor;
+import org.onesocialweb.model.activity.ActivityEntry;
+import org.onesocialweb.model.activity.ActivityFactory;
+import org.onesocialweb.model.activity.DefaultActivityFactory;
+import org.onesocialweb.model.relation.DefaultRelationFactory;
+import org.onesocialweb.model.relation.Relation;
+import org.onesocialweb.model.vcard4.DefaultVCard4Factory;
+import org.onesocialweb.model.vcard4.Profile;
+import org.onesocialweb.model.vcard4.VCard4Factory;
+
+/**
+ * Consoles and synthetic data for the JMH benchmarks. The console runs as
+ * when interactive, on a dumb terminal of 80x80, with its output thrown away
+ * and the {@link LoopbackServiceFactory} as service.
+ */
+class SyntheticConsole {
+
+	/** Output stream that drops everything written to it */
+	private static final OutputStream NULL = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private SyntheticConsole() {
+	}
+
+	/**
+	 * @return an interactive console writing nowhere
+	 */
+	public static ConsoleClient create() throws IOException {
+		System.setProperty("jline.terminal", "jline.UnsupportedTerminal");
+		System.setProperty("osw.console.factory", LoopbackServiceFactory.class.getName());
+		System.setProperty(LoopbackServiceFactory.LATENCY_PROPERTY, "0");
+
+		// The console and its reader keep the output stream they are created with
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(NULL));
+		try {
+			return new ConsoleClient();
+		} finally {
+			System.setOut(stdout);
+		}
+	}
+
+	/**
+	 * @return an inbox of the given size, newest first, written by 500 authors
+	 */
+	public static List<ActivityEntry> inbox(int entries) {
+		ActivityFactory factory = new DefaultActivityFactory();
+		List<ActivityEntry> inbox = new ArrayList<ActivityEntry>(entries);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < entries; i++) {
+			ActivityActor actor = factory.actor();
+			actor.setUri("user" + (i % 500) + "@onesocial.me");
+
+			ActivityEntry entry = factory.entry();
+			entry.setId("urn:osw:activity:" + i);
+			entry.setPublished(new Date(now - i * 60000L));
+			entry.setActor(actor);
+			entry.setTitle("Status update number " + i + " about nothing in particular");
+			inbox.add(entry);
+		}
+		return inbox;
+	}
+
+	public static Relation relation() {
+		Relation relation = new DefaultRelationFactory().relation();
+		relation.setId("urn:osw:relation:42");
+		relation.setFrom("alice@onesocial.me");
+		relation.setTo("bob@onesocial.me");
+		relation.setNature("colleague");
+		relation.setStatus("request");
+		relation.setMessage("We met at the conference last week");
+		return relation;
+	}
+
+	public static Profile profile() throws Exception {
+		VCard4Factory factory = new DefaultVCard4Factory();
+		Profile profile = factory.profile();
+		profile.setUserId("alice@onesocial.me");
+		profile.addField(factory.fullname("Alice Liddell"));
+		profile.addField(factory.note("Curiouser and curiouser"));
+		profile.addField(factory.email("alice@onesocial.me"));
+		profile.addField(factory.url("http://onesocial.me/alice"));
+		profile.addField(factory.tel("+44 20 7946 0000"));
+		profile.addField(factory.timeZone("Europe/London"));
+		return profile;
+	}
+}
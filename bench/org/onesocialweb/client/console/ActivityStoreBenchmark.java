@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.onesocialweb.model.activity.ActivityActor;
+import org.onesocialweb.model.activity.ActivityEntry;
+import org.onesocialweb.model.activity.ActivityFactory;
+import org.onesocialweb.model.activity.DefaultActivityFactory;
+
+/**
+ * The {@link ActivityStore} against the loose lists it replaces: an inbox
+ * and the activities of a few jids, fetched as separate copies that overlap
+ * the inbox, then updates and deletes by id. Reports how many activity
+ * objects are kept and the heap they take, the time of an update and of a
+ * delete, which is a scan of every list without the store, and of a change
+ * followed by building the whole list or reading the rows of a screen.
+ *
+ * Usage: ActivityStoreBenchmark [inbox entries] [jids] [activities per jid]
+ */
+public class ActivityStoreBenchmark {
+
+	private static final ActivityFactory FACTORY = new DefaultActivityFactory();
+
+	/** Rows of a terminal */
+	private static final int SCREEN_ROWS = 50;
+
+	public static void main(String[] args) {
+		int inboxSize = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int jids = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int perJid = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		int operations = 1000;
+		Random random = new Random(42);
+
+		// Loose lists: every fetch is a copy of its own
+		long before = heap();
+		List<List<ActivityEntry>> lists = new ArrayList<List<ActivityEntry>>();
+		lists.add(fetch(0, inboxSize));
+		for (int j = 0; j < jids; j++) {
+			// Half of the activities of a jid are in the inbox too
+			lists.add(fetch(inboxSize / 2 + j * perJid / 2, perJid));
+		}
+		long listHeap = heap() - before;
+		int listObjects = 0;
+		for (List<ActivityEntry> list : lists) {
+			listObjects += list.size();
+		}
+
+		// The same fetches, through the store; the copies it does not keep go
+		ActivityStore store = new ActivityStore();
+		List<ActivityStore.View> views = new ArrayList<ActivityStore.View>();
+		for (int i = 0; i < lists.size(); i++) {
+			ActivityStore.View view = store.view("list " + i);
+			view.replace(lists.get(i));
+			views.add(view);
+		}
+		lists = null;
+		long storeHeap = heap() - before;
+		System.out.printf("%-24s %8d objects %10.1f KB%n", "loose lists", listObjects, listHeap / 1024.0);
+		System.out.printf("%-24s %8d objects %10.1f KB (%d list entries)%n", "store", store.size(), storeHeap / 1024.0,
+				store.getViewEntries());
+
+		// Rebuild the loose lists to compare the updates and deletes
+		lists = new ArrayList<List<ActivityEntry>>();
+		for (ActivityStore.View view : views) {
+			lists.add(new ArrayList<ActivityEntry>(view.entries()));
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			String id = id(random.nextInt(inboxSize));
+			ActivityEntry update = entry(id, random.nextInt(inboxSize), "edited " + i);
+			for (List<ActivityEntry> list : lists) {
+				for (int k = 0; k < list.size(); k++) {
+					if (id.equals(list.get(k).getId())) {
+						list.set(k, update);
+						break;
+					}
+				}
+			}
+		}
+		report("update, loose lists", start, operations);
+
+		start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			String id = id(random.nextInt(inboxSize));
+			views.get(0).put(entry(id, random.nextInt(inboxSize), "edited " + i));
+		}
+		report("update, store", start, operations);
+
+		start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			String id = id(random.nextInt(inboxSize));
+			for (List<ActivityEntry> list : lists) {
+				for (int k = 0; k < list.size(); k++) {
+					if (id.equals(list.get(k).getId())) {
+						list.remove(k);
+						break;
+					}
+				}
+			}
+		}
+		report("delete, loose lists", start, operations);
+
+		List<String> deleted = new ArrayList<String>();
+		start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			String id = id(random.nextInt(inboxSize));
+			store.delete(id);
+			deleted.add(id);
+		}
+		report("delete, store", start, operations);
+
+		// Deleted activities are gone from all lists
+		for (ActivityStore.View view : views) {
+			for (String id : deleted) {
+				if (view.contains(id)) {
+					throw new IllegalStateException(view.getName() + " still holds " + id);
+				}
+			}
+		}
+
+		// A change, then the whole list built
+		start = System.nanoTime();
+		int listed = 0;
+		for (int i = 0; i < operations; i++) {
+			views.get(0).put(entry(id(i), i, "edited again " + i));
+			listed = views.get(0).entries().size();
+		}
+		report("change, list " + listed, start, operations);
+
+		// A change, then the top of the list painted, as the screen does
+		start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			views.get(0).put(entry(id(i), i, "edited once more " + i));
+			listed = views.get(0).window(0, SCREEN_ROWS).size();
+		}
+		report("change, window " + listed, start, operations);
+
+		// The lists stay sorted
+		for (ActivityStore.View view : views) {
+			long previous = Long.MAX_VALUE;
+			for (ActivityEntry entry : view.entries()) {
+				long published = entry.getPublished().getTime();
+				if (published > previous) {
+					throw new IllegalStateException(view.getName() + " is out of order");
+				}
+				previous = published;
+			}
+		}
+		for (ActivityStore.View view : views) {
+			store.drop(view);
+		}
+		if (store.size() != 0) {
+			throw new IllegalStateException(store.size() + " activities left without a list");
+		}
+	}
+
+	/**
+	 * @return copies of the activities first to first + count
+	 */
+	private static List<ActivityEntry> fetch(int first, int count) {
+		List<ActivityEntry> list = new ArrayList<ActivityEntry>(count);
+		for (int i = first + count - 1; i >= first; i--) {
+			list.add(entry(id(i), i, "status number " + i));
+		}
+		return list;
+	}
+
+	private static String id(int i) {
+		return "urn:uuid:activity-" + i;
+	}
+
+	private static ActivityEntry entry(String id, int minute, String title) {
+		ActivityEntry entry = FACTORY.entry();
+		entry.setId(id);
+		entry.setPublished(new Date(1285660800000L + minute * 60000L));
+		entry.setTitle(title);
+		ActivityActor actor = FACTORY.actor();
+		actor.setUri("user" + (minute % 97) + "@onesocial.me");
+		entry.setActor(actor);
+		return entry;
+	}
+
+	private static long heap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void report(String name, long start, int operations) {
+		System.out.printf("%-24s %10.2f us per operation%n", name, (System.nanoTime() - start) / 1e3 / operations);
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Bytes on the wire and CPU time of inbox refreshes, with and without stream
+ * compression. A stand-in server on the loopback interface answers each
+ * refresh request with an inbox of activity entries shaped like those of a
+ * OneSocialWeb node. Compression is zlib flushed after every stanza, as XMPP
+ * stream compression does; both ends are measured.
+ *
+ * Usage: BandwidthBenchmark [entries per refresh] [refreshes]
+ */
+public class BandwidthBenchmark {
+
+	private static final String REQUEST = "<iq type=\"get\" id=\"%d\" to=\"onesocial.me\"><pubsub xmlns=\"http://jabber.org/protocol/pubsub\">"
+			+ "<items node=\"http://onesocialweb.org/spec/1.0/inbox\"/></pubsub></iq>";
+
+	private static final String END = "</iq>";
+
+	/** Output stream that counts the bytes going to the socket */
+	private static class CountingOutput extends FilterOutputStream {
+		final AtomicLong count;
+
+		CountingOutput(OutputStream out, AtomicLong count) {
+			super(out);
+			this.count = count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count.addAndGet(len);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count.incrementAndGet();
+		}
+	}
+
+	/** Input stream that counts the bytes coming from the socket */
+	private static class CountingInput extends FilterInputStream {
+		final AtomicLong count;
+
+		CountingInput(InputStream in, AtomicLong count) {
+			super(in);
+			this.count = count;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				count.addAndGet(n);
+			}
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				count.incrementAndGet();
+			}
+			return b;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int refreshes = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		System.out.println(refreshes + " refreshes of " + entries + " entries, " + inbox(entries, 0).length()
+				+ " bytes of XML each");
+		for (int run = 0; run < 3; run++) {
+			run("plain", entries, refreshes, false);
+			run("compressed", entries, refreshes, true);
+		}
+	}
+
+	private static void run(String name, final int entries, final int refreshes, final boolean compressed) throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final ServerSocket server = new ServerSocket(0);
+		final AtomicLong serverCpu = new AtomicLong();
+		final AtomicLong down = new AtomicLong();
+		final AtomicLong up = new AtomicLong();
+
+		// The stand-in server answers every request with the same inbox
+		Thread serverThread = new Thread("stand-in server") {
+			@Override
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					InputStream in = open(new CountingInput(socket.getInputStream(), up), compressed);
+					OutputStream out = open(new CountingOutput(socket.getOutputStream(), down), compressed);
+					long start = threads.getCurrentThreadCpuTime();
+					for (int i = 0; i < refreshes; i++) {
+						readStanza(in);
+						out.write(inbox(entries, i).getBytes("UTF-8"));
+						out.flush();
+					}
+					serverCpu.set(threads.getCurrentThreadCpuTime() - start);
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		serverThread.start();
+
+		Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+		socket.setTcpNoDelay(true);
+		InputStream in = open(socket.getInputStream(), compressed);
+		OutputStream out = open(socket.getOutputStream(), compressed);
+
+		long clientStart = threads.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+		long received = 0;
+		for (int i = 0; i < refreshes; i++) {
+			out.write(String.format(REQUEST, i).getBytes("UTF-8"));
+			out.flush();
+			received += readStanza(in);
+		}
+		long elapsed = System.nanoTime() - start;
+		long clientCpu = threads.getCurrentThreadCpuTime() - clientStart;
+		serverThread.join();
+		socket.close();
+		server.close();
+
+		System.out.printf("%-11s %8.0f bytes down %6.0f bytes up per refresh, CPU %7.1f us client %7.1f us server, "
+				+ "%7.1f us per refresh, %d bytes of XML%n", name, (double) down.get() / refreshes, (double) up.get() / refreshes,
+				clientCpu / 1000.0 / refreshes, serverCpu.get() / 1000.0 / refreshes, elapsed / 1000.0 / refreshes,
+				received / refreshes);
+	}
+
+	private static InputStream open(InputStream in, boolean compressed) {
+		if (compressed) {
+			in = new InflaterInputStream(in, new Inflater(), 8192);
+		}
+		return new BufferedInputStream(in, 8192);
+	}
+
+	private static OutputStream open(OutputStream out, boolean compressed) {
+		// Flushing ends the current deflate block, so that the peer can read the whole stanza
+		return compressed ? new DeflaterOutputStream(out, new Deflater(), 8192, true) : out;
+	}
+
+	/**
+	 * Read up to the end of an iq stanza.
+	 *
+	 * @return the number of bytes read
+	 */
+	private static int readStanza(InputStream in) throws IOException {
+		int matched = 0;
+		int count = 0;
+		int b;
+		while ((b = in.read()) >= 0) {
+			count++;
+			matched = (b == END.charAt(matched)) ? matched + 1 : (b == END.charAt(0) ? 1 : 0);
+			if (matched == END.length()) {
+				return count;
+			}
+		}
+		throw new IOException("connection closed");
+	}
+
+	/**
+	 * @return an inbox refresh response with the given number of entries, the
+	 *         newest of which are new since the previous refresh
+	 */
+	private static String inbox(int entries, int refresh) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("<iq type=\"result\" id=\"1\" from=\"onesocial.me\" to=\"alice@onesocial.me/console\">");
+		buf.append("<pubsub xmlns=\"http://jabber.org/protocol/pubsub\"><items node=\"http://onesocialweb.org/spec/1.0/inbox\">");
+		for (int n = 0; n < entries; n++) {
+			int i = refresh + n;
+			String id = Long.toHexString(0x5f3a9c1e00000000L + i * 7919L);
+			String author = "user" + (i * 31 % 97) + "@onesocial.me";
+			buf.append("<item id=\"").append(id).append("\">");
+			buf.append("<entry xmlns=\"http://www.w3.org/2005/Atom\" xmlns:activity=\"http://activitystrea.ms/spec/1.0/\""
+					+ " xmlns:osw=\"http://onesocialweb.org/spec/1.0/\">");
+			buf.append("<id>").append(id).append("</id>");
+			buf.append("<published>2010-05-").append(10 + i % 20).append("T12:").append(10 + i % 50).append(":00Z</published>");
+			buf.append("<title>Status update ").append(i).append(" from ").append(author).append("</title>");
+			buf.append("<author><uri>").append(author).append("</uri></author>");
+			buf.append("<activity:verb>http://activitystrea.ms/schema/1.0/post</activity:verb>");
+			buf.append("<activity:object><activity:object-type>http://onesocialweb.org/spec/1.0/object/status</activity:object-type>");
+			buf.append("<content type=\"text/plain\">Status update ").append(i).append(" from ").append(author)
+					.append("</content></activity:object>");
+			buf.append("<acl:rule xmlns:acl=\"http://onesocialweb.org/spec/1.0/acl\"><acl:action permission=\""
+					+ "http://onesocialweb.org/spec/1.0/acl/permission/grant\">http://onesocialweb.org/spec/1.0/acl/action/view"
+					+ "</acl:action><acl:subject type=\"http://onesocialweb.org/spec/1.0/acl/subject/everyone\"/></acl:rule>");
+			buf.append("</entry></item>");
+		}
+		buf.append("</items></pubsub>").append(END);
+		return buf.toString();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+/**
+ * Throughput of the console in batch mode against the in-memory backend,
+ * in commands per second. The script connects, logs in, then alternates
+ * subscriptions, status updates and searches.
+ *
+ * Usage: BatchBenchmark [commands] [simulated round trip in ms]
+ */
+public class BatchBenchmark {
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		String latency = args.length > 1 ? args[1] : "0";
+
+		File home = File.createTempFile("osw-batch", "");
+		home.delete();
+		home.mkdirs();
+		System.setProperty("osw.console.factory", LoopbackServiceFactory.class.getName());
+		System.setProperty(LoopbackServiceFactory.LATENCY_PROPERTY, latency);
+		System.setProperty(InboxStore.HOME_PROPERTY, home.getPath());
+		System.setProperty("jline.terminal", "jline.UnsupportedTerminal");
+
+		String script = script(commands);
+		PrintStream stdout = System.out;
+		for (int round = 0; round < ROUNDS; round++) {
+			long calls = LoopbackServiceFactory.getCalls();
+			long start = System.nanoTime();
+			int failures = run(script);
+			long elapsed = System.nanoTime() - start;
+			stdout.println(String.format("%d commands in %d ms: %.0f commands/s, %d service calls, %d failed",
+					commands, elapsed / 1000000, commands * 1e9 / elapsed, LoopbackServiceFactory.getCalls() - calls,
+					failures));
+		}
+	}
+
+	private static String script(int commands) {
+		StringBuilder script = new StringBuilder();
+		script.append("/connect loopback\n/login alice\nsecret\n");
+		for (int i = 3; i < commands; i++) {
+			switch (i % 3) {
+			case 0:
+				script.append("/subscribe user").append(i).append("@loopback\n");
+				break;
+			case 1:
+				script.append("status update ").append(i).append('\n');
+				break;
+			default:
+				script.append("/search update\n");
+			}
+		}
+		return script.append("/quit\n").toString();
+	}
+
+	private static int run(String script) throws IOException {
+		// The client writes its results to the stdout seen when it is created
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		try {
+			return new ConsoleClient(new LineNumberReader(new StringReader(script))).runBatch();
+		} finally {
+			System.setOut(stdout);
+		}
+	}
+
+}
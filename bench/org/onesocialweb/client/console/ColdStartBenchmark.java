@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package org.onesocialweb.client.console;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.XMPPConnection;
+
+/**
+ * Cold start of the console against a stand-in XMPP server on the loopback
+ * interface. The stored inbox is opened and listed, as painted at login,
+ * then brought up to date either with the entries published since the
+ * newest stored one, as the console does, or by downloading the whole inbox
+ * as it did before.
+ *
+ * Usage: ColdStartBenchmark [entries] [entries published between runs]
+ */
+public class ColdStartBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int missed = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		ResyncBenchmark.Server server = new ResyncBenchmark.Server();
+		server.publish(entries);
+		Thread serverThread = new Thread(server, "stand-in server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		ResyncBenchmark.registerProvider();
+		ConnectionConfiguration config = new ConnectionConfiguration("127.0.0.1", server.socket.getLocalPort(),
+				ResyncBenchmark.DOMAIN);
+		config.setSecurityMode(ConnectionConfiguration.SecurityMode.disabled);
+		XMPPConnection connection = new XMPPConnection(config);
+		connection.connect();
+		connection.login("alice", "secret", "console");
+		PubSubInbox source = new PubSubInbox(connection);
+
+		File dir = File.createTempFile("osw-inbox", "");
+		dir.delete();
+		File file = new File(dir, "inbox.log");
+		InboxStore store = new InboxStore(file);
+		store.sync(source.newest(Integer.MAX_VALUE));
+		store.close();
+
+		System.out.printf("%-8s %8s %10s %10s %8s %8s%n", "sync", "stored", "paint ms", "total ms", "fetched", "KB");
+		for (int run = 0; run < 3; run++) {
+			server.publish(missed);
+			report("delta", file, server, source, true);
+			server.publish(missed);
+			report("full", file, server, source, false);
+		}
+		connection.disconnect();
+		System.exit(0);
+	}
+
+	/**
+	 * Open the store, list it, and bring it up to date with a delta or a full
+	 * download.
+	 */
+	private static void report(String name, File file, ResyncBenchmark.Server server, PubSubInbox source, boolean delta)
+			throws IOException {
+		long served = server.served.get();
+		long start = System.nanoTime();
+		InboxStore store = new InboxStore(file);
+		List<InboxStore.Entry> stored = store.entries();
+		long painted = System.nanoTime();
+
+		List<InboxStore.Entry> fetched = null;
+		if (delta) {
+			InboxStore.Entry newest = stored.get(0);
+			fetched = new InboxResync(source).since(newest.id, newest.published);
+		}
+		if (fetched != null) {
+			for (InboxStore.Entry entry : fetched) {
+				store.put(entry);
+			}
+			store.flush();
+		} else {
+			fetched = source.newest(Integer.MAX_VALUE);
+			store.sync(new ArrayList<InboxStore.Entry>(fetched));
+		}
+		long end = System.nanoTime();
+		store.close();
+
+		System.out.printf("%-8s %8d %10.2f %10.2f %8d %8d%n", name, stored.size(), (painted - start) / 1e6, (end - start) / 1e6,
+				fetched.size(), (server.served.get() - served) / 1024);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cold start of the {@link InboxStore}: time to open the log and list the
+ * stored inbox, the cost of a delta sync, recovery from a torn write and
+ * compaction.
+ *
+ * Usage: InboxStoreBenchmark [entries] [new entries per sync]
+ */
+public class InboxStoreBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int delta = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		File dir = File.createTempFile("osw-inbox", "");
+		dir.delete();
+		File file = new File(dir, "inbox.log");
+
+		List<InboxStore.Entry> inbox = new ArrayList<InboxStore.Entry>();
+		for (int i = 0; i < entries; i++) {
+			inbox.add(entry(i));
+		}
+
+		long start = System.nanoTime();
+		InboxStore store = new InboxStore(file);
+		store.sync(inbox);
+		store.close();
+		report("initial sync of " + entries, start, file);
+
+		for (int run = 0; run < 3; run++) {
+			start = System.nanoTime();
+			store = new InboxStore(file);
+			int size = store.entries().size();
+			report("cold start, " + size + " entries", start, file);
+
+			for (int i = 0; i < delta; i++) {
+				inbox.add(0, entry(entries++));
+			}
+			start = System.nanoTime();
+			int written = store.sync(inbox);
+			report("delta sync, " + written + " records", start, file);
+			store.close();
+		}
+
+		// Simulate a crash in the middle of a write
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.seek(raw.length());
+		raw.write(new byte[] { 0, 0, 1, 0, 42, 42 });
+		raw.close();
+		start = System.nanoTime();
+		store = new InboxStore(file);
+		report("recovery, " + store.size() + " entries", start, file);
+
+		for (InboxStore.Entry entry : new ArrayList<InboxStore.Entry>(inbox.subList(0, inbox.size() / 2))) {
+			store.put(new InboxStore.Entry(entry.id, entry.published, entry.author, entry.title + " (edited)"));
+		}
+		start = System.nanoTime();
+		store.compact();
+		report("compaction", start, file);
+		store.close();
+
+		file.delete();
+		dir.delete();
+	}
+
+	private static InboxStore.Entry entry(int i) {
+		return new InboxStore.Entry("entry-" + i, 1285660800000L + i * 60000L, "user" + (i % 97) + "@onesocial.me", "status number " + i);
+	}
+
+	private static void report(String name, long start, File file) {
+		System.out.printf("%-32s %10.2f ms %12d bytes%n", name, (System.nanoTime() - start) / 1e6, file.length());
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import org.onesocialweb.client.OswService;
+import org.onesocialweb.model.vcard4.Profile;
+
+/**
+ * Cost of the console instrumentation: recording a latency, timing a service
+ * call through the {@link ConsoleStats} proxy, and taking a sample of the
+ * {@link ConsoleMonitor} with a populated search index and row cache. The
+ * costs are put against a service round trip and the default dump interval.
+ *
+ * Usage: InstrumentationBenchmark [indexed entries] [calls]
+ */
+public class InstrumentationBenchmark {
+
+	/** Round trip the call overhead is compared to, in nanoseconds */
+	private static final double ROUND_TRIP = 1e6;
+
+	/** Default dump interval, in nanoseconds */
+	private static final double INTERVAL = 60e9;
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+		System.setProperty(LoopbackServiceFactory.LATENCY_PROPERTY, "0");
+		ConsoleStats stats = new ConsoleStats();
+		final OswService direct = new LoopbackServiceFactory().createService();
+		OswService timed = stats.instrument(direct);
+
+		final SearchIndex index = new SearchIndex();
+		RowFormatter rows = new RowFormatter();
+		for (int i = 0; i < entries; i++) {
+			String author = "user" + (i % 500) + "@onesocial.me";
+			String title = "Status update number " + i + " about nothing in particular";
+			index.put("entry-" + i, i * 60000L, author, title, null);
+			rows.activity("entry-" + i, null, author, title);
+		}
+		final ProfileCache profiles = new ProfileCache(new ProfileCache.Loader() {
+			@Override
+			public Profile load(String jid) {
+				return null;
+			}
+		});
+		final NameResolver names = new NameResolver(profiles, null);
+		final InboxEventQueue events = new InboxEventQueue(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+		ConsoleMonitor monitor = new ConsoleMonitor(new ConsoleMonitor.Console() {
+			@Override
+			public boolean isConnected() {
+				return direct.isConnected();
+			}
+
+			@Override
+			public String getUser() {
+				return "alice@onesocial.me";
+			}
+
+			@Override
+			public int getInboxSize() {
+				return 0;
+			}
+
+			@Override
+			public InboxEventQueue getEvents() {
+				return events;
+			}
+
+			@Override
+			public SearchIndex getSearchIndex() {
+				return index;
+			}
+
+			@Override
+			public ProfileCache getProfiles() {
+				return profiles;
+			}
+
+			@Override
+			public NameResolver getNames() {
+				return names;
+			}
+		}, stats, rows);
+
+		System.out.println(entries + " indexed entries, " + calls + " calls");
+		for (int run = 0; run < 3; run++) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			long start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				histogram.record(i);
+			}
+			double record = (double) (System.nanoTime() - start) / calls;
+
+			double plain = call(direct, calls);
+			double instrumented = call(timed, calls);
+
+			start = System.nanoTime();
+			int samples = 20;
+			int length = 0;
+			for (int i = 0; i < samples; i++) {
+				length += monitor.sample().length();
+			}
+			double sample = (double) (System.nanoTime() - start) / samples;
+
+			System.out.printf("record %.1f ns, call %.1f ns direct %.1f ns timed (%.3f%% of a 1 ms round trip), "
+					+ "sample %.2f ms (%.4f%% of a CPU every 60 s) (%d)%n", record, plain, instrumented,
+					100 * (instrumented - plain) / ROUND_TRIP, sample / 1e6, 100 * sample / INTERVAL, length % 10);
+		}
+		System.exit(0);
+	}
+
+	private static double call(OswService service, int calls) {
+		long start = System.nanoTime();
+		int sink = 0;
+		for (int i = 0; i < calls; i++) {
+			if (service.isConnected()) {
+				sink++;
+			}
+		}
+		return (double) (System.nanoTime() - start) / calls + (sink == -1 ? 1 : 0);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link Outbox} against a stand-in server that takes a fixed time per
+ * post: how long the user waits for a post, written alone or by several
+ * threads at once (whose fsyncs are shared), compared with posting it
+ * directly; then how fast a backlog written while offline drains once the
+ * connection is back, with one post in flight or several.
+ *
+ * Usage: OutboxBenchmark [posts] [server ms per post]
+ */
+public class OutboxBenchmark {
+
+	/** Stand-in for the service, offline until told otherwise */
+	private static class SlowSender implements Outbox.Sender {
+		private final long millis;
+
+		volatile boolean online;
+
+		final AtomicInteger posted = new AtomicInteger();
+
+		SlowSender(long millis) {
+			this.millis = millis;
+		}
+
+		@Override
+		public boolean isReady() {
+			return online;
+		}
+
+		@Override
+		public void send(Outbox.Item item) throws Exception {
+			Thread.sleep(millis);
+			posted.incrementAndGet();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int posts = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+		File dir = File.createTempFile("osw-outbox", "");
+		dir.delete();
+		File file = new File(dir, "outbox.log");
+
+		// Before: the user waits for the server
+		SlowSender direct = new SlowSender(millis);
+		LatencyHistogram waits = new LatencyHistogram();
+		for (int i = 0; i < posts / 10; i++) {
+			long start = System.nanoTime();
+			direct.send(null);
+			waits.record(System.nanoTime() - start);
+		}
+		report("posted directly", waits, posts / 10);
+
+		for (int threads : new int[] { 1, 4, 16 }) {
+			SlowSender sender = new SlowSender(millis);
+			Outbox outbox = new Outbox(file, sender, 4);
+			LatencyHistogram adds = write(outbox, posts, threads);
+			report("queued, " + threads + " thread(s)", adds, posts);
+			outbox.close();
+			file.delete();
+		}
+
+		for (int inFlight : new int[] { 1, 4, 16 }) {
+			SlowSender sender = new SlowSender(millis);
+			Outbox outbox = new Outbox(file, sender, inFlight);
+			write(outbox, posts, 4);
+			outbox.close();
+
+			// Offline until the outbox is opened again, as after a restart
+			sender.online = true;
+			long start = System.nanoTime();
+			outbox = new Outbox(file, sender, inFlight);
+			int queued = outbox.size();
+			outbox.flush();
+			while (outbox.size() > 0) {
+				Thread.sleep(1);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			outbox.close();
+			System.out.printf("%-28s %6d posts %8.2f s %8.1f posts/s, log %d bytes%n", "drained, " + inFlight + " in flight",
+					queued, seconds, queued / seconds, file.length());
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Queue posts from several threads while offline.
+	 */
+	private static LatencyHistogram write(final Outbox outbox, final int posts, int threads) throws InterruptedException {
+		final LatencyHistogram adds = new LatencyHistogram();
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						int i;
+						while ((i = next.getAndIncrement()) < posts) {
+							long start = System.nanoTime();
+							outbox.add("status number " + i, (i % 10 == 0) ? "user" + i + "@onesocial.me" : null, "everyone");
+							adds.record(System.nanoTime() - start);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await(10, TimeUnit.MINUTES);
+		return adds;
+	}
+
+	private static void report(String name, LatencyHistogram histogram, int posts) {
+		System.out.printf("%-28s %6d posts %8.2f ms mean %8.2f ms p50 %8.2f ms p99%n", name, posts, histogram.getMean() / 1e6,
+				histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6);
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import jline.ANSIBuffer;
+
+/**
+ * Compares the bytes written and the time spent per inbox event between the
+ * full screen repaint and the incremental {@link ScreenRenderer}.
+ *
+ * Usage: RenderBenchmark [entries] [events] [height] [width]
+ */
+public class RenderBenchmark {
+
+	/** Output stream that only counts what is written to it */
+	private static class CountingStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	private final int height;
+
+	private final int width;
+
+	private final LinkedList<String[]> inbox = new LinkedList<String[]>();
+
+	private final Random random = new Random(42);
+
+	private int nextId;
+
+	public RenderBenchmark(int entries, int height, int width) {
+		this.height = height;
+		this.width = width;
+		for (int i = 0; i < entries; i++) {
+			inbox.addLast(entry());
+		}
+	}
+
+	public static void main(String[] args) {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+		int events = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int height = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int width = args.length > 3 ? Integer.parseInt(args[3]) : 160;
+
+		System.out.println("Inbox of " + entries + " entries, " + events + " events, terminal " + height + "x" + width);
+		for (int run = 0; run < 3; run++) {
+			new RenderBenchmark(entries, height, width).run("full", events, false);
+			new RenderBenchmark(entries, height, width).run("incremental", events, true);
+		}
+	}
+
+	private void run(String name, int events, boolean incremental) {
+		CountingStream counter = new CountingStream();
+		PrintStream out = new PrintStream(counter);
+		ScreenRenderer renderer = new ScreenRenderer(out);
+		renderer.setSize(height, width);
+
+		// First paint is always a full one
+		paint(renderer, out, incremental);
+		counter.count = 0;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < events; i++) {
+			int op = random.nextInt(10);
+			if (op < 6) {
+				inbox.addFirst(entry());
+			} else if (op < 9) {
+				inbox.get(random.nextInt(height))[1] = "updated status " + random.nextInt();
+			} else {
+				inbox.remove(random.nextInt(height));
+			}
+			paint(renderer, out, incremental);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%-12s %10d bytes/event %10.1f us/event%n", name, counter.count / events, elapsed / 1000.0 / events);
+	}
+
+	private void paint(ScreenRenderer renderer, PrintStream out, boolean incremental) {
+		if (incremental) {
+			List<String> keys = new ArrayList<String>();
+			List<String> rows = new ArrayList<String>();
+			int i = 1;
+			for (String[] entry : inbox) {
+				keys.add(entry[0]);
+				rows.add("(" + i++ + ") " + entry[2] + " \t| " + entry[3] + " \t| " + entry[1] + "\n");
+			}
+			renderer.paint(keys, rows, "(bench) ");
+		} else {
+			// The path used before the incremental renderer
+			StringBuilder buf = new StringBuilder();
+			buf.append(ANSIBuffer.ANSICodes.save());
+			buf.append(ANSIBuffer.ANSICodes.gotoxy(1, 1));
+			buf.append(((char) 27) + "[J");
+			int i = 1;
+			for (String[] entry : inbox) {
+				buf.append("(" + i++ + ") " + entry[2] + " \t| " + entry[3] + " \t| " + entry[1] + "\n");
+			}
+			buf.append(ANSIBuffer.ANSICodes.gotoxy(height, 1));
+			buf.append("(bench) ");
+			buf.append(ANSIBuffer.ANSICodes.restore());
+			out.print(buf);
+			out.flush();
+		}
+	}
+
+	private String[] entry() {
+		int id = nextId++;
+		return new String[] { "entry-" + id, "status number " + id, "9/28/10 10:" + (id % 60), "user" + (id % 97) + "@onesocial.me" };
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fires a storm of inbox events at the {@link RenderScheduler} and reports
+ * how many repaints were folded away, compared to one repaint per event.
+ *
+ * Usage: RenderStormBenchmark [events] [events per second] [fps]
+ */
+public class RenderStormBenchmark {
+
+	/** Output stream that only counts what is written to it */
+	private static class CountingStream extends OutputStream {
+		volatile long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	private final List<String> keys = new ArrayList<String>();
+
+	private final List<String> rows = new ArrayList<String>();
+
+	private final CountingStream counter = new CountingStream();
+
+	private final ScreenRenderer renderer = new ScreenRenderer(new PrintStream(counter));
+
+	private int next;
+
+	public static void main(String[] args) throws InterruptedException {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int fps = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+		System.out.println(events + " events at " + rate + " events/s, " + fps + " fps");
+		new RenderStormBenchmark().run(events, rate, 0);
+		new RenderStormBenchmark().run(events, rate, fps);
+	}
+
+	private void run(int events, int rate, int fps) throws InterruptedException {
+		renderer.setSize(50, 160);
+		final Runnable frame = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (rows) {
+					renderer.paint(keys, rows, "(bench) ");
+				}
+			}
+		};
+		RenderScheduler scheduler = fps > 0 ? new RenderScheduler(frame, fps) : null;
+
+		long pause = 1000000000L / rate;
+		long start = System.nanoTime();
+		long cpu = 0;
+		for (int i = 0; i < events; i++) {
+			synchronized (rows) {
+				int id = next++;
+				keys.add(0, "entry-" + id);
+				rows.add(0, "(" + id + ") 9/28/10 10:00 \t| user@onesocial.me \t| status " + id);
+			}
+			if (scheduler != null) {
+				scheduler.requestRender();
+			} else {
+				long t = System.nanoTime();
+				frame.run();
+				cpu += System.nanoTime() - t;
+			}
+			long wait = start + (i + 1) * pause - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+		}
+		Thread.sleep(200);
+
+		if (scheduler != null) {
+			scheduler.shutdown();
+			System.out.printf("scheduled: %6d repaints, %6d skipped, %10d bytes, %8.1f ms painting%n", scheduler.getFrames(),
+					scheduler.getSkipped(), counter.count, scheduler.getFrameNanos() / 1e6);
+		} else {
+			System.out.printf("direct:    %6d repaints, %6d skipped, %10d bytes, %8.1f ms painting%n", events, 0, counter.count,
+					cpu / 1e6);
+		}
+	}
+}
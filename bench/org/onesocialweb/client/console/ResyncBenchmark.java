@@ -0,0 +1,405 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Inbox resyncs against a stand-in XMPP server on the loopback interface,
+ * which publishes to the inbox at a steady rate and drops the connection on
+ * a schedule. After each reconnection by Smack the inbox is brought up to
+ * date as the console does, then checked against the server. During the
+ * last outage, entries are published at BUSY_RATE, more than a resync can
+ * bridge, so that it falls back on a full refresh. The provider of pubsub
+ * replies, registered by the client library in the console, is stood in for
+ * by one writing back the payload it read.
+ *
+ * Usage: ResyncBenchmark [drops] [entries published per second] [entries at
+ * start]
+ */
+public class ResyncBenchmark {
+
+	static final String DOMAIN = "onesocial.me";
+
+	/** Entries published per second during the last outage */
+	private static final double BUSY_RATE = 40;
+
+	/** The stand-in server, also used by {@link ColdStartBenchmark} */
+	static class Server implements Runnable {
+		final ServerSocket socket;
+		final List<InboxStore.Entry> inbox = new ArrayList<InboxStore.Entry>();
+		final AtomicLong served = new AtomicLong();
+		volatile Socket client;
+		private long last;
+
+		Server() throws IOException {
+			socket = new ServerSocket(0);
+		}
+
+		synchronized void publish(int count) {
+			for (int i = 0; i < count; i++) {
+				last = Math.max(last + 1, System.currentTimeMillis());
+				String id = Long.toHexString(last) + "-" + inbox.size();
+				String author = "user" + (inbox.size() * 31 % 97) + "@" + DOMAIN;
+				inbox.add(new InboxStore.Entry(id, last, author, "Status update " + inbox.size() + " from " + author));
+			}
+		}
+
+		synchronized Set<String> ids() {
+			Set<String> ids = new HashSet<String>();
+			for (InboxStore.Entry entry : inbox) {
+				ids.add(entry.id);
+			}
+			return ids;
+		}
+
+		/** Close the connection without a word, as a lost network would */
+		void drop() throws IOException {
+			Socket current = client;
+			if (current != null) {
+				current.close();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!socket.isClosed()) {
+				try {
+					final Socket accepted = socket.accept();
+					client = accepted;
+					new Thread("stand-in connection") {
+						@Override
+						public void run() {
+							try {
+								serve(accepted);
+							} catch (Exception e) {
+								// Dropped
+							}
+						}
+					}.start();
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		}
+
+		private void serve(Socket socket) throws Exception {
+			XmlPullParser parser = new MXParser();
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+			parser.setInput(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			OutputStream out = socket.getOutputStream();
+			boolean authenticated = false;
+
+			for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+				if (event != XmlPullParser.START_TAG) {
+					continue;
+				}
+				String name = parser.getName();
+				if (name.equals("stream")) {
+					write(out, "<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' id='"
+							+ Long.toHexString(System.nanoTime()) + "' from='" + DOMAIN + "' version='1.0'><stream:features>"
+							+ (authenticated ? "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/><session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>"
+									: "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms>")
+							+ "</stream:features>");
+				} else if (name.equals("auth")) {
+					parser.nextText();
+					authenticated = true;
+					write(out, "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+				} else if (name.equals("iq")) {
+					iq(parser, out);
+				} else {
+					skip(parser);
+				}
+			}
+		}
+
+		private void iq(XmlPullParser parser, OutputStream out) throws Exception {
+			String id = parser.getAttributeValue(null, "id");
+			String type = parser.getAttributeValue(null, "type");
+			int depth = parser.getDepth();
+			String child = null;
+			int maxItems = -1;
+			boolean items = false;
+			for (int event = parser.next(); !(event == XmlPullParser.END_TAG && parser.getDepth() == depth); event = parser.next()) {
+				if (event == XmlPullParser.START_TAG) {
+					if (child == null) {
+						child = parser.getName();
+					} else if (parser.getName().equals("items")) {
+						items = true;
+						String max = parser.getAttributeValue(null, "max_items");
+						maxItems = (max != null) ? Integer.parseInt(max) : -1;
+					}
+				}
+			}
+			if (!type.equals("get") && !type.equals("set")) {
+				return;
+			}
+
+			String payload = "";
+			if ("bind".equals(child)) {
+				payload = "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>alice@" + DOMAIN + "/console</jid></bind>";
+			} else if (items) {
+				payload = items(maxItems);
+			}
+			byte[] reply = ("<iq type='result' id='" + id + "' to='alice@" + DOMAIN + "/console'>" + payload + "</iq>").getBytes("UTF-8");
+			if (items) {
+				// Before the client can see it
+				served.addAndGet(reply.length);
+			}
+			out.write(reply);
+			out.flush();
+		}
+
+		/**
+		 * @return the pubsub payload holding the newest items, all of them if
+		 *         count is negative
+		 */
+		synchronized String items(int count) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			StringBuilder xml = new StringBuilder();
+			xml.append("<pubsub xmlns='http://jabber.org/protocol/pubsub'><items node='").append(PubSubInbox.INBOX_NODE).append("'>");
+			int first = (count < 0) ? 0 : Math.max(0, inbox.size() - count);
+			for (InboxStore.Entry entry : inbox.subList(first, inbox.size())) {
+				xml.append("<item id='").append(entry.id).append("'>");
+				xml.append("<entry xmlns='http://www.w3.org/2005/Atom' xmlns:activity='http://activitystrea.ms/spec/1.0/'>");
+				xml.append("<id>").append(entry.id).append("</id>");
+				xml.append("<published>").append(format.format(new Date(entry.published))).append("</published>");
+				xml.append("<title>").append(entry.title).append("</title>");
+				xml.append("<activity:actor><uri>").append(entry.author).append("</uri></activity:actor>");
+				xml.append("<activity:verb>http://activitystrea.ms/schema/1.0/post</activity:verb>");
+				xml.append("<activity:object><activity:object-type>http://onesocialweb.org/spec/1.0/object/status</activity:object-type>");
+				xml.append("<content type='text/plain'>").append(entry.title).append("</content></activity:object>");
+				xml.append("</entry></item>");
+			}
+			return xml.append("</items></pubsub>").toString();
+		}
+
+		private static void write(OutputStream out, String xml) throws IOException {
+			out.write(xml.getBytes("UTF-8"));
+			out.flush();
+		}
+
+		private static void skip(XmlPullParser parser) throws Exception {
+			int depth = parser.getDepth();
+			for (int event = parser.next(); !(event == XmlPullParser.END_TAG && parser.getDepth() == depth); event = parser.next()) {
+				// Not answered
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int drops = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final double rate = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+		final AtomicBoolean busy = new AtomicBoolean();
+		int initial = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		final Server server = new Server();
+		server.publish(initial);
+		Thread serverThread = new Thread(server, "stand-in server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// Entries keep coming, connected or not
+		Thread publisher = new Thread("publisher") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						TimeUnit.MICROSECONDS.sleep((long) (1e6 / (busy.get() ? BUSY_RATE : rate)));
+						server.publish(1);
+					}
+				} catch (InterruptedException e) {
+					// Done
+				}
+			}
+		};
+		publisher.setDaemon(true);
+		publisher.start();
+
+		registerProvider();
+		ConnectionConfiguration config = new ConnectionConfiguration("127.0.0.1", server.socket.getLocalPort(), DOMAIN);
+		config.setReconnectionAllowed(true);
+		config.setSecurityMode(ConnectionConfiguration.SecurityMode.disabled);
+		XMPPConnection connection = new XMPPConnection(config);
+		final Semaphore reconnected = new Semaphore(0);
+		connection.connect();
+		connection.addConnectionListener(new ConnectionListener() {
+			@Override
+			public void reconnectionSuccessful() {
+				reconnected.release();
+			}
+
+			@Override
+			public void reconnectionFailed(Exception e) {
+			}
+
+			@Override
+			public void reconnectingIn(int seconds) {
+			}
+
+			@Override
+			public void connectionClosedOnError(Exception e) {
+			}
+
+			@Override
+			public void connectionClosed() {
+			}
+		});
+		connection.login("alice", "secret", "console");
+
+		// What the client holds, by id
+		PubSubInbox source = new PubSubInbox(connection);
+		Map<String, InboxStore.Entry> held = new LinkedHashMap<String, InboxStore.Entry>();
+		long start = server.served.get();
+		for (InboxStore.Entry entry : source.newest(Integer.MAX_VALUE)) {
+			held.put(entry.id, entry);
+		}
+		long full = server.served.get() - start;
+		System.out.printf("%d entries at start, full refresh %d KB, %.1f entries published per second%n", held.size(),
+				full / 1024, rate);
+		System.out.printf("%-5s %6s %8s %8s %6s %10s %10s %8s  %s%n", "drop", "gap", "fetched", "result", "KB", "full KB",
+				"ms", "saved", "check");
+
+		InboxResync resync = new InboxResync(source);
+		int failures = 0;
+		for (int drop = 1; drop <= drops; drop++) {
+			TimeUnit.SECONDS.sleep(2);
+			busy.set(drop == drops);
+			// Smack may report a reconnection more than once
+			reconnected.drainPermits();
+			server.drop();
+			if (!reconnected.tryAcquire(60, TimeUnit.SECONDS)) {
+				System.out.println("Smack did not reconnect");
+				System.exit(1);
+			}
+			busy.set(false);
+
+			InboxStore.Entry newest = null;
+			for (InboxStore.Entry entry : held.values()) {
+				if (newest == null || entry.published > newest.published) {
+					newest = entry;
+				}
+			}
+			int gap = server.ids().size() - held.size();
+			long began = System.nanoTime();
+			start = server.served.get();
+			List<InboxStore.Entry> delta = resync.since(newest.id, newest.published);
+			String result;
+			int fetched = resync.getFetched();
+			if (delta != null) {
+				result = "delta";
+				for (InboxStore.Entry entry : delta) {
+					held.put(entry.id, entry);
+				}
+			} else {
+				result = "full";
+				held.clear();
+				List<InboxStore.Entry> all = source.newest(Integer.MAX_VALUE);
+				for (InboxStore.Entry entry : all) {
+					held.put(entry.id, entry);
+				}
+				fetched += all.size();
+			}
+			long elapsed = System.nanoTime() - began;
+			long bytes = server.served.get() - start;
+			full = server.items(-1).length();
+
+			// Entries published after the resync are not expected
+			Set<String> missing = server.ids();
+			missing.removeAll(held.keySet());
+			String check = "ok";
+			for (String id : missing) {
+				InboxStore.Entry entry = find(server, id);
+				if (entry.published <= newestOf(held)) {
+					check = "MISSING " + missing.size();
+					failures++;
+					break;
+				}
+			}
+			System.out.printf("%-5d %6d %8d %8s %6d %10d %10.1f %7.0f%%  %s%n", drop, gap, fetched, result, bytes / 1024,
+					full / 1024, elapsed / 1e6, 100.0 - 100.0 * bytes / full, check);
+		}
+		connection.disconnect();
+		System.exit(failures > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Stand in for the provider of pubsub replies the client library
+	 * registers, writing back the payload it read.
+	 */
+	static void registerProvider() {
+		ProviderManager.getInstance().addIQProvider("pubsub", "http://jabber.org/protocol/pubsub", new IQProvider() {
+			@Override
+			public IQ parseIQ(XmlPullParser parser) throws Exception {
+				final String xml = PubSubInbox.copy(parser);
+				return new IQ() {
+					@Override
+					public String getChildElementXML() {
+						return xml;
+					}
+				};
+			}
+		});
+	}
+
+	private static long newestOf(Map<String, InboxStore.Entry> held) {
+		long newest = Long.MIN_VALUE;
+		for (InboxStore.Entry entry : held.values()) {
+			newest = Math.max(newest, entry.published);
+		}
+		return newest;
+	}
+
+	private static InboxStore.Entry find(Server server, String id) {
+		synchronized (server) {
+			for (InboxStore.Entry entry : server.inbox) {
+				if (entry.id.equals(id)) {
+					return entry;
+				}
+			}
+		}
+		return null;
+	}
+}
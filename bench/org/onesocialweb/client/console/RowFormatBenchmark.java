@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.lang.management.ManagementFactory;
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * Allocation profile of formatting an inbox repaint: bytes allocated and time
+ * per repaint when every row gets its own DateFormat, against the
+ * {@link RowFormatter} cache.
+ *
+ * Usage: RowFormatBenchmark [entries] [repaints] [visible rows]
+ */
+public class RowFormatBenchmark {
+
+	private final String[] ids;
+
+	private final Date[] published;
+
+	private final String[] authors;
+
+	private final String[] statuses;
+
+	public RowFormatBenchmark(int entries) {
+		ids = new String[entries];
+		published = new Date[entries];
+		authors = new String[entries];
+		statuses = new String[entries];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < entries; i++) {
+			ids[i] = "entry-" + i;
+			published[i] = new Date(now - i * 60000L);
+			authors[i] = "user" + (i % 97) + "@onesocial.me";
+			statuses[i] = "status number " + i;
+		}
+	}
+
+	public static void main(String[] args) {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int repaints = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int visible = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		RowFormatBenchmark bench = new RowFormatBenchmark(entries);
+		System.out.println(entries + " entries, " + repaints + " repaints, " + visible + " visible rows");
+		for (int run = 0; run < 3; run++) {
+			bench.measure("uncached", repaints, entries, null);
+			bench.measure("cached", repaints, entries, new RowFormatter());
+			bench.measure("cached+window", repaints, visible, new RowFormatter());
+		}
+	}
+
+	private void measure(String name, int repaints, int rows, RowFormatter formatter) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		long sink = 0;
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int r = 0; r < repaints; r++) {
+			for (int i = 0; i < rows; i++) {
+				String row;
+				if (formatter == null) {
+					// The path used before the row cache
+					String date = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(published[i]);
+					row = date + " \t| " + authors[i] + " \t| " + statuses[i] + "\n";
+				} else {
+					row = formatter.activity(ids[i], published[i], authors[i], statuses[i]);
+				}
+				sink += ("(" + (i + 1) + ") " + row).length();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+		System.out.printf("%-14s %12d bytes/repaint %10.1f us/repaint (%d)%n", name, bytes / repaints, elapsed / 1000.0 / repaints,
+				sink % 10);
+	}
+}
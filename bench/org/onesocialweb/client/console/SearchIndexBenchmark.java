@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.Random;
+
+/**
+ * Build time, heap use and query latency of the {@link SearchIndex}, over
+ * generated posts whose words follow a Zipf-like distribution.
+ *
+ * Usage: SearchIndexBenchmark [entries] [vocabulary] [queries]
+ */
+public class SearchIndexBenchmark {
+
+	private static final String[] QUERIES = { "w3", "w7 w15", "w120 w800", "\"w1 w2\"", "w5 author:user7",
+			"w9 after:2010-06-01 before:2010-07-01", "w4000" };
+
+	public static void main(String[] args) {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int vocabulary = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+		int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		Random random = new Random(42);
+		long heap = usedHeap();
+		long start = System.nanoTime();
+		SearchIndex index = new SearchIndex();
+		long time = 1262304000000L; // 2010-01-01
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < entries; i++) {
+			text.setLength(0);
+			int words = 4 + random.nextInt(12);
+			for (int w = 0; w < words; w++) {
+				text.append('w').append(zipf(random, vocabulary)).append(' ');
+			}
+			time += random.nextInt(60000);
+			index.put("entry-" + i, time, "user" + random.nextInt(1000) + "@onesocial.me", text.toString().trim(), null);
+		}
+		long build = System.nanoTime() - start;
+		heap = usedHeap() - heap;
+
+		System.out.printf("%d entries indexed in %.0f ms, %d terms, %d postings in %d bytes, %d MB heap%n", index.size(),
+				build / 1e6, index.getTerms(), index.getPostings(), index.getPostingBytes(), heap >> 20);
+
+		for (String query : QUERIES) {
+			SearchIndex.Query parsed = SearchIndex.parse(query);
+			int hits = 0;
+			start = System.nanoTime();
+			for (int q = 0; q < queries; q++) {
+				hits = index.search(parsed, 1000).size();
+			}
+			System.out.printf("%-40s %6d hits %10.1f us/query%n", query, hits, (System.nanoTime() - start) / 1000.0 / queries);
+		}
+	}
+
+	/**
+	 * @return a word rank, low ranks being much more frequent
+	 */
+	private static int zipf(Random random, int vocabulary) {
+		return (int) Math.min(vocabulary - 1, Math.floor(Math.exp(random.nextDouble() * Math.log(vocabulary))) - 1);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
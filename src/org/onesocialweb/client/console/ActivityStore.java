@@ -0,0 +1,351 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.onesocialweb.model.activity.ActivityEntry;
+
+/**
+ * The activities known to the console, one object per activity id however
+ * many lists show it. Each list (the inbox of a session, the activities of a
+ * jid...) is a {@link View}: a skip list of the records of its activities,
+ * sorted by publication time, most recent first. The records are found by id
+ * in a hash index shared by all views, so an update is seen by every view and
+ * a delete removes the activity from all of them, in O(log n) per view.
+ *
+ * An activity is kept while a view holds it. A new version always replaces
+ * the one held, except that an entry without objects (one rebuilt from the
+ * local store or known only by its id) never replaces a full activity.
+ *
+ * Writes are serialized on the store; reads are not. The screen reads a
+ * window of a view, walking the skip list from its top, so painting does not
+ * depend on the size of the view; the whole list is built once per change,
+ * and only when asked for. Entries without an id cannot be told apart and are
+ * not kept.
+ */
+class ActivityStore {
+
+	/** Where an entry sorts: most recent first, then by id */
+	static final class Key implements Comparable<Key> {
+		final long published;
+		final String id;
+
+		Key(long published, String id) {
+			this.published = published;
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(Key other) {
+			if (published != other.published) {
+				return (published < other.published) ? 1 : -1;
+			}
+			return id.compareTo(other.id);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).published == published && ((Key) o).id.equals(id);
+		}
+
+		@Override
+		public int hashCode() {
+			return id.hashCode() * 31 + (int) (published ^ (published >>> 32));
+		}
+	}
+
+	/** The current version of an activity */
+	private static class Record {
+		volatile ActivityEntry entry;
+		Key key;
+
+		/** Number of views holding it */
+		int views;
+
+		Record(ActivityEntry entry, Key key) {
+			this.entry = entry;
+			this.key = key;
+		}
+	}
+
+	/** A sorted list of some of the activities of the store */
+	class View {
+		private final String name;
+
+		private final ConcurrentSkipListMap<Key, Record> keys = new ConcurrentSkipListMap<Key, Record>();
+
+		private volatile int size;
+
+		/** The entries in order, null when they changed since last built */
+		private volatile List<ActivityEntry> list;
+
+		private View(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return at most count entries from the given position, most recent
+		 *         first, read without building the whole list
+		 */
+		public List<ActivityEntry> window(int from, int count) {
+			List<ActivityEntry> entries = new ArrayList<ActivityEntry>(Math.min(count, Math.max(size - from, 0)));
+			int position = 0;
+			for (Record record : keys.values()) {
+				if (entries.size() >= count) {
+					break;
+				}
+				if (position++ >= from) {
+					entries.add(record.entry);
+				}
+			}
+			return entries;
+		}
+
+		/**
+		 * @return the entries, most recent first; the list does not change
+		 */
+		public List<ActivityEntry> entries() {
+			List<ActivityEntry> current = list;
+			if (current == null) {
+				synchronized (ActivityStore.this) {
+					current = list;
+					if (current == null) {
+						List<ActivityEntry> entries = new ArrayList<ActivityEntry>(size);
+						for (Record record : keys.values()) {
+							entries.add(record.entry);
+						}
+						current = Collections.unmodifiableList(entries);
+						list = current;
+					}
+				}
+			}
+			return current;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean contains(String id) {
+			Record record = (id != null) ? records.get(id) : null;
+			return record != null && keys.containsKey(record.key);
+		}
+
+		/**
+		 * Add an activity to the view, or its new version.
+		 *
+		 * @return the version kept by the store: the one already there if the
+		 *         given one has no objects and that one has
+		 */
+		public ActivityEntry put(ActivityEntry entry) {
+			synchronized (ActivityStore.this) {
+				return add(entry).entry;
+			}
+		}
+
+		/**
+		 * Remove an activity from the view only.
+		 */
+		public void remove(String id) {
+			synchronized (ActivityStore.this) {
+				Record record = (id != null) ? records.get(id) : null;
+				if (record != null && keys.remove(record.key) != null) {
+					removed(record);
+				}
+			}
+		}
+
+		/**
+		 * Make the view hold the given activities, and only them.
+		 */
+		public void replace(List<ActivityEntry> entries) {
+			synchronized (ActivityStore.this) {
+				Set<String> ids = new HashSet<String>();
+				if (entries != null) {
+					for (ActivityEntry entry : entries) {
+						if (entry.getId() != null) {
+							add(entry);
+							ids.add(entry.getId());
+						}
+					}
+				}
+				for (Record record : keys.values()) {
+					if (!ids.contains(record.key.id)) {
+						keys.remove(record.key);
+						removed(record);
+					}
+				}
+			}
+		}
+
+		private Record add(ActivityEntry entry) {
+			Record record = store(entry);
+			if (record != null && keys.putIfAbsent(record.key, record) == null) {
+				record.views++;
+				size++;
+				list = null;
+			}
+			return (record != null) ? record : new Record(entry, null);
+		}
+
+		private void removed(Record record) {
+			size--;
+			list = null;
+			if (--record.views == 0) {
+				records.remove(record.key.id);
+			}
+		}
+	}
+
+	/** The activities, by id */
+	private final ConcurrentMap<String, Record> records = new ConcurrentHashMap<String, Record>();
+
+	private final List<View> views = new ArrayList<View>();
+
+	/**
+	 * @return the view of the given name, created empty on first use
+	 */
+	public synchronized View view(String name) {
+		for (View view : views) {
+			if (view.name.equals(name)) {
+				return view;
+			}
+		}
+		View view = new View(name);
+		views.add(view);
+		return view;
+	}
+
+	/**
+	 * Forget a view, and the activities no other view holds.
+	 */
+	public synchronized void drop(View view) {
+		if (views.remove(view)) {
+			for (Record record : view.keys.values()) {
+				view.keys.remove(record.key);
+				view.removed(record);
+			}
+		}
+	}
+
+	/**
+	 * @return the current version of an activity, null if no view holds it
+	 */
+	public ActivityEntry get(String id) {
+		Record record = (id != null) ? records.get(id) : null;
+		return (record != null) ? record.entry : null;
+	}
+
+	/**
+	 * Replace the version of an activity held by the views, if any.
+	 *
+	 * @return false if no view holds it
+	 */
+	public synchronized boolean update(ActivityEntry entry) {
+		if (entry.getId() == null || !records.containsKey(entry.getId())) {
+			return false;
+		}
+		store(entry);
+		return true;
+	}
+
+	/**
+	 * Remove an activity from every view.
+	 */
+	public synchronized void delete(String id) {
+		Record record = (id != null) ? records.get(id) : null;
+		if (record != null) {
+			for (View view : views) {
+				if (view.keys.remove(record.key) != null) {
+					view.removed(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of distinct activities
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	public synchronized int getViews() {
+		return views.size();
+	}
+
+	/**
+	 * @return the number of entries of all views together, at least size()
+	 */
+	public synchronized int getViewEntries() {
+		int entries = 0;
+		for (View view : views) {
+			entries += view.size;
+		}
+		return entries;
+	}
+
+	/**
+	 * Keep an activity, or its new version. The views holding it are moved
+	 * to its new position if its publication time changed.
+	 */
+	private Record store(ActivityEntry entry) {
+		String id = entry.getId();
+		if (id == null) {
+			return null;
+		}
+		Key key = new Key(entry.hasPublished() ? entry.getPublished().getTime() : Long.MIN_VALUE, id);
+		Record record = records.get(id);
+		if (record == null) {
+			record = new Record(entry, key);
+			records.put(id, record);
+			return record;
+		}
+		if (record.entry == entry || (!entry.hasObjects() && record.entry.hasObjects())) {
+			// The same, or a stub of what is held
+			return record;
+		}
+		record.entry = entry;
+		boolean moved = !key.equals(record.key);
+		for (View view : views) {
+			if (moved) {
+				if (view.keys.remove(record.key) != null) {
+					view.keys.put(key, record);
+					view.list = null;
+				}
+			} else if (view.keys.containsKey(key)) {
+				// Holds the previous version
+				view.list = null;
+			}
+		}
+		record.key = key;
+		return record;
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+import org.jivesoftware.smack.ConnectionCreationListener;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Counts the stanzas and bytes a session sends and receives, by operation:
+ * the stanza, and for IQs the element, namespace and pubsub node of their
+ * payload.
+ *
+ * Besides the size of each stanza, the meter keeps what it would take with
+ * stream compression: every stanza goes through a zlib stream per direction,
+ * flushed after each stanza as XMPP compression does, so that /bandwidth can
+ * compare both whether compression is on or not.
+ */
+class BandwidthMeter {
+
+	/** Distinct operations counted, the others are counted together */
+	private static final int MAX_OPERATIONS = 64;
+
+	private static final String OTHER = "other";
+
+	/** The meter of the session connecting from the current thread */
+	private static final ThreadLocal<BandwidthMeter> CONNECTING = new ThreadLocal<BandwidthMeter>();
+
+	private static final PacketFilter ALL = new PacketFilter() {
+		@Override
+		public boolean accept(Packet packet) {
+			return true;
+		}
+	};
+
+	static {
+		// Connections are created when connecting, on the connecting thread
+		XMPPConnection.addConnectionCreationListener(new ConnectionCreationListener() {
+			@Override
+			public void connectionCreated(XMPPConnection connection) {
+				BandwidthMeter meter = CONNECTING.get();
+				if (meter != null) {
+					meter.attach(connection);
+				}
+			}
+		});
+	}
+
+	/** Traffic of an operation in one direction */
+	private static class Counter {
+		long stanzas;
+		long bytes;
+		long compressed;
+	}
+
+	/** Traffic in one direction */
+	private static class Direction {
+		final Map<String, Counter> operations = new TreeMap<String, Counter>();
+		final Deflater deflater = new Deflater();
+		final byte[] buffer = new byte[8192];
+
+		synchronized void record(String xml) {
+			byte[] bytes;
+			try {
+				bytes = xml.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+
+			String name = operation(xml);
+			Counter counter = operations.get(name);
+			if (counter == null) {
+				if (operations.size() >= MAX_OPERATIONS) {
+					name = OTHER;
+					counter = operations.get(name);
+				}
+				if (counter == null) {
+					counter = new Counter();
+					operations.put(name, counter);
+				}
+			}
+			counter.stanzas++;
+			counter.bytes += bytes.length;
+
+			deflater.setInput(bytes);
+			int length;
+			do {
+				length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				counter.compressed += length;
+			} while (length == buffer.length);
+		}
+
+		synchronized void reset() {
+			operations.clear();
+			deflater.reset();
+		}
+	}
+
+	private final Direction sent = new Direction();
+
+	private final Direction received = new Direction();
+
+	private volatile XMPPConnection connection;
+
+	/**
+	 * Meter the connection created by the given session while it connects
+	 * from this thread, null once connected.
+	 */
+	public static void setConnecting(BandwidthMeter meter) {
+		if (meter != null) {
+			CONNECTING.set(meter);
+		} else {
+			CONNECTING.remove();
+		}
+	}
+
+	/**
+	 * Count the stanzas of a connection, instead of the previous one.
+	 */
+	public void attach(XMPPConnection connection) {
+		if (connection == this.connection) {
+			return;
+		}
+		this.connection = connection;
+		sent.reset();
+		received.reset();
+		connection.addPacketListener(new PacketListener() {
+			@Override
+			public void processPacket(Packet packet) {
+				received.record(packet.toXML());
+			}
+		}, ALL);
+		connection.addPacketWriterListener(new PacketListener() {
+			@Override
+			public void processPacket(Packet packet) {
+				sent.record(packet.toXML());
+			}
+		}, ALL);
+	}
+
+	/**
+	 * @return true if a connection is metered
+	 */
+	public boolean isAttached() {
+		return connection != null;
+	}
+
+	/**
+	 * @return the metered connection, null if none
+	 */
+	public XMPPConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @return true if the metered connection uses stream compression
+	 */
+	public boolean isCompressed() {
+		XMPPConnection current = connection;
+		return current != null && current.isUsingCompression();
+	}
+
+	/**
+	 * @return the traffic by operation as lines of text, in KB
+	 */
+	public List<String> report() {
+		Map<String, long[]> rows = new TreeMap<String, long[]>();
+		collect(sent, rows, 0);
+		collect(received, rows, 3);
+
+		List<String> lines = new ArrayList<String>();
+		lines.add(String.format("%-50s %7s %9s %7s %9s %9s %6s", "operation", "sent", "sent KB", "recv", "recv KB", "zlib KB",
+				"saved"));
+		long[] total = new long[6];
+		for (Map.Entry<String, long[]> entry : rows.entrySet()) {
+			long[] row = entry.getValue();
+			lines.add(line(entry.getKey(), row));
+			for (int i = 0; i < total.length; i++) {
+				total[i] += row[i];
+			}
+		}
+		lines.add(line("total", total));
+		return lines;
+	}
+
+	private static void collect(Direction direction, Map<String, long[]> rows, int offset) {
+		synchronized (direction) {
+			for (Map.Entry<String, Counter> entry : direction.operations.entrySet()) {
+				long[] row = rows.get(entry.getKey());
+				if (row == null) {
+					// Stanzas, bytes and compressed bytes sent, then received
+					row = new long[6];
+					rows.put(entry.getKey(), row);
+				}
+				Counter counter = entry.getValue();
+				row[offset] += counter.stanzas;
+				row[offset + 1] += counter.bytes;
+				row[offset + 2] += counter.compressed;
+			}
+		}
+	}
+
+	private static String line(String name, long[] row) {
+		long bytes = row[1] + row[4];
+		long compressed = row[2] + row[5];
+		return String.format("%-50s %7d %9.1f %7d %9.1f %9.1f %5.0f%%", name.length() > 50 ? name.substring(0, 50) : name,
+				row[0], row[1] / 1024.0, row[3], row[4] / 1024.0, compressed / 1024.0,
+				bytes > 0 ? 100.0 * (bytes - compressed) / bytes : 0.0);
+	}
+
+	/**
+	 * @return the operation of a stanza: its element, and for an IQ the
+	 *         element and namespace of its payload and the pubsub node
+	 */
+	static String operation(String xml) {
+		int start = xml.indexOf('<');
+		String stanza = name(xml, start);
+		if (!stanza.equals("iq")) {
+			return stanza;
+		}
+		int end = xml.indexOf('>', start);
+		int child = (end > 0 && xml.charAt(end - 1) != '/') ? xml.indexOf('<', end) : -1;
+		if (child < 0 || xml.startsWith("</", child)) {
+			return stanza + " " + attribute(xml, start, "type");
+		}
+		StringBuilder buf = new StringBuilder(stanza).append(' ').append(name(xml, child));
+		String namespace = attribute(xml, child, "xmlns");
+		if (namespace != null) {
+			buf.append(' ').append(namespace);
+		}
+		// The node of a pubsub request is on the element inside
+		int inner = xml.indexOf('<', xml.indexOf('>', child));
+		String node = (inner > 0 && !xml.startsWith("</", inner)) ? attribute(xml, inner, "node") : null;
+		if (node != null) {
+			buf.append(' ').append(node);
+		}
+		return buf.toString();
+	}
+
+	private static String name(String xml, int start) {
+		int end = start + 1;
+		while (end < xml.length() && " \t\r\n/>".indexOf(xml.charAt(end)) < 0) {
+			end++;
+		}
+		return xml.substring(start + 1, end);
+	}
+
+	/**
+	 * @return the value of an attribute of the tag starting at the given
+	 *         index, null if absent
+	 */
+	private static String attribute(String xml, int tag, String name) {
+		int end = xml.indexOf('>', tag);
+		if (end < 0) {
+			return null;
+		}
+		int at = tag;
+		while ((at = xml.indexOf(name + "=", at + 1)) > 0 && at < end) {
+			char before = xml.charAt(at - 1);
+			if (before == ' ' || before == '\t' || before == '\n') {
+				int open = at + name.length() + 1;
+				int close = xml.indexOf(xml.charAt(open), open + 1);
+				return (close > 0) ? xml.substring(open + 1, close) : null;
+			}
+		}
+		return null;
+	}
+}
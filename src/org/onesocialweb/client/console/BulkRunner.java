@@ -0,0 +1,560 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a request to every line of a file (a JID, a status update...), or
+ * to every item of a list, with a fixed number of requests in flight. The
+ * file is streamed, so memory use does not depend on its size. Lines whose
+ * request failed, or that were not reached because the run was interrupted,
+ * are written to a retry file that can be fed back as input. Lines rejected
+ * as invalid are not worth retrying; they are counted apart and optionally
+ * written to a file of their own, each after a comment giving the reason.
+ *
+ * Optionally, requests are paced by a {@link RateLimiter}, retries included,
+ * failed requests are tried again after a growing delay, and the number of
+ * the last line before which every request completed is saved to a
+ * checkpoint file, from which an interrupted run resumes. A resumed run adds
+ * to the retry file of the interrupted one, and a run that went through the
+ * whole input removes the checkpoint.
+ *
+ * Blank lines and lines starting with # of a file are skipped, the items of
+ * a list are applied as they are.
+ */
+class BulkRunner {
+
+	/** System property holding the default number of requests in flight */
+	public static final String IN_FLIGHT_PROPERTY = "osw.console.inflight";
+
+	private static final int DEFAULT_IN_FLIGHT = 16;
+
+	/** Interval between two progress reports */
+	private static final long PROGRESS_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The request to apply to each line. An IllegalArgumentException means
+	 * that the line is invalid, it is not tried again.
+	 */
+	public interface Operation {
+		void apply(String line) throws Exception;
+	}
+
+	/** Told about the progress of a run */
+	public interface Progress {
+		void report(BulkRunner runner);
+	}
+
+	/** What a run goes through: the lines of a file or the items of a list */
+	private interface Input {
+		/**
+		 * @return the next item, null at the end
+		 */
+		String next() throws IOException;
+
+		/**
+		 * @return true if the item is not applied, e.g. a comment
+		 */
+		boolean skip(String item);
+
+		void close() throws IOException;
+	}
+
+	private final Operation operation;
+
+	private final int inFlight;
+
+	private final Progress progress;
+
+	private final AtomicInteger submitted = new AtomicInteger();
+
+	private final AtomicInteger succeeded = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private final AtomicInteger rejected = new AtomicInteger();
+
+	private final AtomicInteger retriesWritten = new AtomicInteger();
+
+	/** Set if the retry or the rejects file could not be written */
+	private IOException writeError;
+
+	private long started;
+
+	private volatile long elapsed;
+
+	private volatile boolean interrupted;
+
+	/** Last line read, the lines before it were all submitted or skipped */
+	private volatile long done;
+
+	private RateLimiter limiter;
+
+	private int attempts = 1;
+
+	private long backoff;
+
+	private File checkpoint;
+
+	private File rejects;
+
+	/** Numbers of the lines whose request is not completed */
+	private final ConcurrentSkipListSet<Long> running = new ConcurrentSkipListSet<Long>();
+
+	/**
+	 * @return the number of requests in flight, from the system property or
+	 *         the default
+	 */
+	public static int defaultInFlight() {
+		return Math.max(1, Integer.getInteger(IN_FLIGHT_PROPERTY, DEFAULT_IN_FLIGHT));
+	}
+
+	/**
+	 * @param progress
+	 *            told every second while the run goes on, may be null
+	 */
+	public BulkRunner(Operation operation, int inFlight, Progress progress) {
+		this.operation = operation;
+		this.inFlight = Math.max(1, inFlight);
+		this.progress = progress;
+	}
+
+	/**
+	 * Pace the requests.
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Try failed requests again, waiting backoff milliseconds before the
+	 * first retry and twice as long before each next one.
+	 */
+	public void setRetries(int retries, long backoff) {
+		this.attempts = Math.max(0, retries) + 1;
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Save the progress to the given file, and skip the lines it records as
+	 * done. Lines not reached are then left to the next run instead of being
+	 * written to the retry file. The file is removed once a run reaches the
+	 * end of the input.
+	 */
+	public void setCheckpoint(File checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Write the lines rejected as invalid to the given file. A resumed run
+	 * adds to it, as to the retry file.
+	 */
+	public void setRejects(File rejects) {
+		this.rejects = rejects;
+	}
+
+	/**
+	 * Run the operation on every line of the input. Returns when all requests
+	 * completed, or early when the calling thread is interrupted.
+	 *
+	 * @param retry
+	 *            where failed lines are written; the file is only created
+	 *            if there is something to retry
+	 */
+	public void run(File input, File retry) throws IOException {
+		final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), "UTF-8"));
+		run(new Input() {
+			@Override
+			public String next() throws IOException {
+				String line = in.readLine();
+				return (line != null) ? line.trim() : null;
+			}
+
+			@Override
+			public boolean skip(String item) {
+				return item.length() == 0 || item.startsWith("#");
+			}
+
+			@Override
+			public void close() throws IOException {
+				in.close();
+			}
+		}, retry);
+	}
+
+	/**
+	 * Run the operation on every item of a list, e.g. activity ids.
+	 *
+	 * @param retry
+	 *            where failed items are written, null to only count them
+	 */
+	public void run(List<String> items, File retry) throws IOException {
+		final Iterator<String> i = items.iterator();
+		run(new Input() {
+			@Override
+			public String next() {
+				return i.hasNext() ? i.next() : null;
+			}
+
+			@Override
+			public boolean skip(String item) {
+				return false;
+			}
+
+			@Override
+			public void close() {
+			}
+		}, retry);
+	}
+
+	private void run(Input in, File retry) throws IOException {
+		final long resume = (checkpoint != null) ? readCheckpoint() : 0;
+		// A resumed run keeps the failures of the interrupted one
+		final LineWriter retries = new LineWriter(retry, resume > 0, retriesWritten);
+		final LineWriter rejections = new LineWriter(rejects, resume > 0, rejected);
+		final Semaphore slots = new Semaphore(inFlight);
+		final ExecutorService workers = Executors.newFixedThreadPool(inFlight, new ThreadFactory() {
+			private final AtomicInteger threads = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "osw-console-bulk-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		long lineNr = 0;
+		boolean complete = false;
+
+		started = System.nanoTime();
+		long nextReport = started + PROGRESS_NANOS;
+		try {
+			String next;
+			while ((next = in.next()) != null) {
+				final long nr = ++lineNr;
+				final String item = next;
+				if (nr <= resume || in.skip(item)) {
+					continue;
+				}
+
+				try {
+					if (limiter != null) {
+						limiter.acquire();
+					}
+					// Wait for a free slot, this is what bounds the memory
+					while (!slots.tryAcquire(PROGRESS_NANOS, TimeUnit.NANOSECONDS)) {
+						nextReport = report(nextReport);
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+					if (checkpoint == null) {
+						retries.write(item);
+					}
+					break;
+				}
+
+				submitted.incrementAndGet();
+				running.add(nr);
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (apply(item)) {
+								succeeded.incrementAndGet();
+							} else {
+								failed.incrementAndGet();
+								retries.write(item);
+							}
+						} catch (IllegalArgumentException e) {
+							// Kept on a single comment line, the file can be
+							// fixed and fed back as input
+							String reason = String.valueOf(e.getMessage()).replace('\n', ' ');
+							rejections.write("# line " + nr + ": " + reason + "\n" + item);
+						} finally {
+							running.remove(nr);
+							slots.release();
+						}
+					}
+				});
+				done = nr;
+				nextReport = report(nextReport);
+			}
+
+			if (interrupted && checkpoint == null) {
+				// Keep what was not reached for the next attempt
+				while ((next = in.next()) != null) {
+					if (!in.skip(next)) {
+						retries.write(next);
+					}
+				}
+			} else if (!interrupted) {
+				done = lineNr;
+			}
+
+			// Wait for the requests still in flight
+			workers.shutdown();
+			while (!awaitQuietly(workers)) {
+				nextReport = report(nextReport);
+			}
+			complete = !interrupted;
+		} finally {
+			workers.shutdownNow();
+			in.close();
+			try {
+				retries.close();
+			} finally {
+				rejections.close();
+			}
+			elapsed = System.nanoTime() - started;
+			if (checkpoint != null) {
+				if (complete) {
+					// Nothing to resume, importing the file again sends it again
+					checkpoint.delete();
+				} else {
+					writeCheckpoint();
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of requests sent so far
+	 */
+	public int getSubmitted() {
+		return submitted.get();
+	}
+
+	public int getSucceeded() {
+		return succeeded.get();
+	}
+
+	/**
+	 * @return the number of requests that failed, invalid lines aside
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of lines rejected as invalid
+	 */
+	public int getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the number of lines written to the retry file
+	 */
+	public int getRetries() {
+		return retriesWritten.get();
+	}
+
+	public boolean isInterrupted() {
+		return interrupted;
+	}
+
+	/**
+	 * @return completed requests per second
+	 */
+	public double getThroughput() {
+		long nanos = (elapsed > 0) ? elapsed : System.nanoTime() - started;
+		return (nanos > 0) ? (succeeded.get() + failed.get() + rejected.get()) * 1e9 / nanos : 0;
+	}
+
+	/**
+	 * @return the number of the last line before which all requests
+	 *         completed
+	 */
+	public long getCheckpoint() {
+		Long first = null;
+		try {
+			first = running.first();
+		} catch (NoSuchElementException e) {
+			// Nothing running
+		}
+		return (first != null) ? first - 1 : done;
+	}
+
+	/**
+	 * Apply the operation, trying again after a delay if it fails.
+	 *
+	 * @return false if all attempts failed
+	 * @throws IllegalArgumentException
+	 *             if the line is invalid, it is not tried again
+	 */
+	private boolean apply(String item) {
+		long delay = backoff;
+		for (int attempt = 1;; attempt++) {
+			try {
+				operation.apply(item);
+				return true;
+			} catch (IllegalArgumentException e) {
+				// The line itself is wrong, trying again will not help
+				throw e;
+			} catch (Exception e) {
+				if (attempt >= attempts || Thread.currentThread().isInterrupted()) {
+					return false;
+				}
+			}
+			try {
+				// Some jitter, so that the retries of a burst spread out
+				Thread.sleep(delay + (long) (Math.random() * delay / 2));
+				// Retries count against the rate like the first attempts
+				if (limiter != null) {
+					limiter.acquire();
+				}
+			} catch (InterruptedException e) {
+				return false;
+			}
+			delay *= 2;
+		}
+	}
+
+	private long report(long nextReport) {
+		long now = System.nanoTime();
+		if (now < nextReport) {
+			return nextReport;
+		}
+		if (checkpoint != null) {
+			try {
+				writeCheckpoint();
+			} catch (IOException e) {
+				// Tried again on the next report and at the end
+			}
+		}
+		if (progress != null) {
+			progress.report(this);
+		}
+		return now + PROGRESS_NANOS;
+	}
+
+	private long readCheckpoint() throws IOException {
+		if (!checkpoint.exists()) {
+			return 0;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(checkpoint), "UTF-8"));
+		try {
+			String line = in.readLine();
+			return (line != null) ? Long.parseLong(line.trim()) : 0;
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid checkpoint in " + checkpoint);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replace the checkpoint file, so that a crash leaves either the old or
+	 * the new one.
+	 */
+	private void writeCheckpoint() throws IOException {
+		File tmp = new File(checkpoint.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			out.write(getCheckpoint() + "\n");
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(checkpoint)) {
+			checkpoint.delete();
+			if (!tmp.renameTo(checkpoint)) {
+				throw new IOException("Could not replace " + checkpoint);
+			}
+		}
+	}
+
+	private boolean awaitQuietly(ExecutorService workers) {
+		try {
+			return workers.awaitTermination(PROGRESS_NANOS, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			// Requests in flight cannot be called back, their lines are
+			// reported as they complete
+			interrupted = true;
+			return workers.isTerminated();
+		}
+	}
+
+	/**
+	 * Writes the lines to retry, or the rejected ones, creating the file on
+	 * the first one.
+	 */
+	private class LineWriter {
+		private final File file;
+		private final boolean append;
+		private final AtomicInteger written;
+		private Writer out;
+
+		LineWriter(File file, boolean append, AtomicInteger written) {
+			this.file = file;
+			this.append = append;
+			this.written = written;
+		}
+
+		synchronized void write(String line) {
+			if (file == null) {
+				written.incrementAndGet();
+				return;
+			}
+			try {
+				if (out == null) {
+					out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8"));
+				}
+				out.write(line);
+				out.write('\n');
+				written.incrementAndGet();
+			} catch (IOException e) {
+				// Counted all the same, the summary tells the user the file
+				// is incomplete
+				written.incrementAndGet();
+				writeError = e;
+			}
+		}
+
+		synchronized void close() throws IOException {
+			if (out != null) {
+				out.close();
+			}
+			if (writeError != null) {
+				throw writeError;
+			}
+		}
+	}
+}
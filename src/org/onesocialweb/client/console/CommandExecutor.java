@@ -0,0 +1,224 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs commands that wait on the server away from the input thread, so that
+ * the prompt stays live. Uses virtual threads when the JVM has them, and a
+ * small thread pool otherwise. The number of pending commands is bounded.
+ *
+ * Pending commands can be cancelled, all of them or those of an owner. A
+ * cancelled command may still complete on the server, but
+ * {@link #isCancelled()} tells it to drop its result.
+ */
+class CommandExecutor {
+
+	/** System property holding the maximum number of pending commands */
+	public static final String PENDING_PROPERTY = "osw.console.pending";
+
+	private static final int DEFAULT_PENDING = 64;
+
+	private static final int POOL_THREADS = 4;
+
+	private class Task implements Runnable {
+		final String name;
+		final Object owner;
+		final Runnable command;
+		volatile boolean cancelled;
+		volatile Future<?> future;
+
+		Task(String name, Object owner, Runnable command) {
+			this.name = name;
+			this.owner = owner;
+			this.command = command;
+		}
+
+		@Override
+		public void run() {
+			current.set(this);
+			try {
+				if (!cancelled) {
+					command.run();
+				}
+			} finally {
+				current.remove();
+				done(this);
+			}
+		}
+	}
+
+	private final ExecutorService executor;
+
+	/** Told when the number of pending commands changes */
+	private final Runnable listener;
+
+	private final int maxPending;
+
+	private final Set<Task> pending = Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	private final ThreadLocal<Task> current = new ThreadLocal<Task>();
+
+	public CommandExecutor(Runnable listener) {
+		this.listener = listener;
+		this.maxPending = Integer.getInteger(PENDING_PROPERTY, DEFAULT_PENDING);
+		this.executor = createExecutor(maxPending);
+	}
+
+	/**
+	 * Run a command in the background.
+	 *
+	 * @param owner
+	 *            what the command was made for, to cancel it with the others
+	 *            of the same owner
+	 * @return false if too many commands are pending
+	 */
+	public boolean submit(String name, Object owner, Runnable command) {
+		if (count.incrementAndGet() > maxPending) {
+			count.decrementAndGet();
+			return false;
+		}
+
+		Task task = new Task(name, owner, command);
+		pending.add(task);
+		try {
+			task.future = executor.submit(task);
+		} catch (RejectedExecutionException e) {
+			done(task);
+			return false;
+		}
+		listener.run();
+		return true;
+	}
+
+	/**
+	 * Cancel all pending commands.
+	 *
+	 * @return the number of commands cancelled
+	 */
+	public int cancelAll() {
+		return cancel(null);
+	}
+
+	/**
+	 * Cancel the pending commands of an owner, all of them if null.
+	 *
+	 * @return the number of commands cancelled
+	 */
+	public int cancel(Object owner) {
+		int cancelled = 0;
+		for (Task task : new ArrayList<Task>(pending)) {
+			if (owner != null && task.owner != owner) {
+				continue;
+			}
+			task.cancelled = true;
+			Future<?> future = task.future;
+			if (future != null) {
+				future.cancel(true);
+			}
+			// Tasks cancelled before they started never run
+			done(task);
+			cancelled++;
+		}
+		return cancelled;
+	}
+
+	/**
+	 * @return true if the command running on the calling thread was cancelled
+	 */
+	public boolean isCancelled() {
+		Task task = current.get();
+		return task != null && task.cancelled;
+	}
+
+	public int getPending() {
+		return count.get();
+	}
+
+	/**
+	 * @return the names of the pending commands
+	 */
+	public List<String> getPendingNames() {
+		List<String> names = new ArrayList<String>();
+		for (Task task : pending) {
+			names.add(task.name);
+		}
+		return names;
+	}
+
+	public void shutdown() {
+		cancelAll();
+		executor.shutdownNow();
+	}
+
+	private void done(Task task) {
+		if (pending.remove(task)) {
+			count.decrementAndGet();
+			listener.run();
+		}
+	}
+
+	/**
+	 * @return an executor starting a virtual thread per task, or null if the
+	 *         JVM has no virtual threads
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			// Java 21 and later
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static ExecutorService createExecutor(int maxPending) {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if (executor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_THREADS, POOL_THREADS, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(maxPending, 1)), new ThreadFactory() {
+						private final AtomicInteger threads = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "osw-console-command-" + threads.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+}
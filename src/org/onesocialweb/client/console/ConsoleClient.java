@@ -25,22 +25,51 @@
 
 package org.onesocialweb.client.console;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jline.ANSIBuffer;
 import jline.Completor;
 import jline.ConsoleReader;
 
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
 import org.onesocialweb.client.Inbox;
 import org.onesocialweb.client.InboxEventHandler;
 import org.onesocialweb.client.OswService;
@@ -54,12 +83,15 @@ import org.onesocialweb.model.acl.AclFactory;
 import org.onesocialweb.model.acl.AclRule;
 import org.onesocialweb.model.acl.AclSubject;
 import org.onesocialweb.model.acl.DefaultAclFactory;
+import org.onesocialweb.model.activity.ActivityActor;
 import org.onesocialweb.model.activity.ActivityEntry;
 import org.onesocialweb.model.activity.ActivityFactory;
 import org.onesocialweb.model.activity.ActivityObject;
 import org.onesocialweb.model.activity.ActivityVerb;
 import org.onesocialweb.model.activity.DefaultActivityFactory;
+import org.onesocialweb.model.atom.AtomContent;
 import org.onesocialweb.model.atom.AtomFactory;
+import org.onesocialweb.model.atom.AtomReplyTo;
 import org.onesocialweb.model.atom.DefaultAtomFactory;
 import org.onesocialweb.model.relation.DefaultRelationFactory;
 import org.onesocialweb.model.relation.Relation;
@@ -81,33 +113,103 @@ import org.onesocialweb.model.vcard4.exception.CardinalityException;
 import org.onesocialweb.model.vcard4.exception.UnsupportedFieldException;
 import org.onesocialweb.smack.OswServiceFactoryImp;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
-public class ConsoleClient implements InboxEventHandler {
+public class ConsoleClient {
 
 	/** Default prompt */
 	private static final String DEFAULT_PROMPT = "not connected";
 
+	/** System property naming the OswServiceFactory to use */
+	private static final String FACTORY_PROPERTY = "osw.console.factory";
+
+	/** System property enabling stream compression when connecting */
+	private static final String COMPRESSION_PROPERTY = "osw.console.compression";
+
 	/** Default XMPP port */
 	private static final Integer XMPP_DEFAULT_PORT = 5222;
 
+	/*
+	 * Keys of the console, none of them bound by jline 0.9 (readline binds
+	 * Ctrl-Y, Ctrl-T and Ctrl-O to yank, transpose and operate-and-get-next,
+	 * jline does not)
+	 */
+
+	/** Scroll keys (Ctrl-Y and Ctrl-T) */
+	private static final char PAGE_UP = 25;
+
+	private static final char PAGE_DOWN = 20;
+
+	/** Scrolls to the entry whose number was typed (Ctrl-O) */
+	private static final char JUMP = 15;
+
+	/** Cancel key (Ctrl-X) */
+	private static final char CANCEL = 24;
+
+	/** Commands that wait on the server and run in the background */
+	private static final Set<String> BACKGROUND_COMMANDS = ImmutableSet.of("activities", "profile", "subscriptions",
+			"subscribers", "relations", "export", "import", "delete");
+
+	/** Commands that run on each line of a file when given @file [n] */
+	private static final Set<String> BULK_COMMANDS = ImmutableSet.of("subscribe", "unsubscribe", "profile");
+
+	/** Arguments of /profile that work on the staged changes */
+	private static final Set<String> PROFILE_EDIT_ACTIONS = ImmutableSet.of("edit", "diff", "commit", "abort");
+
+	/** The profile fields /set knows, and the prompt for their value */
+	private static final Map<String, String> PROFILE_PROMPTS = ImmutableMap.<String, String> builder()
+			.put(PhotoField.NAME, "Photo uri :").put(BirthdayField.NAME, "Birthday :").put(GenderField.NAME, "Gender :")
+			.put(FullNameField.NAME, "Display name :").put(NoteField.NAME, "Bio :").put(URLField.NAME, "Url :")
+			.put(TimeZoneField.NAME, "TimeZone :").put(EmailField.NAME, "Email :").put(TelField.NAME, "Tel :").build();
+
+	/** System property holding the default number of posts per second of /import */
+	private static final String IMPORT_RATE_PROPERTY = "osw.console.import.rate";
+
+	private static final String DEFAULT_IMPORT_RATE = "5";
+
+	/** Attempts after the first one of a failed import post, and the first delay */
+	private static final int IMPORT_RETRIES = 3;
+
+	private static final long IMPORT_BACKOFF = 500;
+
+	/** Maximum number of search results listed */
+	private static final int MAX_HITS = 1000;
+
+	/** Activity lists of other jids kept by a session */
+	private static final int MAX_ACTIVITY_VIEWS = 8;
+
 	/** Single active console reader. */
 	private final ConsoleReader reader;
 
+	/** Commands to execute in batch mode, null when interactive */
+	private final LineNumberReader script;
+
+	/** Why the last batch command failed, null if it did not */
+	private String failure;
+
+	/** Set by /quit in a script, which stops there */
+	private boolean quitting;
+
 	/** Default acl setting for activities */
 	private List<AclRule> defaultRules;
 
-	/** One social web API */
-	private OswService service;
+	/** The same setting as written to the outbox: everyone, nobody, group:name or person:jid */
+	private volatile String defaultAcl = "everyone";
+
+	/** The accounts of the console, each with its own connection */
+	private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
 
-	/** The profile of the logged in user */
-	private Profile profile;
+	/** The session on screen, which the commands typed apply to */
+	private volatile Session onScreen;
 
-	/** The inbox of the logged in user */
-	private Inbox inbox;
+	/** The session a background command was typed in, while it runs */
+	private final ThreadLocal<Session> commandSession = new ThreadLocal<Session>();
 
-	/** The current user JID */
-	private String bareJid;
+	/** Sessions opened so far, numbers the next one */
+	private int sessionCount = 1;
 
 	/**
 	 * Dependencies (should be injected in some way)
@@ -123,7 +225,7 @@ public class ConsoleClient implements InboxEventHandler {
 
 	private VCard4Factory profileFactory = new DefaultVCard4Factory();
 
-	private OswServiceFactory oswServiceFactory = new OswServiceFactoryImp();
+	private OswServiceFactory oswServiceFactory = createServiceFactory();
 
 	/**
 	 * PrintStream to use for output. We don't use ConsoleReader's functionality
@@ -131,6 +233,74 @@ public class ConsoleClient implements InboxEventHandler {
 	 */
 	private final PrintStream out = System.out;
 
+	/** Paints the screen incrementally */
+	private final ScreenRenderer renderer = new ScreenRenderer(out);
+
+	/** Formats and caches the activity rows */
+	private final RowFormatter rowFormatter = new RowFormatter();
+
+	/** The activities of all sessions, shared by their inbox and activity lists */
+	private final ActivityStore activityStore = new ActivityStore();
+
+	/** Scroll position of the list on screen */
+	private final Viewport viewport = new Viewport();
+
+	/** Paints the list currently on screen, again when scrolling */
+	private volatile Runnable view;
+
+	/** Set when a new view must be painted by the next frame */
+	private final AtomicBoolean viewChanged = new AtomicBoolean();
+
+	/** Paints the inbox of the logged in user */
+	private final Runnable inboxView = new Runnable() {
+		@Override
+		public void run() {
+			Session current = onScreen;
+			if (current.inbox != null || current.inboxView.size() > 0) {
+				renderActivities(current.inboxView);
+			} else {
+				renderActivities((List<ActivityEntry>) null);
+			}
+		}
+	};
+
+	/** Coalesces the repaints triggered by inbox events */
+	private final RenderScheduler scheduler = new RenderScheduler(new Runnable() {
+		@Override
+		public void run() {
+			// Background sessions keep their inbox up to date too
+			for (Session each : sessions) {
+				if (each.events.drain(each)) {
+					// Events were lost, cached rows may be stale
+					rowFormatter.clear();
+					each.rebuildInbox();
+					if (each.events.takeDeletesDropped()) {
+						each.refreshLater();
+					}
+				}
+				each.flushStore();
+			}
+			Runnable current = view;
+			if (script == null && current != null && (viewChanged.getAndSet(false) || current == inboxView)) {
+				paintView(current);
+			}
+		}
+	});
+
+	/** Latencies of the commands, service calls and repaints */
+	private final ConsoleStats stats = new ConsoleStats();
+
+	/** Runs the commands waiting on the server */
+	private final CommandExecutor commandExecutor = new CommandExecutor(new Runnable() {
+		@Override
+		public void run() {
+			if (script == null) {
+				int pending = commandExecutor.getPending();
+				renderer.setStatus(pending > 0 ? "[" + pending + " pending]" : "");
+			}
+		}
+	});
+
 	private class Command {
 		public final String name;
 		public final String args;
@@ -143,54 +313,629 @@ public class ConsoleClient implements InboxEventHandler {
 		}
 	}
 
+	/**
+	 * An account of the console, with its own connection, inbox, local store
+	 * and search index. The inbox events of every session are handled, the
+	 * session on screen is also painted.
+	 */
+	private class Session implements InboxEventHandler {
+		final int number;
+
+		/** The service, and the same service timed by the statistics */
+		final OswService direct;
+
+		final OswService service;
+
+		/**
+		 * Inbox events are queued by the XMPP listener thread and handled on the
+		 * render thread, so that packet processing never waits on the terminal.
+		 */
+		final InboxEventQueue events = new InboxEventQueue(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.requestRender();
+			}
+		});
+
+		/** Full text index of the inbox and the fetched activities */
+		final SearchIndex searchIndex = new SearchIndex();
+
+		/** Traffic of the connection */
+		final BandwidthMeter bandwidth = new BandwidthMeter();
+
+		/**
+		 * Profiles as the user of this session may see them: its own profile
+		 * holds the fields its ACL hides from the others. Loaded in the
+		 * background too, always through this session.
+		 */
+		final ProfileCache profiles = new ProfileCache(new ProfileCache.Loader() {
+			@Override
+			public Profile load(String jid) throws ConnectionRequired, AuthenticationRequired, RequestException {
+				// The server knows who we are
+				return service.getProfile(jid.equals(bareJid) ? null : jid);
+			}
+		});
+
+		/** Names of the authors, the rows are painted again as they arrive */
+		final NameResolver names = new NameResolver(profiles, new Runnable() {
+			@Override
+			public void run() {
+				if (Session.this == onScreen) {
+					viewChanged.set(true);
+					scheduler.requestRender();
+				}
+			}
+		});
+
+		/** The profile of the logged in user */
+		volatile Profile profile;
+
+		/** Changes to the profile staged by /set and /clear, null if none */
+		volatile ProfileEdit profileEdit;
+
+		/** The port connected to */
+		volatile Integer port;
+
+		/** The inbox of the logged in user */
+		volatile Inbox inbox;
+
+		/**
+		 * Set once the whole inbox was downloaded; until then it only holds the
+		 * entries received since the login, the others are those of the store.
+		 */
+		volatile boolean downloaded;
+
+		/** Local copy of the inbox, shown until the inbox has been refreshed */
+		volatile InboxStore store;
+
+		/** Status updates and shouts of the current user waiting to be posted */
+		volatile Outbox outbox;
+
+		/** Posts what the outbox holds, once logged in again after a reconnection */
+		final Outbox.Sender poster = new Outbox.Sender() {
+			@Override
+			public boolean isReady() {
+				XMPPConnection connection = bandwidth.getConnection();
+				return direct.isConnected() && (connection == null || connection.isAuthenticated());
+			}
+
+			@Override
+			public void send(Outbox.Item item) throws Exception {
+				ActivityEntry entry = statusEntry(item.message, aclRules(item.acl));
+				// Published when written, so that the timeline keeps its order
+				entry.setPublished(new Date(item.queued));
+				if (item.recipient != null) {
+					entry.addRecipient(atomFactory.reply(null, item.recipient, null, null));
+				}
+				if (!service.postActivity(entry)) {
+					throw new IOException("the post was refused");
+				}
+			}
+		};
+
+		/**
+		 * The inbox on screen: the stored entries until the inbox has been
+		 * refreshed, then those of the inbox. Kept up to date by the inbox
+		 * events and the resyncs.
+		 */
+		final ActivityStore.View inboxView;
+
+		/** The activities of the jids last looked at, least recent first */
+		final Map<String, ActivityStore.View> activityViews = new LinkedHashMap<String, ActivityStore.View>(16, 0.75f,
+				true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ActivityStore.View> eldest) {
+				if (size() > MAX_ACTIVITY_VIEWS) {
+					activityStore.drop(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+
+		/** Set while the inbox is brought up to date after a reconnection */
+		final AtomicBoolean resyncing = new AtomicBoolean();
+
+		/** Set while the inbox is downloaded again after lost deletes */
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		/** Set once Smack has reconnected, until it has logged in again */
+		final AtomicBoolean relogging = new AtomicBoolean();
+
+		/**
+		 * Brings the inbox up to date once Smack has logged in again after a
+		 * reconnection, which it ends by sending the available presence.
+		 */
+		final PacketListener loggedIn = new PacketListener() {
+			@Override
+			public void processPacket(Packet packet) {
+				if (((Presence) packet).getType() == Presence.Type.available && relogging.compareAndSet(true, false)) {
+					resync();
+				}
+			}
+		};
+
+		/** Tells when Smack has reconnected, before it logs in again */
+		final ConnectionListener reconnection = new ConnectionListener() {
+			@Override
+			public void reconnectionSuccessful() {
+				relogging.set(true);
+				Outbox current = outbox;
+				if (current != null) {
+					current.flush();
+				}
+			}
+
+			@Override
+			public void reconnectionFailed(Exception e) {
+			}
+
+			@Override
+			public void reconnectingIn(int seconds) {
+			}
+
+			@Override
+			public void connectionClosedOnError(Exception e) {
+			}
+
+			@Override
+			public void connectionClosed() {
+			}
+		};
+
+		/** The current user JID */
+		volatile String bareJid;
+
+		/** The prompt of the session, while another one is on screen */
+		String prompt = DEFAULT_PROMPT;
+
+		Session(int number) {
+			this.number = number;
+			direct = oswServiceFactory.createService();
+			service = stats.instrument(direct);
+			inboxView = activityStore.view(number + " inbox");
+		}
+
+		/**
+		 * @return the view of the activities of a jid, the current user if null
+		 */
+		ActivityStore.View activityView(String jid) {
+			String name = number + " activities " + (jid != null ? jid : bareJid);
+			synchronized (activityViews) {
+				ActivityStore.View view = activityViews.get(name);
+				if (view == null) {
+					view = activityStore.view(name);
+					activityViews.put(name, view);
+				}
+				return view;
+			}
+		}
+
+		/**
+		 * Forget the lists of the session, once closed.
+		 */
+		void dropViews() {
+			synchronized (activityViews) {
+				for (ActivityStore.View view : activityViews.values()) {
+					activityStore.drop(view);
+				}
+				activityViews.clear();
+			}
+			activityStore.drop(inboxView);
+		}
+
+		/**
+		 * Download the inbox and save what changed in the local store. The
+		 * refresh event only indexes the entries.
+		 */
+		void refreshInbox() throws ConnectionRequired {
+			inbox.refresh();
+			downloaded = true;
+			List<ActivityEntry> entries = inbox.getEntries();
+			saveInbox(entries);
+			inboxView.replace(entries);
+		}
+
+		/**
+		 * Rebuild the inbox view, the index and the local store from the
+		 * entries the inbox holds, once inbox events were lost.
+		 */
+		void rebuildInbox() {
+			if (!downloaded) {
+				// The inbox only holds what was received since the login
+				refreshLater();
+				return;
+			}
+			Inbox current = inbox;
+			List<ActivityEntry> entries = (current != null) ? current.getEntries() : null;
+			if (entries != null) {
+				saveInbox(entries);
+				onRefresh(entries);
+			}
+		}
+
+		/**
+		 * Download the inbox again in the background, once deletes were lost:
+		 * the inbox may still hold the deleted entries.
+		 */
+		void refreshLater() {
+			if (inbox == null || !refreshing.compareAndSet(false, true)) {
+				return;
+			}
+			new Thread("osw-console-inbox") {
+				@Override
+				public void run() {
+					try {
+						refreshInbox();
+						scheduler.requestRender();
+					} catch (ConnectionRequired e) {
+						error("The inbox could not be downloaded again, the connection was lost");
+					} finally {
+						refreshing.set(false);
+					}
+				}
+			}.start();
+		}
+
+		/**
+		 * Bring the inbox up to date in the background, at login and after a
+		 * reconnection. Only the entries published since the newest one held
+		 * are fetched, unless there are too many of them.
+		 */
+		void resync() {
+			if (inbox == null || !resyncing.compareAndSet(false, true)) {
+				return;
+			}
+			new Thread("osw-console-resync") {
+				@Override
+				public void run() {
+					try {
+						resyncInbox();
+						scheduler.requestRender();
+					} catch (ConnectionRequired e) {
+						error("The inbox could not be brought up to date, the connection was lost");
+					} finally {
+						resyncing.set(false);
+					}
+				}
+			}.start();
+		}
+
+		void resyncInbox() throws ConnectionRequired {
+			long start = System.nanoTime();
+			ActivityEntry newest = null;
+			for (ActivityEntry entry : inboxView.entries()) {
+				// Most recent first
+				if (entry.hasPublished()) {
+					newest = entry;
+					break;
+				}
+			}
+
+			List<InboxStore.Entry> delta = null;
+			String fallback = "inbox.resync.empty";
+			XMPPConnection connection = bandwidth.getConnection();
+			if (connection == null) {
+				fallback = "inbox.resync.unmetered";
+			} else if (newest != null) {
+				try {
+					delta = new InboxResync(new PubSubInbox(connection)).since(newest.getId(), newest.getPublished().getTime());
+					fallback = "inbox.resync.gap";
+				} catch (IOException e) {
+					// The full refresh will tell if the connection is gone
+					fallback = "inbox.resync.failed";
+				}
+			}
+
+			if (delta == null) {
+				// Counted by reason, so that /stats tells when deltas stop working
+				refreshInbox();
+				stats.call(fallback, System.nanoTime() - start);
+			} else {
+				// Handled as received, oldest first
+				for (int i = delta.size() - 1; i >= 0; i--) {
+					events.onMessageReceived(toActivity(delta.get(i)));
+				}
+				stats.call("inbox.resync", System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * @return the inbox entries, most recent first, null if not logged in
+		 */
+		List<ActivityEntry> inboxEntries() {
+			return (inbox == null && inboxView.size() == 0) ? null : inboxView.entries();
+		}
+
+		/**
+		 * Open the local inbox store of the current user and load its entries.
+		 */
+		void openStore() {
+			closeStore();
+			try {
+				InboxStore opened = new InboxStore(InboxStore.defaultFile(bareJid));
+				List<ActivityEntry> entries = new ArrayList<ActivityEntry>(opened.size());
+				for (InboxStore.Entry stored : opened.entries()) {
+					entries.add(toActivity(stored));
+				}
+				inboxView.replace(entries);
+				store = opened;
+			} catch (IOException e) {
+				inboxView.replace(null);
+				error("Could not open the local inbox: " + e.getMessage());
+			}
+		}
+
+		void closeStore() {
+			InboxStore current = store;
+			store = null;
+			if (current != null) {
+				try {
+					current.close();
+				} catch (IOException e) {
+					error("Could not close the local inbox: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Open the outbox of the current user and send what it holds.
+		 */
+		void openOutbox() {
+			closeOutbox();
+			try {
+				Outbox opened = new Outbox(Outbox.defaultFile(bareJid), poster, Outbox.defaultInFlight());
+				outbox = opened;
+				opened.flush();
+			} catch (IOException e) {
+				error("Could not open the outbox: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Stop sending, what is waiting is sent at the next login.
+		 */
+		void closeOutbox() {
+			Outbox current = outbox;
+			outbox = null;
+			if (current != null) {
+				try {
+					current.close();
+				} catch (IOException e) {
+					error("Could not close the outbox: " + e.getMessage());
+				}
+			}
+		}
+
+		void saveInbox(List<ActivityEntry> activities) {
+			InboxStore current = store;
+			if (current != null && activities != null) {
+				List<InboxStore.Entry> entries = new ArrayList<InboxStore.Entry>(activities.size());
+				for (ActivityEntry activity : activities) {
+					if (activity.getId() != null) {
+						entries.add(toStored(activity));
+					}
+				}
+				try {
+					current.sync(entries);
+				} catch (IOException e) {
+					error("Could not save the local inbox: " + e.getMessage());
+				}
+			}
+		}
+
+		void flushStore() {
+			InboxStore current = store;
+			if (current != null) {
+				try {
+					current.flush();
+				} catch (IOException e) {
+					error("Could not save the local inbox: " + e.getMessage());
+				}
+			}
+		}
+
+		/*
+		 * Inbox events, called on the render thread once they have been taken off
+		 * the event queue. The inbox is repainted once all queued events are
+		 * handled.
+		 */
+
+		@Override
+		public void onMessageDeleted(ActivityEntry entry) {
+			rowFormatter.evict(entry.getId());
+			searchIndex.remove(entry.getId());
+			activityStore.delete(entry.getId());
+			InboxStore current = store;
+			if (current != null && entry.getId() != null) {
+				try {
+					current.delete(entry.getId());
+				} catch (IOException e) {
+					error("Could not save the local inbox: " + e.getMessage());
+				}
+			}
+		}
+
+		@Override
+		public void onMessageReceived(ActivityEntry entry) {
+			storeEntry(entry);
+			index(entry);
+			inboxView.put(entry);
+		}
+
+		@Override
+		public void onRefresh(List<ActivityEntry> activities) {
+			for (ActivityEntry activity : activities) {
+				index(activity);
+			}
+			inboxView.replace(activities);
+		}
+
+		@Override
+		public void onMessageUpdated(ActivityEntry entry) {
+			rowFormatter.evict(entry.getId());
+			index(entry);
+			// Only the lists holding it change, added to the inbox if none does
+			if (inboxView.contains(entry.getId()) || !activityStore.update(entry)) {
+				storeEntry(entry);
+				inboxView.put(entry);
+			}
+		}
+
+		/**
+		 * Add an activity to the search index, with the text of its objects.
+		 */
+		void index(ActivityEntry activity) {
+			searchIndex.put(activity.getId(), activity.hasPublished() ? activity.getPublished().getTime() : Long.MIN_VALUE,
+					activity.hasActor() ? activity.getActor().getUri() : null, activity.hasTitle() ? activity.getTitle() : null,
+					content(activity));
+		}
+
+		void storeEntry(ActivityEntry entry) {
+			InboxStore current = store;
+			if (current != null && entry.getId() != null) {
+				try {
+					current.put(toStored(entry));
+				} catch (IOException e) {
+					error("Could not save the local inbox: " + e.getMessage());
+				}
+			}
+		}
+	}
+
 	/** Commands available to the user. */
 	private final List<Command> commands = ImmutableList.of(
-			new Command("connect", "server [port]", "connect to server at optional port"),
+			new Command("connect", "server [port] [compressed]", "connect to server at optional port, with stream compression if asked for"),
 			new Command("disconnect", "", "diconnect from server"),
 			new Command("login", "username", "login user username, password will be prompted"), 
 			new Command("register", "", "register a new user on the connected host"),
 			new Command("inbox", "", "shows the current user inbox"),
 			new Command("activities", "[jid]", "shows the activities of the current user or another jid"),
-			new Command("subscribe", "jid", "subscribe to the givn jid activity stream"),
+			new Command("subscribe", "jid|@file [n]", "subscribe to the givn jid activity stream, or to all jids in a file with n requests in flight"),
 			new Command("subscriptions", "[jid]", "list of users the current user is subscribed to (following)"), 
 			new Command("subscribers", "[jid]", "list of users subscribed to current user (followers)"),
-			new Command("unsubscribe", "jid", "unsubscribe from the given jid activity stream"), 
+			new Command("unsubscribe", "jid|@file [n]", "unsubscribe from the given jid activity stream, or from all jids in a file"), 
 			new Command("relations", "[jid]", "shows the relations of the current user or another jid"),
- 			new Command("profile", "[jid]", "view the profile of the current user or another jid"), 
+ 			new Command("profile", "[jid|edit|diff|commit|abort|@file [n]]", "view the profile of the current user or another jid, stage changes with edit and send them with commit, or set the profiles of the accounts in a file"), 
  			new Command("privacy", "", "change the current privacy default (used when posting activities)"),
-			new Command("set", "key value [type]", "add a given key value in the profile"),
-			new Command("clear", "key", "remove all entries with given key from the profile"),
+			new Command("set", "key", "set a given key in the profile, value prompted; staged during /profile edit"),
+			new Command("clear", "key", "remove all entries with given key from the profile; staged during /profile edit"),
 			new Command("relation", "[add|update] [id]", "add or update a relation"),
 			new Command("upload", "", "display an upload token"),
-			new Command("delete", "activityNr", "delete the activity selected if posted by this user"),
-			new Command("update", "activityNr", "edits the activity selected if posted by this user"),
+			new Command("delete", "[dry] nr|from-to,..|id:id,..|query", "delete the activities selected by number in the inbox, id or search query, if posted by this user; dry only lists them"),
+			new Command("update", "[dry] nr|from-to,..|id:id,..|query", "give a new message to the selected activities, if posted by this user; dry only lists them"),
+			new Command("search", "query", "search the inbox and fetched activities: words, \"a phrase\", author:jid, after:yyyy-mm-dd, before:yyyy-mm-dd"),
+			new Command("export", "what [jid] file", "save the inbox, activities, relations, subscribers or subscriptions to a JSON Lines file, or Atom for .atom/.xml"),
+			new Command("import", "file [rate] [n]", "post the status updates of a file (text or JSON lines) at rate posts/s with n requests in flight"),
+			new Command("cache", "[clear]", "show the cache statistics, or empty the caches"),
+			new Command("session", "[nr|jid|new|close nr]", "list the sessions, switch to one, open a new one or close one; the others stay logged in"),
+			new Command("bandwidth", "", "show the stanzas and bytes sent and received by each session, by operation, with and without compression"),
+			new Command("outbox", "[flush]", "show the status updates and shouts waiting to be posted, or send them now"),
+			new Command("stats", "[reset]", "show the latencies of the commands, service calls and repaints, and the inbox events received"),
+			new Command("goto", "nr", "scroll the list on screen to the given entry (or type nr, Ctrl-O; Ctrl-Y/Ctrl-T scroll by a page)"),
+			new Command("help", "", "list the commands (Ctrl-X cancels the pending requests)"),
 			new Command("quit", "", "quit the client"));
 
+	/** Tab completion of the command names */
+	final Completor completor = new Completor() {
+		@SuppressWarnings("unchecked")
+		@Override
+		public int complete(String buffer, int cursor, List candidates) {
+			if (buffer.trim().startsWith("/")) {
+				buffer = buffer.trim().substring(1);
+			}
+
+			for (Command cmd : commands) {
+				if (cmd.name.startsWith(buffer)) {
+					candidates.add('/' + cmd.name + ' ');
+				}
+			}
+
+			return 0;
+		}
+	};
+
 	/**
 	 * Create new console client.
 	 */
 	public ConsoleClient() throws IOException {
-		reader = new ConsoleReader();
-		service = oswServiceFactory.createService();
+		this(new ConsoleReader(), null);
+	}
 
-		// And tab completion
-		reader.addCompletor(new Completor() {
-			@SuppressWarnings("unchecked")
+	/**
+	 * Create a console client running the given script, without rendering
+	 * anything on the terminal.
+	 */
+	public ConsoleClient(LineNumberReader script) throws IOException {
+		this(new ConsoleReader(new ByteArrayInputStream(new byte[0]), new OutputStreamWriter(new ByteArrayOutputStream())), script);
+	}
+
+	private ConsoleClient(ConsoleReader reader, LineNumberReader script) throws IOException {
+		this.reader = reader;
+		this.script = script;
+		onScreen = new Session(1);
+		sessions.add(onScreen);
+
+		// Visible over JMX, and dumped to a file if asked to
+		ConsoleMonitor monitor = new ConsoleMonitor(new ConsoleMonitor.Console() {
 			@Override
-			public int complete(String buffer, int cursor, List candidates) {
-				if (buffer.trim().startsWith("/")) {
-					buffer = buffer.trim().substring(1);
-				}
+			public boolean isConnected() {
+				return onScreen.direct.isConnected();
+			}
 
-				for (Command cmd : commands) {
-					if (cmd.name.startsWith(buffer)) {
-						candidates.add('/' + cmd.name + ' ');
+			@Override
+			public String getUser() {
+				return onScreen.bareJid;
+			}
+
+			@Override
+			public int getInboxSize() {
+				return onScreen.inboxView.size();
+			}
+
+			@Override
+			public InboxEventQueue getEvents() {
+				return onScreen.events;
+			}
+
+			@Override
+			public SearchIndex getSearchIndex() {
+				return onScreen.searchIndex;
+			}
+
+			@Override
+			public ProfileCache getProfiles() {
+				return onScreen.profiles;
+			}
+
+			@Override
+			public NameResolver getNames() {
+				return onScreen.names;
+			}
+		}, stats, rowFormatter);
+		try {
+			monitor.start();
+		} catch (Exception e) {
+			System.err.println("Cannot register the console with JMX: " + e);
+		}
+
+		// Keep the statistics of the session if asked to
+		final String statsFile = System.getProperty(ConsoleStats.FILE_PROPERTY);
+		if (statsFile != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread("osw-console-stats") {
+				@Override
+				public void run() {
+					try {
+						stats.dump(new File(statsFile), onScreen.events);
+					} catch (IOException e) {
+						System.err.println("Could not write the statistics to " + statsFile + ": " + e.getMessage());
 					}
 				}
+			});
+		}
 
-				return 0;
-			}
-		});
+		// And tab completion
+		reader.addCompletor(completor);
 
 		// Build the default ACL
 		AclRule rule = aclFactory.aclRule();
@@ -209,6 +954,33 @@ public class ConsoleClient implements InboxEventHandler {
 	 */
 	public void run(String[] args) throws IOException {
 		// Initialise screen and move cursor to bottom left corner
+		reader.addTriggeredAction(PAGE_UP, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				scroll(-1);
+			}
+		});
+		reader.addTriggeredAction(PAGE_DOWN, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				scroll(1);
+			}
+		});
+		reader.addTriggeredAction(JUMP, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				jump();
+			}
+		});
+		reader.addTriggeredAction(CANCEL, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				int cancelled = commandExecutor.cancelAll();
+				if (cancelled > 0) {
+					message("Cancelled " + cancelled + " pending request(s)");
+				}
+			}
+		});
 		
 		reader.clearScreen();
 		setPrompt(DEFAULT_PROMPT);		
@@ -220,25 +992,85 @@ public class ConsoleClient implements InboxEventHandler {
 		out.println(ANSIBuffer.ANSICodes.gotoxy(reader.getTermheight(), 1));
 
 		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-			if (line.startsWith("/")) {
-				doCommand(extractCmd(line), extractArgs(line));
-			} else if (line.length() > 0) {
-				try {
-					updateStatus(line);
-				} catch (ConnectionRequired e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (AuthenticationRequired e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
+			// Entering the line scrolled the screen
+			renderer.invalidate();
+			doLine(line);
 		}		
 		
 		// And yet there still seem to be threads hanging around
 		System.exit(0);
 	}
 
+	/**
+	 * Entry point for batch mode: executes the commands of the script without
+	 * rendering anything on the terminal. For each command a status line is
+	 * written:
+	 * 
+	 * <pre>
+	 * ok	lineNr	command
+	 * error	lineNr	command	message
+	 * </pre>
+	 * 
+	 * preceded by the result rows of the command, each indented by a tab.
+	 * Values a command prompts for (e.g. a password) are read from the lines
+	 * following it. Empty lines and lines starting with # are skipped. The
+	 * script ends at /quit, if any.
+	 * 
+	 * @return the number of commands that failed
+	 */
+	public int runBatch() throws IOException {
+		int failures = 0;
+
+		for (String line = script.readLine(); line != null; line = script.readLine()) {
+			int lineNr = script.getLineNumber();
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+
+			failure = null;
+			doLine(line);
+
+			if (failure == null) {
+				out.println("ok\t" + lineNr + "\t" + line);
+			} else {
+				out.println("error\t" + lineNr + "\t" + line + "\t" + failure);
+				failures++;
+			}
+			if (quitting) {
+				break;
+			}
+		}
+
+		// Posts still waiting stay in the outbox for the next login
+		for (Session each : sessions) {
+			each.closeOutbox();
+			each.closeStore();
+		}
+		out.flush();
+		return failures;
+	}
+
+	/**
+	 * Execute a line of input: a command, or else a status update.
+	 */
+	void doLine(String line) {
+		if (line.startsWith("/")) {
+			doCommand(extractCmd(line), extractArgs(line));
+		} else if (line.length() > 0) {
+			long start = System.nanoTime();
+			try {
+				updateStatus(line);
+			} catch (ConnectionRequired e) {
+				error("You must first be connected to perform this command");
+			} catch (AuthenticationRequired e) {
+				error("You must first be logged in to perform this command");
+			} finally {
+				stats.command("status", System.nanoTime() - start);
+			}
+		}
+	}
+
 	/**
 	 * Validate and perform connect and/or login if args were given when the 
 	 * application was launched.
@@ -285,22 +1117,61 @@ public class ConsoleClient implements InboxEventHandler {
 
 	
 	/**
-	 * Perform command with given arguments.
+	 * Perform command with given arguments. Commands waiting on the server
+	 * run in the background when interactive, the prompt stays live.
 	 * 
 	 * @param cmd
 	 *            command string to perform
 	 * @param args
 	 *            list of arguments to the command
 	 */
-	private void doCommand(String cmd, List<String> args) {
+	private void doCommand(final String cmd, final List<String> args) {
+		if (script == null && ((BACKGROUND_COMMANDS.contains(cmd) && !isProfileEdit(cmd, args)) || isBulk(cmd, args))) {
+			// Applies to the session it was typed in, even once another one is on screen
+			final Session owner = onScreen;
+			boolean submitted = commandExecutor.submit(cmd, owner, new Runnable() {
+				@Override
+				public void run() {
+					commandSession.set(owner);
+					try {
+						runCommand(cmd, args);
+					} finally {
+						commandSession.remove();
+					}
+				}
+			});
+			if (!submitted) {
+				error("too many pending requests, cancel them with Ctrl-X or try again later");
+			}
+		} else {
+			runCommand(cmd, args);
+		}
+	}
+
+	/**
+	 * @return the session the running command applies to: the one it was typed
+	 *         in for a background command, the session on screen otherwise
+	 */
+	private Session session() {
+		Session bound = commandSession.get();
+		return (bound != null) ? bound : onScreen;
+	}
+
+	private void runCommand(String cmd, List<String> args) {
+		long start = System.nanoTime();
 		try {
 			if (cmd.equals("connect")) {
+				boolean compressed = Boolean.getBoolean(COMPRESSION_PROPERTY);
+				if (args.size() > 1 && args.get(args.size() - 1).equals("compressed")) {
+					compressed = true;
+					args = args.subList(0, args.size() - 1);
+				}
 				if (args.size() == 1) {
-					connect(args.get(0), XMPP_DEFAULT_PORT);
+					connect(args.get(0), XMPP_DEFAULT_PORT, compressed);
 				} else if (args.size() == 2) {
 					try {
 						Integer port = Integer.parseInt(args.get(1));
-						connect(args.get(0), port);
+						connect(args.get(0), port, compressed);
 					} catch (NumberFormatException e) {
 						badArgs(cmd);
 					}
@@ -352,21 +1223,23 @@ public class ConsoleClient implements InboxEventHandler {
 				}
 			} else if (cmd.equals("relations")) {
 				if (args.size() == 0) {
-					relations(bareJid);
+					relations(session().bareJid);
 				} else if (args.size() == 1) {
 					relations(args.get(0));
 				} else {
 					badArgs(cmd);
 				}
 			} else if (cmd.equals("subscribe")) {
-				if (args.size() == 1) {
+				if (isBulk(cmd, args)) {
+					bulk(cmd, args);
+				} else if (args.size() == 1) {
 					subscribe(args.get(0));
 				} else {
 					badArgs(cmd);
 				}
 			} else if (cmd.equals("subscriptions")) {
 				if (args.size() == 0) {
-					subscriptions(bareJid);
+					subscriptions(session().bareJid);
 				} else if (args.size() == 1) {
 					subscriptions(args.get(0));
 				} else {
@@ -374,14 +1247,18 @@ public class ConsoleClient implements InboxEventHandler {
 				}
 			} else if (cmd.equals("subscribers")) {
 				if (args.size() == 0) {
-					subscribers(bareJid);
+					subscribers(session().bareJid);
 				} else if (args.size() == 1) {
 					subscribers(args.get(0));
 				} else {
 					badArgs(cmd);
 				}
 			} else if (cmd.equals("profile")) {
-				if (args.size() == 1) {
+				if (isBulk(cmd, args)) {
+					provision(cmd, args);
+				} else if (isProfileEdit(cmd, args)) {
+					profileEdit(args.get(0));
+				} else if (args.size() == 1) {
 					profile(args.get(0));
 				} else {
 					badArgs(cmd);
@@ -399,7 +1276,9 @@ public class ConsoleClient implements InboxEventHandler {
 					badArgs(cmd);
 				}
 			} else if (cmd.equals("unsubscribe")) {
-				if (args.size() == 1) {
+				if (isBulk(cmd, args)) {
+					bulk(cmd, args);
+				} else if (args.size() == 1) {
 					unsubscribe(args.get(0));
 				} else {
 					badArgs(cmd);
@@ -417,14 +1296,96 @@ public class ConsoleClient implements InboxEventHandler {
 					badArgs(cmd);
 				}
 			}else if (cmd.equals("delete")) {
-				if (args.size() == 1) {
-					delete(args.get(0));
+				if (args.size() > 0) {
+					edit(cmd, args);
 				} else {
 					badArgs(cmd);
 				}
 			}else if (cmd.equals("update")) {
+				if (args.size() > 0) {
+					edit(cmd, args);
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("search")) {
+				if (args.size() > 0) {
+					search(Joiner.on(" ").join(args));
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("export")) {
+				if (args.size() == 2) {
+					export(args.get(0), session().bareJid, args.get(1));
+				} else if (args.size() == 3 && !args.get(0).equals("inbox")) {
+					export(args.get(0), args.get(1), args.get(2));
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("import")) {
+				if (args.size() >= 1 && args.size() <= 3) {
+					importFile(args);
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("cache")) {
+				if (args.size() == 0) {
+					cache();
+				} else if (args.size() == 1 && args.get(0).equals("clear")) {
+					session().profiles.clear();
+					session().names.clear();
+					rowFormatter.clear();
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("session")) {
+				if (args.size() == 0) {
+					sessions();
+				} else if (args.size() == 1 && args.get(0).equals("new")) {
+					Session created = new Session(++sessionCount);
+					sessions.add(created);
+					switchTo(created);
+				} else if (args.size() == 2 && args.get(0).equals("close")) {
+					closeSession(args.get(1));
+				} else if (args.size() == 1) {
+					Session target = findSession(args.get(0));
+					if (target != null) {
+						switchTo(target);
+					} else {
+						error("no session " + args.get(0));
+					}
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("bandwidth")) {
+				if (args.size() == 0) {
+					bandwidth();
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("outbox")) {
+				if (args.size() == 0) {
+					outbox();
+				} else if (args.size() == 1 && args.get(0).equals("flush")) {
+					Outbox current = session().outbox;
+					if (current != null) {
+						current.flush();
+					} else {
+						error("You must first be logged in to perform this command");
+					}
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("stats")) {
+				if (args.size() == 0) {
+					stats();
+				} else if (args.size() == 1 && args.get(0).equals("reset")) {
+					stats.reset();
+				} else {
+					badArgs(cmd);
+				}
+			} else if (cmd.equals("goto")) {
 				if (args.size() == 1) {
-					updateActivity(args.get(0));
+					scrollTo(args.get(0));
 				} else {
 					badArgs(cmd);
 				}
@@ -450,9 +1411,25 @@ public class ConsoleClient implements InboxEventHandler {
 					badArgs(cmd);
 				}
 			} else if (cmd.equals("quit")) {
-				System.exit(0);
-			} else {
+				int waiting = 0;
+				for (Session each : sessions) {
+					Outbox current = each.outbox;
+					waiting += (current != null) ? current.size() : 0;
+				}
+				if (waiting > 0) {
+					out.println(waiting + " post(s) not sent yet, they will be at the next login");
+				}
+				out.flush();
+				if (script != null) {
+					// The exit status tells whether the commands of the script failed
+					quitting = true;
+				} else {
+					System.exit(0);
+				}
+			} else if (cmd.equals("help") || script == null) {
 				printHelp();
+			} else {
+				error("unknown command " + cmd);
 			}
 		} catch (AuthenticationRequired e) {
 			error("You must first be logged in to perform this command");
@@ -460,25 +1437,50 @@ public class ConsoleClient implements InboxEventHandler {
 			error("You must first be connected to perform this command");
 		} catch (IOException e) {
 			error("Ooops !" + e.getMessage());
+		} catch (RuntimeException e) {
+			// A bug or an unexpected reply, a background command would lose it
+			failed(e);
+		} finally {
+			if (commandSession.get() == null) {
+				// Commands typed at the prompt may have prompted or printed on
+				// the screen, background ones only print messages
+				renderer.invalidate();
+			}
+			stats.command(findCommand(cmd) != null ? cmd : "unknown", System.nanoTime() - start);
 		}
 	}
 
-	private void connect(String server, Integer port) {
+	private void connect(String server, Integer port, boolean compressed) {
+		Session current = session();
 		try {
-			service.setCompressionEnabled(false);
-			service.setReconnectionAllowed(true);
-			service.connect(server, port, null);
+			current.service.setCompressionEnabled(compressed);
+			current.service.setReconnectionAllowed(true);
+			BandwidthMeter.setConnecting(current.bandwidth);
+			try {
+				current.service.connect(server, port, null);
+				current.port = port;
+			} finally {
+				BandwidthMeter.setConnecting(null);
+			}
 		} catch (ConnectionException e) {
-			e.printStackTrace();
+			failed(e);
 			return;
 		}
 
+		// Bring the inbox up to date whenever Smack reconnects
+		XMPPConnection connection = current.bandwidth.getConnection();
+		if (connection != null) {
+			connection.addConnectionListener(current.reconnection);
+			connection.addPacketWriterListener(current.loggedIn, new PacketTypeFilter(Presence.class));
+		}
+
 		// Update the prompt
-		reader.setDefaultPrompt("(" + service.getHostname() + ") ");
+		reader.setDefaultPrompt("(" + session().service.getHostname() + ") ");
 	}
 
 	private void disconnect() throws ConnectionRequired {
-		service.disconnect();
+		session().service.disconnect();
+		session().closeStore();
 		reader.setDefaultPrompt(DEFAULT_PROMPT);
 		out.println("You have been successfully disconected");
 	}
@@ -490,45 +1492,67 @@ public class ConsoleClient implements InboxEventHandler {
 		// Ask the user for data
 		String prompt = reader.getDefaultPrompt();
 		try {
-			username = reader.readLine("Username: ");
-			name = reader.readLine("Name: ");
-			email = reader.readLine("Email: ");
-			password = reader.readLine("Password: ", new Character('*'));
+			username = readLine("Username: ");
+			name = readLine("Name: ");
+			email = readLine("Email: ");
+			password = readLine("Password: ", new Character('*'));
 		} catch (IOException e) {
 			return;
 		}
 		reader.setDefaultPrompt(prompt);
 
 		// Prepare the request
-		service.register(username, password, name, email);
+		session().service.register(username, password, name, email);
 	}
 	
 	private void login (String username, String password) throws ConnectionRequired
 	{
-		
+		final Session current = session();
+		// Two sessions of a user would share, and corrupt, its inbox store and outbox
+		String user = username + "@" + current.service.getHostname();
+		for (Session each : sessions) {
+			if (each != current && user.equals(each.bareJid)) {
+				error(user + " is already logged in, in session " + each.number);
+				return;
+			}
+		}
+		// The posts of the previous user must not go out as the new one
+		current.closeOutbox();
 		try {
-			service.login(username, password, "console");
+			current.service.login(username, password, "console");
 		} catch (RequestException e1) {
-			e1.printStackTrace();
+			failed(e1);
 			return;
 		}
-		inbox = service.getInbox();
-		inbox.refresh();
-		inbox.registerInboxEventHandler(this);
-		render();
+		// Set the user
+		String jid = username + "@" + current.service.getHostname();
+		if (!jid.equals(current.bareJid)) {
+			// What we may see of the profiles depends on who we are
+			current.profiles.clear();
+			current.names.clear();
+		}
+		current.bareJid = jid;
+
+		// Paint the stored inbox, then fetch what was published since
+		current.openStore();
+		current.openOutbox();
+		current.downloaded = false;
+		current.inbox = current.service.getInbox();
+		current.inbox.registerInboxEventHandler(current.events);
+		if (script == null) {
+			render();
+		}
+		current.resync();
 
 		// Fetch the user profile
 		try {
-			profile = service.getProfile(null);
+			current.profile = current.profiles.get(jid);
 		} catch (RequestException e) {
 		} catch (AuthenticationRequired e) {
 		}
 
-		// Set the user
-		this.bareJid = username + "@" + service.getHostname();
-
 		// Restore the prompt
-		reader.setDefaultPrompt("(" + service.getUser() + ") ");
+		reader.setDefaultPrompt("(" + current.service.getUser() + ") ");
 	}
 
 	private void login(String username) throws ConnectionRequired {
@@ -538,7 +1562,7 @@ public class ConsoleClient implements InboxEventHandler {
 		// First get the password
 		String prompt = reader.getDefaultPrompt();
 		try {
-			password = reader.readLine("Password: ", new Character('*'));
+			password = readLine("Password: ", new Character('*'));
 		} catch (IOException e) {
 			password = null;
 		}
@@ -546,106 +1570,682 @@ public class ConsoleClient implements InboxEventHandler {
 		login (username, password);
 		
 	}
-	
-	private void upload() throws ConnectionRequired, AuthenticationRequired, IOException {
-		try {
-			reader.printString("Session ID: " + service.getUploadToken("0"));	
-		} catch (RequestException e) {
-			e.printStackTrace();
+	
+	private void upload() throws ConnectionRequired, AuthenticationRequired, IOException {
+		try {
+			reader.printString("Session ID: " + session().service.getUploadToken("0"));	
+		} catch (RequestException e) {
+			failed(e);
+		}
+	}
+
+	private void activities(String jid) throws ConnectionRequired, AuthenticationRequired {
+		try {
+			List<ActivityEntry> fetched = session().service.getActivities(jid);
+			if (fetched != null) {
+				for (ActivityEntry activity : fetched) {
+					session().index(activity);
+				}
+			}
+			// Activities also in the inbox or in other lists are kept once
+			final ActivityStore.View view = session().activityView(jid);
+			view.replace(fetched);
+			show(new Runnable() {
+				@Override
+				public void run() {
+					renderActivities(view);
+				}
+			});
+		} catch (RequestException e) {
+			failed(e);
+		}
+	}
+	
+	private void relations(String jid) throws ConnectionRequired, AuthenticationRequired {
+		try {
+			final List<Relation> relations = session().service.getRelations(jid);
+			show(new Runnable() {
+				@Override
+				public void run() {
+					renderRelations(relations);
+				}
+			});
+		} catch (RequestException e) {
+			failed(e);
+		}
+	}
+
+	private void inbox() throws ConnectionRequired, AuthenticationRequired {
+		session().refreshInbox();
+		render();
+	}
+
+	private InboxStore.Entry toStored(ActivityEntry activity) {
+		return new InboxStore.Entry(activity.getId(), activity.hasPublished() ? activity.getPublished().getTime() : Long.MIN_VALUE,
+				activity.hasActor() ? activity.getActor().getUri() : null, activity.hasTitle() ? activity.getTitle() : null);
+	}
+
+	private ActivityEntry toActivity(InboxStore.Entry stored) {
+		ActivityEntry entry = activityFactory.entry();
+		entry.setId(stored.id);
+		if (stored.published != Long.MIN_VALUE) {
+			entry.setPublished(new Date(stored.published));
+		}
+		if (stored.author != null) {
+			ActivityActor actor = activityFactory.actor();
+			actor.setUri(stored.author);
+			entry.setActor(actor);
+		}
+		if (stored.title != null) {
+			entry.setTitle(stored.title);
+		}
+		if (stored instanceof PubSubInbox.Item) {
+			// Fetched from the inbox node, with what the entry is about
+			PubSubInbox.Item item = (PubSubInbox.Item) stored;
+			for (String verb : item.verbs) {
+				entry.addVerb(activityFactory.verb(verb));
+			}
+			for (PubSubInbox.ItemObject fetched : item.objects) {
+				ActivityObject object = activityFactory.object();
+				if (fetched.type != null) {
+					object.setType(fetched.type);
+				}
+				for (PubSubInbox.ItemContent content : fetched.contents) {
+					object.addContent(atomFactory.content(content.value, content.type, null));
+				}
+				entry.addObject(object);
+			}
+		}
+		return entry;
+	}
+
+	private void subscribe(String user) throws ConnectionRequired, AuthenticationRequired {
+		try {
+			session().service.subscribe(user);
+		} catch (RequestException e) {
+			failed(e);
+		}
+	}
+
+	private void unsubscribe(String user) throws ConnectionRequired, AuthenticationRequired {
+		try {
+			session().service.unsubscribe(user);
+		} catch (RequestException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * @return true if the command works on the staged profile changes, which
+	 *         must stay in order with /set and /clear
+	 */
+	private boolean isProfileEdit(String cmd, List<String> args) {
+		return cmd.equals("profile") && args.size() == 1 && PROFILE_EDIT_ACTIONS.contains(args.get(0));
+	}
+
+	/**
+	 * @return true if the command takes a file of lines (@file [n]) and the
+	 *         arguments name one
+	 */
+	private boolean isBulk(String cmd, List<String> args) {
+		return BULK_COMMANDS.contains(cmd) && (args.size() == 1 || args.size() == 2) && args.get(0).startsWith("@")
+				&& args.get(0).length() > 1;
+	}
+
+	/**
+	 * Subscribe to or unsubscribe from all jids listed in a file, keeping
+	 * several requests in flight. Failed jids are written to file.retry.
+	 */
+	private void bulk(final String cmd, List<String> args) throws IOException {
+		final File input = new File(args.get(0).substring(1));
+		if (!canRunBulk(input)) {
+			return;
+		}
+
+		int inFlight = BulkRunner.defaultInFlight();
+		if (args.size() == 2) {
+			try {
+				inFlight = Integer.parseInt(args.get(1));
+			} catch (NumberFormatException e) {
+				badArgs(cmd);
+				return;
+			}
+		}
+
+		final boolean subscribe = cmd.equals("subscribe");
+		final File retry = new File(input.getPath() + ".retry");
+		final File rejects = new File(input.getPath() + ".invalid");
+		// The requests are made from the threads of the runner
+		final Session current = session();
+		BulkRunner runner = new BulkRunner(new BulkRunner.Operation() {
+			@Override
+			public void apply(String jid) throws Exception {
+				boolean done = subscribe ? current.service.subscribe(jid) : current.service.unsubscribe(jid);
+				if (!done) {
+					throw new IOException(cmd + " " + jid + " was refused");
+				}
+			}
+		}, inFlight, (script != null) ? null : new BulkRunner.Progress() {
+			@Override
+			public void report(BulkRunner runner) {
+				message(progress(cmd, runner));
+			}
+		});
+		runner.setRejects(rejects);
+		retry.delete();
+		rejects.delete();
+		runner.run(input, retry);
+
+		message(progress(cmd, runner) + (runner.isInterrupted() ? ", cancelled" : ", done"));
+		reportRejects(runner, rejects);
+		if (runner.getRetries() > 0) {
+			error(runner.getRetries() + " jid(s) to retry with /" + cmd + " @" + retry.getPath());
+		}
+	}
+
+	/**
+	 * Post the status updates of a file, one per line as plain text or as a
+	 * JSON object with status, to, acl and published fields. Posts are paced
+	 * to the given rate, failed ones are tried again after a delay, and the
+	 * progress is saved in file.checkpoint so that an interrupted import
+	 * resumes where it stopped.
+	 */
+	private void importFile(List<String> args) throws IOException {
+		final File input = new File(args.get(0));
+		if (!canRunBulk(input)) {
+			return;
+		}
+
+		double rate = 0;
+		if (args.size() < 2) {
+			// Not given, the rate set for all imports
+			String value = System.getProperty(IMPORT_RATE_PROPERTY, DEFAULT_IMPORT_RATE);
+			try {
+				rate = Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				// Reported below
+			}
+			if (!(rate > 0)) {
+				error(IMPORT_RATE_PROPERTY + " must be a positive number of posts per second, not " + value);
+				return;
+			}
+		}
+		int inFlight = BulkRunner.defaultInFlight();
+		try {
+			if (args.size() > 1) {
+				rate = Double.parseDouble(args.get(1));
+			}
+			if (args.size() > 2) {
+				inFlight = Integer.parseInt(args.get(2));
+			}
+		} catch (NumberFormatException e) {
+			badArgs("import");
+			return;
+		}
+		if (rate <= 0) {
+			badArgs("import");
+			return;
+		}
+
+		final File retry = new File(input.getPath() + ".retry");
+		final File checkpoint = new File(input.getPath() + ".checkpoint");
+		final File rejects = new File(input.getPath() + ".invalid");
+		final Session current = session();
+		BulkRunner runner = new BulkRunner(new BulkRunner.Operation() {
+			@Override
+			public void apply(String line) throws Exception {
+				if (!current.service.postActivity(importEntry(line))) {
+					throw new IOException("post was refused");
+				}
+			}
+		}, inFlight, (script != null) ? null : new BulkRunner.Progress() {
+			@Override
+			public void report(BulkRunner runner) {
+				message(progress("import", runner));
+			}
+		});
+		runner.setRateLimiter(new RateLimiter(rate, Math.max(1, (int) rate)));
+		runner.setRetries(IMPORT_RETRIES, IMPORT_BACKOFF);
+		runner.setCheckpoint(checkpoint);
+		runner.setRejects(rejects);
+		if (!checkpoint.exists()) {
+			retry.delete();
+			rejects.delete();
+		}
+		runner.run(input, retry);
+
+		message(progress("import", runner) + (runner.isInterrupted() ? ", cancelled at line " + runner.getCheckpoint()
+				+ ", run /import again to resume" : ", done"));
+		reportRejects(runner, rejects);
+		if (runner.getRetries() > 0) {
+			error(runner.getRetries() + " post(s) failed, to retry with /import " + retry.getPath());
+		}
+	}
+
+	/**
+	 * @return the activity to post for a line of an import file
+	 */
+	private ActivityEntry importEntry(String line) {
+		String status = line;
+		List<String> recipients = Collections.emptyList();
+		List<AclRule> rules = defaultRules;
+		Date published = null;
+
+		if (line.startsWith("{")) {
+			Map<String, Object> fields = JsonLine.parse(line);
+			status = JsonLine.string(fields, "status");
+			if (status == null) {
+				// As written by /export
+				status = JsonLine.string(fields, "title");
+			}
+			recipients = JsonLine.list(fields, "to");
+			String acl = JsonLine.string(fields, "acl");
+			if (acl != null) {
+				rules = aclRules(acl);
+			}
+			String date = JsonLine.string(fields, "published");
+			if (date != null) {
+				SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+				format.setTimeZone(TimeZone.getTimeZone("UTC"));
+				try {
+					published = format.parse(date);
+				} catch (ParseException e) {
+					throw new IllegalArgumentException("expecting published as yyyy-mm-ddThh:mm:ssZ: " + date);
+				}
+			}
+		}
+		if (status == null || status.length() == 0) {
+			throw new IllegalArgumentException("no status");
+		}
+
+		ActivityEntry entry = statusEntry(status, rules);
+		if (published != null) {
+			entry.setPublished(published);
+		}
+		for (String recipient : recipients) {
+			entry.addRecipient(atomFactory.reply(null, recipient, null, null));
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the rules for an access setting of an import file: everyone,
+	 *         nobody, group:name or person:jid
+	 */
+	private List<AclRule> aclRules(String acl) {
+		if (acl.equals("everyone")) {
+			return aclRules(aclFactory.aclAction(AclAction.ACTION_VIEW, AclAction.PERMISSION_GRANT),
+					aclFactory.aclSubject(null, AclSubject.EVERYONE));
+		} else if (acl.equals("nobody")) {
+			return aclRules(aclFactory.aclAction(AclAction.ACTION_VIEW, AclAction.PERMISSION_DENY),
+					aclFactory.aclSubject(null, AclSubject.EVERYONE));
+		} else if (acl.startsWith("group:")) {
+			return aclRules(aclFactory.aclAction(AclAction.ACTION_VIEW, AclAction.PERMISSION_GRANT),
+					aclFactory.aclSubject(acl.substring(6), AclSubject.GROUP));
+		} else if (acl.startsWith("person:")) {
+			return aclRules(aclFactory.aclAction(AclAction.ACTION_VIEW, AclAction.PERMISSION_GRANT),
+					aclFactory.aclSubject(acl.substring(7), AclSubject.PERSON));
+		}
+		throw new IllegalArgumentException("expecting acl as everyone, nobody, group:name or person:jid: " + acl);
+	}
+
+	private List<AclRule> aclRules(AclAction action, AclSubject subject) {
+		AclRule aclRule = aclFactory.aclRule();
+		aclRule.addAction(action);
+		aclRule.addSubject(subject);
+
+		List<AclRule> aclRules = new ArrayList<AclRule>();
+		aclRules.add(aclRule);
+		return aclRules;
+	}
+
+	/**
+	 * Check that a bulk command can start.
+	 */
+	private boolean canRunBulk(File input) {
+		if (!input.isFile()) {
+			error("cannot read " + input);
+			return false;
+		}
+		return canSend();
+	}
+
+	/**
+	 * Check that requests can be sent for the current user.
+	 */
+	private boolean canSend() {
+		if (!session().service.isConnected()) {
+			error("You must first be connected to perform this command");
+			return false;
+		}
+		if (session().bareJid == null) {
+			error("You must first be logged in to perform this command");
+			return false;
+		}
+		return true;
+	}
+
+	private String progress(String cmd, BulkRunner runner) {
+		return String.format("%s: %d sent, %d ok, %d failed, %d invalid, %.1f/s", cmd, runner.getSubmitted(),
+				runner.getSucceeded(), runner.getFailed(), runner.getRejected(), runner.getThroughput());
+	}
+
+	/**
+	 * Tell where the lines rejected as invalid by a bulk command went; they
+	 * are not retried, they need fixing first.
+	 */
+	private void reportRejects(BulkRunner runner, File rejects) {
+		if (runner.getRejected() > 0) {
+			error(runner.getRejected() + " invalid line(s), with the reason, in " + rejects.getPath());
+		}
+	}
+
+	/**
+	 * Write a list to a file, one record at a time.
+	 */
+	private void export(String what, String jid, String path) throws ConnectionRequired, AuthenticationRequired,
+			IOException {
+		File file = new File(path);
+		List<ActivityEntry> activities = null;
+		List<Relation> relations = null;
+		List<String> jids = null;
+		try {
+			if (what.equals("inbox")) {
+				activities = session().inboxEntries();
+			} else if (what.equals("activities")) {
+				activities = session().service.getActivities(jid);
+			} else if (what.equals("relations")) {
+				relations = session().service.getRelations(jid);
+			} else if (what.equals("subscribers")) {
+				jids = session().service.getSubscribers(jid);
+			} else if (what.equals("subscriptions")) {
+				jids = session().service.getSubscriptions(jid);
+			} else {
+				badArgs("export");
+				return;
+			}
+		} catch (RequestException e) {
+			failed(e);
+			return;
+		}
+
+		ExportWriter writer = new ExportWriter(file, ExportWriter.Format.of(file), what + (jid != null ? " of " + jid : ""),
+				jid != null ? jid : session().bareJid);
+		try {
+			if (activities != null) {
+				for (ActivityEntry activity : activities) {
+					String author = activity.hasActor() ? activity.getActor().getUri() : null;
+					String name = activity.hasActor() ? activity.getActor().getName() : null;
+					writer.activity(activity.getId(), activity.hasPublished() ? activity.getPublished() : null,
+							activity.hasUpdated() ? activity.getUpdated() : null, author,
+							(name != null && name.length() > 0) ? name : session().names.display(author),
+							activity.hasTitle() ? activity.getTitle() : null, content(activity));
+				}
+			}
+			if (relations != null) {
+				for (Relation relation : relations) {
+					writer.relation(relation.hasId() ? relation.getId() : null,
+							relation.hasPublished() ? relation.getPublished() : null,
+							relation.hasFrom() ? relation.getFrom() : null, relation.hasTo() ? relation.getTo() : null,
+							relation.hasNature() ? relation.getNature() : null,
+							relation.hasStatus() ? relation.getStatus() : null,
+							relation.hasMessage() ? relation.getMessage() : null);
+				}
+			}
+			if (jids != null) {
+				for (String subscriber : jids) {
+					writer.jid(subscriber);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		message("Exported " + writer.getRecords() + " records (" + writer.getBytes() + " bytes) to " + file);
+	}
+
+	private void search(String text) {
+		SearchIndex.Query query;
+		try {
+			query = SearchIndex.parse(text);
+		} catch (IllegalArgumentException e) {
+			error(e.getMessage());
+			return;
+		}
+		if (query.isEmpty()) {
+			badArgs("search");
+			return;
+		}
+		final List<SearchIndex.Hit> hits = session().searchIndex.search(query, MAX_HITS);
+		if (hits.isEmpty()) {
+			message("No match in " + session().searchIndex.size() + " entries");
+			return;
+		}
+		show(new Runnable() {
+			@Override
+			public void run() {
+				renderHits(hits);
+			}
+		});
+	}
+
+	private void sessions() {
+		final List<String> lines = new ArrayList<String>();
+		for (Session each : sessions) {
+			List<ActivityEntry> entries = each.inboxEntries();
+			lines.add(String.format("(%d) %s, %s, %d inbox entries%s", each.number,
+					each.bareJid != null ? each.bareJid : "not logged in",
+					each.direct.isConnected() ? "connected" : "not connected", entries != null ? entries.size() : 0,
+					each == onScreen ? " (on screen)" : ""));
 		}
+		show(new Runnable() {
+			@Override
+			public void run() {
+				render("Sessions", lines);
+			}
+		});
 	}
 
-	private void activities(String jid) throws ConnectionRequired, AuthenticationRequired {
-		try {
-			renderActivities(service.getActivities(jid));
-		} catch (RequestException e) {
-			e.printStackTrace();
+	/**
+	 * @return the session with the given number or user, null if none
+	 */
+	private Session findSession(String key) {
+		for (Session each : sessions) {
+			if (key.equals(String.valueOf(each.number)) || key.equals(each.bareJid)) {
+				return each;
+			}
 		}
+		return null;
 	}
-	
-	private void relations(String jid) throws ConnectionRequired, AuthenticationRequired {
-		try {
-			renderRelations(service.getRelations(jid));
-		} catch (RequestException e) {
-			e.printStackTrace();
+
+	/**
+	 * Put another session on screen. Its inbox is painted from memory, it
+	 * was kept up to date in the background.
+	 */
+	private void switchTo(Session target) {
+		if (target == onScreen) {
+			return;
+		}
+		// The pending requests of the session being left go on in the background
+		onScreen.prompt = reader.getDefaultPrompt();
+		onScreen = target;
+		reader.setDefaultPrompt(target.prompt);
+		renderer.invalidate();
+		if (target.bareJid != null) {
+			render();
+		} else {
+			sessions();
 		}
 	}
 
-	private void inbox() throws ConnectionRequired, AuthenticationRequired {
-		inbox.refresh();
-		render();
+	private void closeSession(String key) {
+		Session target = findSession(key);
+		if (target == null) {
+			error("no session " + key);
+			return;
+		}
+		if (sessions.size() == 1) {
+			error("cannot close the only session");
+			return;
+		}
+		sessions.remove(target);
+		if (target == onScreen) {
+			switchTo(sessions.get(0));
+		}
+		commandExecutor.cancel(target);
+		if (target.direct.isConnected()) {
+			try {
+				target.service.disconnect();
+			} catch (ConnectionRequired e) {
+				// Already gone
+			}
+		}
+		target.closeStore();
+		target.closeOutbox();
+		target.dropViews();
+		target.profiles.shutdown();
+		target.names.shutdown();
 	}
 
-	private void subscribe(String user) throws ConnectionRequired, AuthenticationRequired {
-		try {
-			service.subscribe(user);
-		} catch (RequestException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	private void bandwidth() {
+		final List<String> lines = new ArrayList<String>();
+		for (Session each : sessions) {
+			String state = !each.bandwidth.isAttached() ? "no XMPP connection metered"
+					: each.bandwidth.isCompressed() ? "stream compression on" : "stream compression off";
+			lines.add(String.format("(%d) %s, %s", each.number, each.bareJid != null ? each.bareJid : "not logged in", state));
+			if (each.bandwidth.isAttached()) {
+				lines.addAll(each.bandwidth.report());
+			}
 		}
+		show(new Runnable() {
+			@Override
+			public void run() {
+				render("Bandwidth", lines);
+			}
+		});
 	}
 
-	private void unsubscribe(String user) throws ConnectionRequired, AuthenticationRequired {
-		try {
-			service.unsubscribe(user);
-		} catch (RequestException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	private void outbox() {
+		Outbox current = session().outbox;
+		if (current == null) {
+			error("You must first be logged in to perform this command");
+			return;
+		}
+		final List<String> lines = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		long oldest = current.getOldest();
+		lines.add(String.format("%d waiting%s, %d sent, %d dropped, %s", current.size(),
+				oldest > 0 ? String.format(" (oldest %.1f s ago)", (now - oldest) / 1000.0) : "", current.getSent(),
+				current.getDropped(), session().poster.isReady() ? "connected" : "not connected"));
+		if (current.getLastError() != null) {
+			lines.add("last error: " + current.getLastError());
 		}
+		for (Outbox.Item item : current.items()) {
+			lines.add(String.format("%6.1f s  %-8s %s%s", (now - item.queued) / 1000.0, item.acl,
+					item.recipient != null ? "@" + item.recipient + " " : "", item.message));
+		}
+		show(new Runnable() {
+			@Override
+			public void run() {
+				render("Outbox", lines);
+			}
+		});
+	}
+
+	private void stats() {
+		final List<String> lines = stats.report(session().events);
+		show(new Runnable() {
+			@Override
+			public void run() {
+				render("Statistics", lines);
+			}
+		});
+	}
+
+	private void cache() {
+		final ProfileCache profiles = session().profiles;
+		final NameResolver names = session().names;
+		final List<String> lines = new ArrayList<String>();
+		lines.add(String.format("profiles: %d entries, %d hits, %d stale hits, %d misses, %d evictions, %d refreshes (%d failed)",
+				profiles.size(), profiles.getHits(), profiles.getStaleHits(), profiles.getMisses(),
+				profiles.getEvictions(), profiles.getRefreshes(), profiles.getRefreshFailures()));
+		lines.add(String.format("names: %d entries, %d resolved, %d failed", names.size(),
+				names.getResolved(), names.getFailures()));
+		lines.add(String.format("rows: %d entries, %d hits, %d misses", rowFormatter.size(), rowFormatter.getHits(),
+				rowFormatter.getMisses()));
+		lines.add(String.format("activities: %d entries, %d lists holding %d", activityStore.size(),
+				activityStore.getViews(), activityStore.getViewEntries()));
+		show(new Runnable() {
+			@Override
+			public void run() {
+				render("Caches", lines);
+			}
+		});
 	}
 
 	private void profile(String user) throws ConnectionRequired, AuthenticationRequired {
 		try {
-			Profile userProfile = service.getProfile(user);
+			final Profile userProfile = session().profiles.get(user);
 			if (userProfile != null) {
-				render(userProfile);
+				show(new Runnable() {
+					@Override
+					public void run() {
+						render(userProfile);
+					}
+				});
 			}
 		} catch (RequestException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 	
-	private void subscriptions(String jid) throws ConnectionRequired, AuthenticationRequired {
+	private void subscriptions(final String jid) throws ConnectionRequired, AuthenticationRequired {
 		try {
-			List<String> subscriptions = service.getSubscriptions(jid);
+			final List<String> subscriptions = session().service.getSubscriptions(jid);
 			if (subscriptions != null && subscriptions.size() > 0) {
-				render("Subscriptions of " + jid, subscriptions);
+				show(new Runnable() {
+					@Override
+					public void run() {
+						render("Subscriptions of " + jid, subscriptions);
+					}
+				});
 			}
 		} catch (RequestException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 	
-	private void subscribers(String jid) throws ConnectionRequired, AuthenticationRequired {
+	private void subscribers(final String jid) throws ConnectionRequired, AuthenticationRequired {
 		try {
-			List<String> subscribers = service.getSubscribers(jid);
+			final List<String> subscribers = session().service.getSubscribers(jid);
 			if (subscribers != null && subscribers.size() > 0) { 
-				render("Subscribers to " + jid, subscribers);
+				show(new Runnable() {
+					@Override
+					public void run() {
+						render("Subscribers to " + jid, subscribers);
+					}
+				});
 			}
 		} catch (RequestException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 
 	private void addRelation() throws IOException, AuthenticationRequired, ConnectionRequired {
 		final String prompt = reader.getDefaultPrompt();
-		String user = reader.readLine("User :");
-		String nature = reader.readLine("Nature :");
-		String message = reader.readLine("Message :");
+		String user = readLine("User :");
+		String nature = readLine("Nature :");
+		String message = readLine("Message :");
 
 		try {
 			Relation relation = relationFactory.relation();
 			relation.setNature(nature);
 			relation.setStatus(Relation.Status.REQUEST);
-			relation.setFrom(bareJid);
+			relation.setFrom(session().bareJid);
 			relation.setTo(user);
 			relation.setMessage(message);
-			service.addRelation(relation);
+			session().service.addRelation(relation);
 		} catch (RequestException e) {
-			e.printStackTrace();
+			failed(e);
 		}
 
 		reader.printString("Relation request sent.");
@@ -654,15 +2254,15 @@ public class ConsoleClient implements InboxEventHandler {
 	
 	private void updateRelation(String id) throws IOException, AuthenticationRequired, ConnectionRequired {
 		final String prompt = reader.getDefaultPrompt();
-		String status = reader.readLine("Status :");
+		String status = readLine("Status :");
 		
 		try {
 			Relation relation = relationFactory.relation();
 			relation.setId(id);
 			relation.setStatus(status);
-			service.updateRelation(relation);
+			session().service.updateRelation(relation);
 		} catch (RequestException e) {
-			e.printStackTrace();
+			failed(e);
 		}
 
 		reader.printString("Relation update sent.");
@@ -670,243 +2270,303 @@ public class ConsoleClient implements InboxEventHandler {
 	}
 
 
+	/**
+	 * Set a field of the profile. While a /profile edit is open, the field is
+	 * staged; otherwise it is sent at once, unless it has not changed.
+	 */
 	private void setProfileKey(String key) throws ConnectionRequired, AuthenticationRequired, IOException {
-		if (profile == null) {
-			profile = profileFactory.profile();
-			profile.setUserId(bareJid);
+		String label = PROFILE_PROMPTS.get(key);
+		if (label == null) {
+			error("expecting one of " + Joiner.on(", ").join(PROFILE_PROMPTS.keySet()));
+			return;
 		}
-		
+
 		final String prompt = reader.getDefaultPrompt();
-		
+		String value = readLine(label);
+		reader.setDefaultPrompt(prompt);
+		if (value == null) {
+			return;
+		}
+
+		Field field;
+		try {
+			field = profileField(key, value);
+		} catch (IllegalArgumentException e) {
+			error(e.getMessage());
+			return;
+		}
+
+		ProfileEdit edit = session().profileEdit;
+		if (edit != null) {
+			edit.set(field);
+			message("Staged, /profile commit to send");
+		} else {
+			edit = new ProfileEdit();
+			edit.set(field);
+			commitProfile(edit);
+		}
+	}
+
+	/**
+	 * Remove all the fields of a name from the profile, staged while a
+	 * /profile edit is open.
+	 */
+	private void clear(String key) throws ConnectionRequired, AuthenticationRequired {
+		ProfileEdit edit = session().profileEdit;
+		if (edit != null) {
+			edit.clear(key);
+			message("Staged, /profile commit to send");
+		} else {
+			edit = new ProfileEdit();
+			edit.clear(key);
+			commitProfile(edit);
+		}
+	}
+
+	/**
+	 * @return a new field of the profile, visible to the default audience
+	 * @throws IllegalArgumentException
+	 *             if the name or the value is not valid
+	 */
+	private Field profileField(String key, String value) {
+		Field field;
 		if (key.equals(PhotoField.NAME)) {
-			String value = reader.readLine("Photo uri :");
-			Field field = profileFactory.photo(value);
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(PhotoField.NAME)) {
-				profile.removeAll(PhotoField.NAME);
-			}
-			
-			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
-			}
+			field = profileFactory.photo(value);
 		} else if (key.equals(BirthdayField.NAME)) {
-			String value = reader.readLine("Birthday :");
-			Field field = profileFactory.birthday();
-			try {
-				Date date=new SimpleDateFormat("dd/MM/yyyy").parse(value);
-				 field = profileFactory.birthday(date);
-			}catch (ParseException e)
-			{			
-			}
-			
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(BirthdayField.NAME)) {
-				profile.removeField(profile.getField(BirthdayField.NAME));
-			}
-			
 			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
-			}
-		}  
-		else if (key.equals(GenderField.NAME)) {
-			String value = reader.readLine("Gender :");
-			Field field = profileFactory.gender();
-			try {
-				 int gender=Integer.parseInt(value);
-				 switch (gender) {
-				case 0:
-					field = profileFactory.gender(GenderField.Type.NOTKNOWN);;
-					break;
-				case 1:
-					field = profileFactory.gender(GenderField.Type.MALE);;
-					break;
-				case 2:
-					field = profileFactory.gender(GenderField.Type.FEMALE);;
-					break;
-				case 3:
-					field = profileFactory.gender(GenderField.Type.NOTAPPLICABLE);;
-					break;
-				}
-				 
-			}catch (Exception e)
-			{			
-				e.printStackTrace();
+				field = profileFactory.birthday(new SimpleDateFormat("dd/MM/yyyy").parse(value));
+			} catch (ParseException e) {
+				throw new IllegalArgumentException("expecting a birthday as dd/MM/yyyy, not " + value);
 			}
-			
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(GenderField.NAME)) {
-				profile.removeField(profile.getField(GenderField.NAME));
-			}
-			
+		} else if (key.equals(GenderField.NAME)) {
+			GenderField.Type[] types = GenderField.Type.values();
+			int gender;
 			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
+				gender = Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				gender = -1;
 			}
-		}	
-		
-		else if (key.equals(FullNameField.NAME)) {
-			String value = reader.readLine("Display name :");
-			Field field = profileFactory.fullname(value);
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(FullNameField.NAME)) {
-				profile.removeField(profile.getField(FullNameField.NAME));
-			}
-			
-			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
-			}
-		} 
-		else if (key.equals(NoteField.NAME)) {
-			String value = reader.readLine("Bio :");
-			Field field = profileFactory.note(value);
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(NoteField.NAME)) {
-				profile.removeField(profile.getField(NoteField.NAME));
+			if (gender < 0 || gender >= types.length) {
+				throw new IllegalArgumentException("expecting a gender from 0 to " + (types.length - 1) + ", not " + value);
 			}
-			
-			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
-			}
-		}  else if (key.equals(URLField.NAME)) {
-			String value = reader.readLine("Url :");
-			Field field = profileFactory.url(value);
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(URLField.NAME)) {
-				profile.removeField(profile.getField(URLField.NAME));
+			field = profileFactory.gender(types[gender]);
+		} else if (key.equals(FullNameField.NAME)) {
+			field = profileFactory.fullname(value);
+		} else if (key.equals(NoteField.NAME)) {
+			field = profileFactory.note(value);
+		} else if (key.equals(URLField.NAME)) {
+			field = profileFactory.url(value);
+		} else if (key.equals(TimeZoneField.NAME)) {
+			field = profileFactory.timeZone(value);
+		} else if (key.equals(EmailField.NAME)) {
+			field = profileFactory.email(value);
+		} else if (key.equals(TelField.NAME)) {
+			field = profileFactory.tel(value);
+		} else {
+			throw new IllegalArgumentException("unknown profile field " + key);
+		}
+		field.setAclRules(defaultRules);
+		return field;
+	}
+
+	/**
+	 * Start, show, send or discard a batch of changes to the profile.
+	 */
+	private void profileEdit(String action) throws ConnectionRequired, AuthenticationRequired {
+		Session current = session();
+		ProfileEdit edit = current.profileEdit;
+		if (action.equals("edit")) {
+			if (!canSend()) {
+				return;
 			}
-			
-			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
-			}
-		}  else if (key.equals(TimeZoneField.NAME)) {
-			String value = reader.readLine("TimeZone :");
-			Field field = profileFactory.timeZone(value);
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(TimeZoneField.NAME)) {
-				profile.removeField(profile.getField(TimeZoneField.NAME));
+			if (edit == null) {
+				current.profileEdit = new ProfileEdit();
 			}
-			
+			message("Editing the profile: /set and /clear are staged until /profile commit or abort");
+		} else if (edit == null) {
+			error("No profile edit, start one with /profile edit");
+		} else if (action.equals("diff")) {
+			final List<String> lines;
 			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
+				lines = edit.describe(current.profiles.get(current.bareJid));
+			} catch (RequestException e) {
+				failed(e);
+				return;
 			}
-		} else if (key.equals(EmailField.NAME)) {
-			String value = reader.readLine("Email :");
-			Field field = profileFactory.email(value);
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(EmailField.NAME)) {
-				profile.removeAll(EmailField.NAME);
+			show(new Runnable() {
+				@Override
+				public void run() {
+					render("Staged profile changes", lines);
+				}
+			});
+		} else if (action.equals("commit")) {
+			if (commitProfile(edit)) {
+				current.profileEdit = null;
 			}
-			
-			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
-			}
-		}  else if (key.equals(TelField.NAME)) {
-			String value = reader.readLine("Tel :");
-			Field field = profileFactory.tel(value);
-			field.setAclRules(defaultRules);
-			
-			if (profile.hasField(TelField.NAME)) {
-				profile.removeAll(TelField.NAME);
+		} else {
+			current.profileEdit = null;
+			message("Profile edit discarded");
+		}
+	}
+
+	/**
+	 * Send, in a single update, the staged fields that differ from the
+	 * profile on the server; nothing if none does. The profile is fetched
+	 * again first, the cached copy may miss changes made elsewhere, which the
+	 * update would otherwise erase.
+	 * 
+	 * @return false if the update failed, the changes are still staged
+	 */
+	private boolean commitProfile(ProfileEdit edit) throws ConnectionRequired, AuthenticationRequired {
+		if (!canSend()) {
+			return false;
+		}
+		Session current = session();
+		Profile profile;
+		try {
+			// The server knows who we are
+			Profile fresh = current.service.getProfile(null);
+			profile = edit.apply(fresh, current.bareJid, profileFactory);
+			if (profile == null) {
+				if (fresh != null) {
+					current.profiles.put(current.bareJid, fresh);
+				}
+				message("Profile unchanged, nothing sent");
+				return true;
 			}
-			
-			try {
-				profile.addField(field);
-			} catch (UnsupportedFieldException e) {
-				e.printStackTrace();
-			} catch (CardinalityException e) {
-				e.printStackTrace();
+			if (!current.service.setProfile(profile)) {
+				error("The profile update was refused");
+				return false;
 			}
-		}  			
-		
-		try {
-			service.setProfile(profile);
 		} catch (RequestException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			failed(e);
+			return false;
+		} catch (UnsupportedFieldException e) {
+			failed(e);
+			return false;
+		} catch (CardinalityException e) {
+			failed(e);
+			return false;
 		}
-		
-		reader.printString("Profile updated.");
-		reader.setDefaultPrompt(prompt);
+
+		// What was sent is now the server copy
+		current.profile = profile;
+		current.profiles.put(current.bareJid, profile);
+		current.names.invalidate(current.bareJid);
+		message("Profile updated");
+		return true;
 	}
 
-	private void clear(String key) throws ConnectionRequired, AuthenticationRequired {
-		if (profile != null) {
-			for (Iterator<Field> i = profile.getFields().iterator(); i.hasNext();) {
-				Field field = i.next();
-				if (field.getName().equals(key)) {
-					i.remove();
+	/**
+	 * Set the profiles of the accounts listed in a file, on the server of the
+	 * current connection. Each line is a JSON object with the user and
+	 * password of an account and the fields to set, an empty value clearing
+	 * the field:
+	 * {"user": "alice", "password": "secret", "fullname": "Alice", "tel": ""}
+	 * Each account logs in on a connection of its own, and its profile is only
+	 * sent if a field changed. Failed accounts are written to file.retry.
+	 */
+	private void provision(final String cmd, List<String> args) throws IOException {
+		final File input = new File(args.get(0).substring(1));
+		if (!input.isFile()) {
+			error("cannot read " + input);
+			return;
+		}
+		if (!session().service.isConnected()) {
+			error("You must first be connected to perform this command");
+			return;
+		}
+
+		int inFlight = BulkRunner.defaultInFlight();
+		if (args.size() == 2) {
+			try {
+				inFlight = Integer.parseInt(args.get(1));
+			} catch (NumberFormatException e) {
+				badArgs(cmd);
+				return;
+			}
+		}
+
+		final String host = session().service.getHostname();
+		final Integer port = session().port;
+		final AtomicInteger updated = new AtomicInteger();
+		final AtomicInteger unchanged = new AtomicInteger();
+		final File retry = new File(input.getPath() + ".retry");
+		final File rejects = new File(input.getPath() + ".invalid");
+		BulkRunner runner = new BulkRunner(new BulkRunner.Operation() {
+			@Override
+			public void apply(String line) throws Exception {
+				Map<String, Object> account = JsonLine.parse(line);
+				String user = JsonLine.string(account, "user");
+				String password = JsonLine.string(account, "password");
+				if (user == null || password == null) {
+					throw new IllegalArgumentException("expecting a user and a password");
+				}
+				ProfileEdit edit = new ProfileEdit();
+				for (String key : account.keySet()) {
+					if (key.equals("user") || key.equals("password")) {
+						continue;
+					}
+					if (!PROFILE_PROMPTS.containsKey(key)) {
+						throw new IllegalArgumentException("unknown profile field " + key);
+					}
+					String value = JsonLine.string(account, key);
+					if (value == null || value.isEmpty()) {
+						edit.clear(key);
+					} else {
+						edit.set(profileField(key, value));
+					}
+				}
+
+				String jid = user.contains("@") ? user : user + "@" + host;
+				OswService service = oswServiceFactory.createService();
+				service.connect(host, port, null);
+				try {
+					if (!service.login(user, password, "provision")) {
+						throw new IOException("cannot log in as " + jid);
+					}
+					Profile profile = edit.apply(service.getProfile(jid), jid, profileFactory);
+					if (profile == null) {
+						unchanged.incrementAndGet();
+						return;
+					}
+					if (!service.setProfile(profile)) {
+						throw new IOException("the profile of " + jid + " was refused");
+					}
+					updated.incrementAndGet();
+					for (Session each : sessions) {
+						each.profiles.invalidate(jid);
+						each.names.invalidate(jid);
+					}
+				} finally {
+					service.disconnect();
 				}
 			}
-			try {
-				service.setProfile(profile);
-			} catch (RequestException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		}, inFlight, (script != null) ? null : new BulkRunner.Progress() {
+			@Override
+			public void report(BulkRunner runner) {
+				message(progress(cmd, runner));
 			}
+		});
+		runner.setRejects(rejects);
+		retry.delete();
+		rejects.delete();
+		runner.run(input, retry);
+
+		message(String.format("%s, %d updated, %d unchanged%s", progress(cmd, runner), updated.get(), unchanged.get(),
+				runner.isInterrupted() ? ", cancelled" : ", done"));
+		reportRejects(runner, rejects);
+		if (runner.getRetries() > 0) {
+			error(runner.getRetries() + " account(s) to retry with /" + cmd + " @" + retry.getPath());
 		}
 	}
 
 	private void shout(String recipient) throws ConnectionRequired, AuthenticationRequired, IOException {
 
 		final String prompt = reader.getDefaultPrompt();
-		String message = reader.readLine("Message :");
+		String message = readLine("Message :");
 		
-		ActivityObject object = activityFactory.object();
-		object.setType(ActivityObject.STATUS_UPDATE);
-		object.addContent(atomFactory.content(message, "text/plain", null));
-
-		ActivityEntry entry = activityFactory.entry();
-		entry.setPublished(Calendar.getInstance().getTime());
-		entry.addVerb(activityFactory.verb(ActivityVerb.POST));
-		entry.addObject(object);
-		entry.setAclRules(defaultRules);
-		entry.setTitle(message);
-		entry.addRecipient(atomFactory.reply(null, recipient, null, null));
-
-		try {
-			service.postActivity(entry);
-		} catch (RequestException e) {
-			e.printStackTrace();
-		}
+		post(message, recipient);
 		
 		reader.setDefaultPrompt(prompt);
 
@@ -917,57 +2577,95 @@ public class ConsoleClient implements InboxEventHandler {
 				return;
 			}
 
-			ActivityObject object = activityFactory.object();
-			object.setType(ActivityObject.STATUS_UPDATE);
-			object.addContent(atomFactory.content(message, "text/plain", null));
-
-			ActivityEntry entry = activityFactory.entry();
-			entry.setPublished(Calendar.getInstance().getTime());
-			entry.addVerb(activityFactory.verb(ActivityVerb.POST));
-			entry.addObject(object);
-			entry.setAclRules(defaultRules);
-			entry.setTitle(message);
+			post(message, null);
+	}
 
+	/**
+	 * Queue a status update, or a shout to the given recipient, in the
+	 * outbox. It is posted in the background, once the connection is back if
+	 * it is lost. A script posts at once instead, and the command fails if the
+	 * post does.
+	 */
+	private void post(String message, String recipient) {
+		if (message == null || message.isEmpty()) {
+			return;
+		}
+		Outbox current = session().outbox;
+		if (current == null) {
+			error("You must first be logged in to perform this command");
+			return;
+		}
+		if (script != null) {
+			// A script tells from the command whether the post went out, and
+			// may exit before the outbox sends it
 			try {
-				service.postActivity(entry);
-			} catch (RequestException e) {
-				e.printStackTrace();
+				session().poster.send(new Outbox.Item(0, System.currentTimeMillis(), message, recipient, defaultAcl));
+			} catch (Exception e) {
+				failed(e);
 			}
+			return;
+		}
+		try {
+			current.add(message, recipient, defaultAcl);
+		} catch (IOException e) {
+			error("Could not save the post: " + e.getMessage());
+			return;
+		}
+		if (!session().poster.isReady()) {
+			message("Not connected, the post will be sent once the connection is back (see /outbox)");
+		}
+	}
+
+	/**
+	 * @return a new status update posted now
+	 */
+	private ActivityEntry statusEntry(String message, List<AclRule> rules) {
+		ActivityObject object = activityFactory.object();
+		object.setType(ActivityObject.STATUS_UPDATE);
+		object.addContent(atomFactory.content(message, "text/plain", null));
+
+		ActivityEntry entry = activityFactory.entry();
+		entry.setPublished(Calendar.getInstance().getTime());
+		entry.addVerb(activityFactory.verb(ActivityVerb.POST));
+		entry.addObject(object);
+		entry.setAclRules(rules);
+		entry.setTitle(message);
+		return entry;
 	}
 
 	public void privacy() throws IOException {
-		final List<AclRule> aclRules = new ArrayList<AclRule>();
-		final AclRule aclRule = aclFactory.aclRule();
 		final String prompt = reader.getDefaultPrompt();
 		AclSubject subject;
 		AclAction action;
 
-		String mode = reader.readLine("Privacy mode [E/G/I/N] ?");
+		String mode = readLine("Privacy mode [E/G/I/N] ?");
+
+		String acl;
 
 		if (mode.equalsIgnoreCase("e")) {
 			action = aclFactory.aclAction(AclAction.ACTION_VIEW, AclAction.PERMISSION_GRANT);
 			subject = aclFactory.aclSubject(null, AclSubject.EVERYONE);
+			acl = "everyone";
 		} else if (mode.equalsIgnoreCase("g")) {
-			String group = reader.readLine("Group name: ");
+			String group = readLine("Group name: ");
 			action = aclFactory.aclAction(AclAction.ACTION_VIEW, AclAction.PERMISSION_GRANT);
 			subject = aclFactory.aclSubject(group, AclSubject.GROUP);
+			acl = "group:" + group;
 		} else if (mode.equalsIgnoreCase("i")) {
-			String user = reader.readLine("User id: ");
+			String user = readLine("User id: ");
 			action = aclFactory.aclAction(AclAction.ACTION_VIEW, AclAction.PERMISSION_GRANT);
 			subject = aclFactory.aclSubject(user, AclSubject.PERSON);
+			acl = "person:" + user;
 		} else if (mode.equalsIgnoreCase("n")) {
 			action = aclFactory.aclAction(AclAction.ACTION_VIEW, AclAction.PERMISSION_DENY);
 			subject = aclFactory.aclSubject(null, AclSubject.EVERYONE);
+			acl = "nobody";
 		} else {
 			return;
 		}
 
-		aclRule.addAction(action);
-		aclRule.addSubject(subject);
-
-		aclRules.add(aclRule);
-
-		defaultRules = aclRules;
+		defaultRules = aclRules(action, subject);
+		defaultAcl = acl;
 
 		reader.printString("Your privacy has changed.");
 		reader.setDefaultPrompt(prompt);
@@ -1006,6 +2704,11 @@ public class ConsoleClient implements InboxEventHandler {
 	}
 
 	private void message(String message) {
+		if (script != null) {
+			out.println("\t" + message);
+			return;
+		}
+
 		StringBuilder buf = new StringBuilder();
 		// Save the current position
 		buf.append(ANSIBuffer.ANSICodes.save());
@@ -1019,14 +2722,45 @@ public class ConsoleClient implements InboxEventHandler {
 		// Restore cursor
 		buf.append(ANSIBuffer.ANSICodes.restore());
 
-		out.print(buf);
-		out.flush();
+		// The message scrolled the rows up, only its own row is repainted
+		renderer.print(buf);
 	}
 
 	private void error(String message) {
+		if (script != null) {
+			failure = message;
+			return;
+		}
 		message("Error: " + message);
 	}
 
+	/**
+	 * Report a request that failed.
+	 */
+	private void failed(Exception e) {
+		if (script != null) {
+			failure = e.getClass().getSimpleName() + (e.getMessage() != null ? ": " + e.getMessage() : "");
+		} else {
+			e.printStackTrace();
+			renderer.invalidate();
+		}
+	}
+
+	/**
+	 * Prompt the user for a value. In batch mode, the value is the next line
+	 * of the script.
+	 */
+	private String readLine(String prompt) throws IOException {
+		return readLine(prompt, null);
+	}
+
+	private String readLine(String prompt, Character mask) throws IOException {
+		if (script != null) {
+			return script.readLine();
+		}
+		return (mask != null) ? reader.readLine(prompt, mask) : reader.readLine(prompt);
+	}
+
 	/**
 	 * @param command
 	 *            name
@@ -1048,79 +2782,228 @@ public class ConsoleClient implements InboxEventHandler {
 	}
 
 	private void render() {
-		renderActivities(inbox.getEntries());
+		show(inboxView);
 	}
 
-	private void renderActivities(List<ActivityEntry> activities) {
-		StringBuilder buf = new StringBuilder();
+	/**
+	 * Put the given view on screen, scrolled to the top. The view is painted
+	 * by the next frame.
+	 */
+	private void show(Runnable view) {
+		if (commandExecutor.isCancelled()) {
+			// The user is no longer waiting for this
+			return;
+		}
+		if (session() != onScreen) {
+			// Typed in a session that is no longer on screen
+			message("A view of session " + session().number + " is ready, switch to it and ask again to see it");
+			return;
+		}
+		viewport.reset();
+		this.view = view;
+		if (script != null) {
+			paintView(view);
+		} else {
+			viewChanged.set(true);
+			scheduler.requestRender();
+		}
+	}
 
-		// Clear screen
-		buf.append(ANSIBuffer.ANSICodes.save());
-		buf.append(ANSIBuffer.ANSICodes.gotoxy(1, 1));
-		buf.append(((char) 27) + "[J");
+	/**
+	 * Scroll the view on screen by the given number of pages.
+	 */
+	private void scroll(int pages) {
+		Runnable current = view;
+		if (current != null) {
+			viewport.page(pages, visibleRows());
+			scrolled(current);
+		}
+	}
 
-		int i=1;
-		// Paint the activities
-		if (activities != null && !activities.isEmpty()) {
-			for (ActivityEntry activity : activities) {
-				buf.append("(" + i++ + ") " +render(activity));
+	private void scrollTo(String nr) {
+		Runnable current = view;
+		if (current != null) {
+			try {
+				viewport.scrollTo(Integer.parseInt(nr) - 1);
+				scrolled(current);
+			} catch (NumberFormatException e) {
+				badArgs("goto");
 			}
 		}
+	}
 
-		// Draw what the user was typing at the time of rendering
-		buf.append(ANSIBuffer.ANSICodes.gotoxy(reader.getTermheight(), 1));
-		buf.append(reader.getDefaultPrompt());
-		buf.append(reader.getCursorBuffer());
+	/**
+	 * Scroll to the entry whose number is on the input line, which is cleared;
+	 * beep if the line holds no number.
+	 */
+	private void jump() {
+		String typed = reader.getCursorBuffer().toString().trim();
+		try {
+			if (!typed.matches("[0-9]+") || view == null) {
+				reader.beep();
+				return;
+			}
+			reader.setCursorPosition(0);
+			reader.killLine();
+			scrollTo(typed);
+		} catch (IOException e) {
+			// The terminal is gone
+		}
+	}
 
-		// Restore cursor
-		buf.append(ANSIBuffer.ANSICodes.restore());
+	/**
+	 * Paint the view again once scrolled. The frame does it, so that the input
+	 * thread never paints while a scheduled repaint runs.
+	 */
+	private void scrolled(Runnable current) {
+		if (script != null) {
+			paintView(current);
+		} else {
+			viewChanged.set(true);
+			scheduler.requestRender();
+		}
+	}
 
-		out.print(buf);
-		out.flush();
+	/**
+	 * Paint a view, timing it.
+	 */
+	private void paintView(Runnable view) {
+		long start = System.nanoTime();
+		view.run();
+		stats.render(System.nanoTime() - start);
+	}
+
+	void renderActivities(List<ActivityEntry> activities) {
+		int size = (activities != null) ? activities.size() : 0;
+		int first = viewport.clamp(size, visibleRows());
+		renderActivities((size > 0) ? activities.subList(first, Math.min(size, first + visibleRows()))
+				: Collections.<ActivityEntry> emptyList(), first);
+	}
+
+	/**
+	 * Paint the activities of a view that are scrolled into view, reading
+	 * only those.
+	 */
+	void renderActivities(ActivityStore.View view) {
+		int first = viewport.clamp(view.size(), visibleRows());
+		renderActivities(view.window(first, visibleRows()), first);
+	}
+
+	/**
+	 * Paint the visible activities, numbered by their position in the list.
+	 */
+	private void renderActivities(List<ActivityEntry> visible, int first) {
+		List<String> keys = new ArrayList<String>();
+		List<String> rows = new ArrayList<String>();
+		int i = first + 1;
+
+		if (!visible.isEmpty()) {
+			if (script == null) {
+				Set<String> authors = new HashSet<String>();
+				for (ActivityEntry activity : visible) {
+					if (activity.hasActor()) {
+						authors.add(activity.getActor().getUri());
+					}
+				}
+				onScreen.names.prefetch(authors);
+			}
+			for (ActivityEntry activity : visible) {
+				keys.add(activity.getId());
+				rows.add("(" + i++ + ") " +render(activity));
+			}
+		}
+
+		paint(keys, rows);
 	}
 	
-	private void renderRelations(List<Relation> relations) {
-		StringBuilder buf = new StringBuilder();
+	private void renderHits(List<SearchIndex.Hit> hits) {
+		List<String> keys = new ArrayList<String>();
+		List<String> rows = new ArrayList<String>();
+
+		int first = viewport.clamp(hits.size(), visibleRows());
+		int i = first + 1;
+		for (SearchIndex.Hit hit : hits.subList(first, Math.min(hits.size(), first + visibleRows()))) {
+			keys.add(hit.id);
+			// The activity itself while a list holds it, else what was indexed
+			ActivityEntry activity = activityStore.get(hit.id);
+			if (activity != null) {
+				rows.add("(" + i++ + ") " + render(activity));
+				continue;
+			}
+			String author = (script == null) ? onScreen.names.display(hit.author) : hit.author;
+			Date published = (hit.published != Long.MIN_VALUE) ? new Date(hit.published) : null;
+			rows.add("(" + i++ + ") " + rowFormatter.activity(hit.id, published, author, hit.title));
+		}
 
-		// Clear screen
-		buf.append(ANSIBuffer.ANSICodes.save());
-		buf.append(ANSIBuffer.ANSICodes.gotoxy(1, 1));
-		buf.append(((char) 27) + "[J");
+		paint(keys, rows);
+	}
+
+	private void renderRelations(List<Relation> relations) {
+		List<String> rows = new ArrayList<String>();
 
 		// Paint the activities
 		if (relations != null && !relations.isEmpty()) {
 			for (Relation relation : relations) {
-				buf.append(render(relation));
+				rows.addAll(Arrays.asList(render(relation).split("\n")));
 			}
 		}
 
-		// Draw what the user was typing at the time of rendering
-		buf.append(ANSIBuffer.ANSICodes.gotoxy(reader.getTermheight(), 1));
-		buf.append(reader.getDefaultPrompt());
-		buf.append(reader.getCursorBuffer());
+		paintWindow(rows);
+	}
 
-		// Restore cursor
-		buf.append(ANSIBuffer.ANSICodes.restore());
+	/**
+	 * @return the number of rows available above the prompt
+	 */
+	private int visibleRows() {
+		if (script != null) {
+			// Batch mode lists everything
+			return Integer.MAX_VALUE;
+		}
+		renderer.setSize(reader.getTermheight(), reader.getTermwidth());
+		return renderer.getRows();
+	}
 
-		out.print(buf);
-		out.flush();
+	/**
+	 * Paint the given rows above the prompt, rewriting only what changed since
+	 * the previous frame. The prompt and what the user was typing are drawn
+	 * again when the screen has to be repainted from scratch.
+	 */
+	private void paint(List<String> keys, List<String> rows) {
+		if (script != null) {
+			for (String row : rows) {
+				out.print('\t');
+				out.println(row.endsWith("\n") ? row.substring(0, row.length() - 1) : row);
+			}
+			return;
+		}
+		renderer.setSize(reader.getTermheight(), reader.getTermwidth());
+		renderer.paint(keys, rows, reader.getDefaultPrompt() + reader.getCursorBuffer());
+	}
+
+	/**
+	 * Paint the part of the given rows that is scrolled into view.
+	 */
+	private void paintWindow(List<String> rows) {
+		int first = viewport.clamp(rows.size(), visibleRows());
+		paint(null, rows.subList(first, Math.min(rows.size(), first + visibleRows())));
 	}
 
 	private String render(ActivityEntry activity) {
 
 		String author = (activity.hasActor()) ? activity.getActor().getUri() : null;
+		if (script == null) {
+			// Full name if already known, never waits for it
+			author = onScreen.names.display(author);
+		}
 		String status = (activity.hasTitle()) ? activity.getTitle() : null;
-		String published = (activity.hasPublished()) ? DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(
-				activity.getPublished()) : null;
+		Date published = (activity.hasPublished()) ? activity.getPublished() : null;
 
-		String result = published + " \t| " + (author != null ? author + " \t| " : "") + status + "\n";
-		return result;
+		return rowFormatter.activity(activity.getId(), published, author, status);
 	}
 
-	private String render(Relation relation) {
+	String render(Relation relation) {
 
-		String published = (relation.hasPublished()) ? DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(
-				relation.getPublished()) : null;
+		String published = (relation.hasPublished()) ? RowFormatter.date(relation.getPublished()) : null;
 		String origin = relation.hasFrom() ? relation.getFrom() : null;
 		String target = relation.hasTo() ? relation.getTo() : null;
 		String nature = relation.hasNature() ? relation.getNature() : null;
@@ -1137,120 +3020,324 @@ public class ConsoleClient implements InboxEventHandler {
 		return result;
 	}
 
-	private void render(Profile profile) {
-		StringBuilder buf = new StringBuilder();
-
-		// Clear screen
-		buf.append(ANSIBuffer.ANSICodes.save());
-		buf.append(ANSIBuffer.ANSICodes.gotoxy(1, 1));
-		buf.append(((char) 27) + "[J");
+	void render(Profile profile) {
+		List<String> rows = new ArrayList<String>();
 
 		// Print user name
-		buf.append("Profile of " + profile.getUserId() + "\n");
+		rows.add("Profile of " + profile.getUserId());
 
 		// Paint the profile fields
 		for (Field field : profile.getFields()) {
-			buf.append(field.getName() + ": " + field.getValue() + "\n");
+			rows.add(field.getName() + ": " + field.getValue());
 		}
 
-		// Draw what the user was typing at the time of rendering
-		buf.append(ANSIBuffer.ANSICodes.gotoxy(reader.getTermheight(), 1));
-		buf.append(reader.getDefaultPrompt());
-		buf.append(reader.getCursorBuffer());
-
-		// Restore cursor
-		buf.append(ANSIBuffer.ANSICodes.restore());
-
-		out.print(buf);
-		out.flush();
+		paintWindow(rows);
 	}
 	
 	private void render(String header, List<String> lines) {
-		StringBuilder buf = new StringBuilder();
-
-		// Clear screen
-		buf.append(ANSIBuffer.ANSICodes.save());
-		buf.append(ANSIBuffer.ANSICodes.gotoxy(1, 1));
-		buf.append(((char) 27) + "[J");
+		List<String> rows = new ArrayList<String>();
 
 		// Print the header
-		buf.append(header + "\n");
+		rows.add(header);
 
 		// Paint the lines
-		for (String line : lines) {
-			buf.append(line + "\n");
-		}
-
-		// Draw what the user was typing at the time of rendering
-		buf.append(ANSIBuffer.ANSICodes.gotoxy(reader.getTermheight(), 1));
-		buf.append(reader.getDefaultPrompt());
-		buf.append(reader.getCursorBuffer());
-
-		// Restore cursor
-		buf.append(ANSIBuffer.ANSICodes.restore());
+		rows.addAll(lines);
 
-		out.print(buf);
-		out.flush();
+		paintWindow(rows);
 	}
 	
-	private void delete(String actNr) throws ConnectionRequired, AuthenticationRequired
-	{		
-		int intActNr=Integer.parseInt(actNr);
-		List<ActivityEntry> activities=inbox.getEntries();		
-		
-		if (activities==null)
-			return;
-		
-		if ((intActNr<0) || (intActNr>activities.size()))
+	/**
+	 * Delete the selected activities, or give them a new message, with
+	 * several requests in flight. The lists are changed once all requests
+	 * completed; the inbox is downloaded again, once, only if some failed.
+	 * 
+	 * An update replaces the whole activity on the server, so only activities
+	 * fetched in full can be updated, not those known from the local store.
+	 * Each is updated as a copy, which replaces the one in the lists once
+	 * sent.
+	 */
+	private void edit(final String cmd, List<String> args) throws IOException, ConnectionRequired,
+			AuthenticationRequired {
+		boolean dry = args.get(0).equals("dry");
+		if (dry) {
+			args = args.subList(1, args.size());
+			if (args.isEmpty()) {
+				badArgs(cmd);
 				return;
-		
-		ActivityEntry activity=null;
-		if (activities.size()>0)
-			activity = activities.get(intActNr-1);
-		
-		try {
-			if (activity!=null){
-				service.deleteActivity(activity.getId());
-				inbox.refresh();
 			}
-		} catch (RequestException e) {
-			e.printStackTrace();
-		}				
-	}
-	
-	private void updateActivity(String actNr) throws ConnectionRequired, AuthenticationRequired
-	{		
-		String newStatus=new String();
-		// First get the new status message for the activity
-		String prompt = reader.getDefaultPrompt();
-		try {
-			newStatus = reader.readLine("New message for the activity: ");
-		} catch (IOException e) {
-			newStatus = "";
 		}
-		int intActNr=Integer.parseInt(actNr);
-		List<ActivityEntry> activities=inbox.getEntries();		
-		
-		if (activities==null)
+		final Session current = session();
+		final List<ActivityEntry> selected = select(args);
+		if (selected == null) {
 			return;
-		
-		if ((intActNr<0) || (intActNr>activities.size()))
+		}
+		if (selected.isEmpty()) {
+			message("No activity selected");
+			return;
+		}
+		if (dry) {
+			show(new Runnable() {
+				@Override
+				public void run() {
+					List<String> lines = new ArrayList<String>();
+					for (ActivityEntry activity : selected) {
+						lines.add(render(activity));
+					}
+					render("/" + cmd + " would apply to " + selected.size() + " activities", lines);
+				}
+			});
+			return;
+		}
+		if (!canSend()) {
+			return;
+		}
+
+		final String status;
+		if (cmd.equals("update")) {
+			int stubs = 0;
+			for (Iterator<ActivityEntry> i = selected.iterator(); i.hasNext();) {
+				if (!fetchedInFull(i.next())) {
+					i.remove();
+					stubs++;
+				}
+			}
+			if (stubs > 0) {
+				error(stubs + " activity(ies) not fetched in full are left out, the update would erase them; "
+						+ "wait for the inbox to be downloaded or list them with /activities first");
+				if (selected.isEmpty()) {
+					return;
+				}
+			}
+			String prompt = reader.getDefaultPrompt();
+			status = readLine("New message for the " + (selected.size() > 1 ? selected.size() + " activities: " : "activity: "));
+			reader.setDefaultPrompt(prompt);
+			if (status == null) {
 				return;
-		
-		ActivityEntry activity=null;
-		if (activities.size()>0)
-			activity = activities.get(intActNr-1);
-		
+			}
+		} else {
+			status = null;
+		}
+
+		final Map<String, ActivityEntry> byId = new LinkedHashMap<String, ActivityEntry>();
+		for (ActivityEntry activity : selected) {
+			byId.put(activity.getId(), activity);
+		}
+		// The activities as changed, by id, once the server accepted them
+		final Map<String, ActivityEntry> done = new ConcurrentHashMap<String, ActivityEntry>();
+		BulkRunner runner = new BulkRunner(new BulkRunner.Operation() {
+			@Override
+			public void apply(String id) throws Exception {
+				ActivityEntry activity = byId.get(id);
+				boolean applied;
+				if (status == null) {
+					applied = current.service.deleteActivity(id);
+				} else {
+					// The lists keep showing the held version until it is sent
+					activity = copy(activity);
+					activity.setTitle(status);
+					activity.setUpdated(new Date());
+					applied = current.service.updateActivity(activity);
+				}
+				if (!applied) {
+					throw new IOException(cmd + " " + id + " was refused");
+				}
+				done.put(id, activity);
+			}
+		}, BulkRunner.defaultInFlight(), (script != null) ? null : new BulkRunner.Progress() {
+			@Override
+			public void report(BulkRunner runner) {
+				message(progress(cmd, runner));
+			}
+		});
+		runner.run(new ArrayList<String>(byId.keySet()), null);
+
+		// All the changes at once, painted by a single repaint
+		for (String id : byId.keySet()) {
+			ActivityEntry activity = done.get(id);
+			if (activity == null) {
+				continue;
+			}
+			if (status == null) {
+				current.events.onMessageDeleted(activity);
+			} else {
+				current.events.onMessageUpdated(activity);
+			}
+		}
+
+		message(progress(cmd, runner) + (runner.isInterrupted() ? ", cancelled" : ", done"));
+		if (runner.getRetries() > 0) {
+			error(runner.getRetries() + " activity(ies) could not be changed, the inbox is downloaded again");
+			new Thread("osw-console-inbox") {
+				@Override
+				public void run() {
+					try {
+						current.refreshInbox();
+						scheduler.requestRender();
+					} catch (ConnectionRequired e) {
+						error("You must first be connected to perform this command");
+					}
+				}
+			}.start();
+		}
+	}
+
+	/**
+	 * @return true if the activity holds what an update sends back: its
+	 *         objects and access rules. Those of the local store only hold a
+	 *         title, and those of a resync have no access rules.
+	 */
+	private static boolean fetchedInFull(ActivityEntry activity) {
+		return activity.hasObjects() && activity.getAclRules() != null && !activity.getAclRules().isEmpty();
+	}
+
+	/**
+	 * @return a new activity with the id, dates, actor, title, verbs, objects,
+	 *         recipients and access rules of the given one
+	 */
+	private ActivityEntry copy(ActivityEntry activity) {
+		ActivityEntry copy = activityFactory.entry();
+		copy.setId(activity.getId());
+		if (activity.hasPublished()) {
+			copy.setPublished(activity.getPublished());
+		}
+		if (activity.hasActor()) {
+			copy.setActor(activity.getActor());
+		}
+		if (activity.hasTitle()) {
+			copy.setTitle(activity.getTitle());
+		}
+		if (activity.getVerbs() != null) {
+			for (ActivityVerb verb : activity.getVerbs()) {
+				copy.addVerb(verb);
+			}
+		}
+		for (ActivityObject object : activity.getObjects()) {
+			copy.addObject(object);
+		}
+		if (activity.getRecipients() != null) {
+			for (AtomReplyTo recipient : activity.getRecipients()) {
+				copy.addRecipient(recipient);
+			}
+		}
+		if (activity.getAclRules() != null) {
+			copy.setAclRules(new ArrayList<AclRule>(activity.getAclRules()));
+		}
+		return copy;
+	}
+
+	/**
+	 * @return the activities selected by the arguments of /delete or /update:
+	 *         numbers in the inbox as 3, 2-10 or 1,4,7-9, ids as id:a,b, or
+	 *         else a search query; null if the selection is invalid. Ids not
+	 *         in the lists are looked up among the activities of the user,
+	 *         the selection is refused if some are not found.
+	 */
+	private List<ActivityEntry> select(List<String> args) throws ConnectionRequired, AuthenticationRequired {
+		String first = args.get(0);
+		List<ActivityEntry> selected = new ArrayList<ActivityEntry>();
+		if (args.size() == 1 && first.matches("[0-9,-]+")) {
+			List<ActivityEntry> activities = session().inboxEntries();
+			int size = (activities != null) ? activities.size() : 0;
+			Set<Integer> numbers = new TreeSet<Integer>();
+			for (String range : first.split(",")) {
+				if (range.length() == 0) {
+					continue;
+				}
+				int dash = range.indexOf('-');
+				int from;
+				int to;
+				try {
+					from = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+					to = (dash < 0) ? from : Integer.parseInt(range.substring(dash + 1));
+				} catch (NumberFormatException e) {
+					error("expecting nr or from-to: " + range);
+					return null;
+				}
+				if (from < 1 || from > to || to > size) {
+					error("no activity " + range + " in the inbox, it holds " + size);
+					return null;
+				}
+				for (int nr = from; nr <= to; nr++) {
+					numbers.add(nr);
+				}
+			}
+			for (int nr : numbers) {
+				selected.add(activities.get(nr - 1));
+			}
+		} else if (first.startsWith("id:")) {
+			List<String> unknown = new ArrayList<String>();
+			boolean fetched = false;
+			for (String id : Joiner.on(",").join(args).substring(3).split(",")) {
+				id = id.trim();
+				if (id.length() == 0) {
+					continue;
+				}
+				ActivityEntry activity = activityStore.get(id);
+				if (activity == null && !fetched) {
+					// Only those of the user can be changed, fetched once
+					if (!fetchOwnActivities()) {
+						return null;
+					}
+					fetched = true;
+					activity = activityStore.get(id);
+				}
+				if (activity == null) {
+					unknown.add(id);
+				} else {
+					selected.add(activity);
+				}
+			}
+			if (!unknown.isEmpty()) {
+				error("no activity " + Joiner.on(", ").join(unknown) + " posted by " + session().bareJid);
+				return null;
+			}
+		} else {
+			SearchIndex.Query query;
+			try {
+				query = SearchIndex.parse(Joiner.on(" ").join(args));
+			} catch (IllegalArgumentException e) {
+				error(e.getMessage());
+				return null;
+			}
+			if (query.isEmpty()) {
+				// Would select everything
+				error("expecting numbers, ids or a search query");
+				return null;
+			}
+			for (SearchIndex.Hit hit : session().searchIndex.search(query, Integer.MAX_VALUE)) {
+				ActivityEntry activity = activityStore.get(hit.id);
+				selected.add((activity != null) ? activity : toActivity(new InboxStore.Entry(hit.id, hit.published,
+						hit.author, hit.title)));
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Fetch the activities of the current user into its activity list, so
+	 * that they can be selected by id.
+	 * 
+	 * @return false if they could not be fetched
+	 */
+	private boolean fetchOwnActivities() throws ConnectionRequired, AuthenticationRequired {
+		Session current = session();
+		if (current.bareJid == null) {
+			error("You must first be logged in to perform this command");
+			return false;
+		}
 		try {
-			if (activity!=null){
-				activity.setTitle(newStatus);
-				service.updateActivity(activity);
-				inbox.refresh();
+			List<ActivityEntry> fetched = current.service.getActivities(current.bareJid);
+			if (fetched != null) {
+				for (ActivityEntry activity : fetched) {
+					current.index(activity);
+				}
 			}
+			current.activityView(current.bareJid).replace(fetched);
+			return true;
 		} catch (RequestException e) {
-			e.printStackTrace();
-		} 				
-		reader.setDefaultPrompt(prompt);
+			failed(e);
+			return false;
+		}
 	}
 
 	/**
@@ -1290,7 +3377,7 @@ public class ConsoleClient implements InboxEventHandler {
 	 *            the command line input
 	 * @return list of command line components
 	 */
-	private List<String> extractCmdBits(String commandLine) {
+	List<String> extractCmdBits(String commandLine) {
 		return Arrays.asList(commandLine.trim().split(" +"));
 	}
 
@@ -1298,6 +3385,10 @@ public class ConsoleClient implements InboxEventHandler {
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("--batch")) {
+			System.exit(batch(args.length > 1 ? args[1] : "-"));
+		}
+
 		try {
 			ConsoleClient ui = new ConsoleClient();
 			ui.run(args);
@@ -1306,23 +3397,63 @@ public class ConsoleClient implements InboxEventHandler {
 		}
 	}
 
-	@Override
-	public void onMessageDeleted(ActivityEntry entry) {
-		render();	
-	}
+	/**
+	 * Run the commands of the given file, or of stdin if the file is "-".
+	 * 
+	 * @return the process exit status: 0 if all commands succeeded
+	 */
+	private static int batch(String file) {
+		// No terminal handling and a buffered output
+		System.setProperty("jline.terminal", "jline.UnsupportedTerminal");
+		System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false));
 
-	@Override
-	public void onMessageReceived(ActivityEntry entry) {
-		render();	
+		try {
+			InputStream in = file.equals("-") ? System.in : new FileInputStream(file);
+			LineNumberReader script = new LineNumberReader(new InputStreamReader(in, "UTF-8"));
+			try {
+				return new ConsoleClient(script).runBatch() == 0 ? 0 : 1;
+			} finally {
+				script.close();
+				System.out.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("IOException when running batch: " + e);
+			return 2;
+		}
 	}
 
-	@Override
-	public void onRefresh(List<ActivityEntry> activities) {
-		render();	
+	/**
+	 * @return the service factory named by the osw.console.factory system
+	 *         property, e.g. an in-memory backend, or the XMPP one
+	 */
+	static OswServiceFactory createServiceFactory() {
+		String name = System.getProperty(FACTORY_PROPERTY);
+		if (name != null) {
+			try {
+				return (OswServiceFactory) Class.forName(name).newInstance();
+			} catch (Exception e) {
+				System.err.println("Cannot use service factory " + name + ": " + e);
+			}
+		}
+		return new OswServiceFactoryImp();
 	}
 
-	@Override
-	public void onMessageUpdated(ActivityEntry entry) {
-		render();
+	/**
+	 * @return the text of the objects of an activity, or null if none
+	 */
+	private String content(ActivityEntry activity) {
+		StringBuilder content = new StringBuilder();
+		if (activity.hasObjects()) {
+			for (ActivityObject object : activity.getObjects()) {
+				if (object.hasContents()) {
+					for (AtomContent atomContent : object.getContents()) {
+						if (atomContent.getValue() != null) {
+							content.append(atomContent.getValue()).append('\n');
+						}
+					}
+				}
+			}
+		}
+		return (content.length() > 0) ? content.toString().trim() : null;
 	}
 }
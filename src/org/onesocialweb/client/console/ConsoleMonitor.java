@@ -0,0 +1,374 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Exposes the state of a console over JMX, and optionally appends the same
+ * metrics to a local file at a fixed interval, one line per sample. The file
+ * is rolled over once it reaches a given size, keeping a few older files.
+ *
+ * The monitor only reads what the console already counts; the time it spends
+ * sampling and writing is measured and reported as MonitorCpuPercent.
+ */
+class ConsoleMonitor implements ConsoleMonitorMBean {
+
+	/** System property naming the file the metrics are dumped to */
+	public static final String FILE_PROPERTY = "osw.console.metrics";
+
+	/** System property holding the dump interval, in seconds */
+	public static final String INTERVAL_PROPERTY = "osw.console.metrics.interval";
+
+	/** System property holding the size at which the file is rolled over, in bytes */
+	public static final String SIZE_PROPERTY = "osw.console.metrics.size";
+
+	private static final long DEFAULT_INTERVAL = 60;
+
+	private static final long DEFAULT_SIZE = 1024 * 1024;
+
+	/** Rolled over files kept, as file.1 to file.n */
+	private static final int KEPT_FILES = 5;
+
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+	/** What the monitor needs from the console */
+	public interface Console {
+		boolean isConnected();
+
+		String getUser();
+
+		int getInboxSize();
+
+		/** The inbox events and the search index of the session on screen */
+		InboxEventQueue getEvents();
+
+		SearchIndex getSearchIndex();
+
+		/** The profiles and names cached by the session on screen */
+		ProfileCache getProfiles();
+
+		NameResolver getNames();
+	}
+
+	private final Console console;
+
+	private final ConsoleStats stats;
+
+	private final RowFormatter rows;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final long started = System.nanoTime();
+
+	/** CPU time spent by the monitor itself, in nanoseconds */
+	private final AtomicLong cpu = new AtomicLong();
+
+	private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+	private ScheduledExecutorService timer;
+
+	/** The previous sample of the received events */
+	private long sampledEvents;
+
+	private long sampledAt = System.nanoTime();
+
+	private double eventRate;
+
+	public ConsoleMonitor(Console console, ConsoleStats stats, RowFormatter rows) {
+		this.console = console;
+		this.stats = stats;
+		this.rows = rows;
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * Register with the platform MBean server, and start dumping to the file
+	 * named by osw.console.metrics if set.
+	 */
+	public void start() throws Exception {
+		ObjectName name = new ObjectName("org.onesocialweb.client.console:type=ConsoleClient,id=" + INSTANCES.incrementAndGet());
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+
+		String file = System.getProperty(FILE_PROPERTY);
+		if (file != null) {
+			dump(new File(file), Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL), Long.getLong(SIZE_PROPERTY, DEFAULT_SIZE));
+		}
+	}
+
+	/**
+	 * Append a sample to the given file every interval seconds.
+	 */
+	public synchronized void dump(final File file, long interval, final long maxSize) {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "osw-console-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				long start = threads.getCurrentThreadCpuTime();
+				try {
+					append(file, maxSize, sample());
+				} catch (IOException e) {
+					System.err.println("Could not write the metrics to " + file + ": " + e.getMessage());
+				} finally {
+					cpu.addAndGet(threads.getCurrentThreadCpuTime() - start);
+				}
+			}
+		}, interval, Math.max(interval, 1), TimeUnit.SECONDS);
+	}
+
+	public synchronized void shutdown() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * @return all the metrics on one line, as name=value pairs
+	 */
+	public String sample() {
+		StringBuilder buf = new StringBuilder(512);
+		synchronized (dateFormat) {
+			buf.append(dateFormat.format(new Date()));
+		}
+		pair(buf, "connected", isConnected());
+		pair(buf, "user", getUser());
+		pair(buf, "inbox", getInboxSize());
+		pair(buf, "events", getEventsReceived());
+		pair(buf, "dropped", getEventsDropped());
+		pair(buf, "events/s", format(getEventsPerSecond()));
+		pair(buf, "repaints", getRepaints());
+		pair(buf, "repaint.p99", format(getRepaintP99Millis()));
+		pair(buf, "commands", getCommands());
+		pair(buf, "command.p50", format(getCommandP50Millis()));
+		pair(buf, "command.p99", format(getCommandP99Millis()));
+		pair(buf, "calls", getServiceCalls());
+		pair(buf, "call.p50", format(getServiceCallP50Millis()));
+		pair(buf, "call.p99", format(getServiceCallP99Millis()));
+		pair(buf, "call.max", format(getServiceCallMaxMillis()));
+		pair(buf, "profiles", getCachedProfiles());
+		pair(buf, "names", getCachedNames());
+		pair(buf, "rows", getCachedRows());
+		pair(buf, "rows.bytes", getCachedRowBytes());
+		pair(buf, "indexed", getIndexedEntries());
+		pair(buf, "index.bytes", getSearchIndexBytes());
+		pair(buf, "heap", getHeapUsedBytes());
+		pair(buf, "monitor.cpu%", format(getMonitorCpuPercent()));
+		return buf.toString();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return console.isConnected();
+	}
+
+	@Override
+	public String getUser() {
+		return console.getUser();
+	}
+
+	@Override
+	public int getInboxSize() {
+		return console.getInboxSize();
+	}
+
+	@Override
+	public long getEventsReceived() {
+		return console.getEvents().getOffered();
+	}
+
+	@Override
+	public long getEventsDropped() {
+		return console.getEvents().getDropped();
+	}
+
+	@Override
+	public synchronized double getEventsPerSecond() {
+		long now = System.nanoTime();
+		if (now - sampledAt >= TimeUnit.SECONDS.toNanos(1)) {
+			long received = console.getEvents().getOffered();
+			eventRate = Math.max(0, received - sampledEvents) * 1e9 / (now - sampledAt);
+			sampledEvents = received;
+			sampledAt = now;
+		}
+		return eventRate;
+	}
+
+	@Override
+	public long getRepaints() {
+		return stats.getRenders().getCount();
+	}
+
+	@Override
+	public double getRepaintP99Millis() {
+		return stats.getRenders().getPercentile(99) / 1e6;
+	}
+
+	@Override
+	public long getCommands() {
+		return stats.getAllCommands().getCount();
+	}
+
+	@Override
+	public double getCommandP50Millis() {
+		return stats.getAllCommands().getPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getCommandP99Millis() {
+		return stats.getAllCommands().getPercentile(99) / 1e6;
+	}
+
+	@Override
+	public long getServiceCalls() {
+		return stats.getAllCalls().getCount();
+	}
+
+	@Override
+	public double getServiceCallP50Millis() {
+		return stats.getAllCalls().getPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getServiceCallP99Millis() {
+		return stats.getAllCalls().getPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getServiceCallMaxMillis() {
+		return stats.getAllCalls().getMax() / 1e6;
+	}
+
+	@Override
+	public int getCachedProfiles() {
+		return console.getProfiles().size();
+	}
+
+	@Override
+	public int getCachedNames() {
+		return console.getNames().size();
+	}
+
+	@Override
+	public int getCachedRows() {
+		return rows.size();
+	}
+
+	@Override
+	public long getCachedRowBytes() {
+		long start = threads.getCurrentThreadCpuTime();
+		try {
+			return rows.getHeapBytes();
+		} finally {
+			cpu.addAndGet(threads.getCurrentThreadCpuTime() - start);
+		}
+	}
+
+	@Override
+	public int getIndexedEntries() {
+		return console.getSearchIndex().size();
+	}
+
+	@Override
+	public long getSearchIndexBytes() {
+		long start = threads.getCurrentThreadCpuTime();
+		try {
+			return console.getSearchIndex().getHeapBytes();
+		} finally {
+			cpu.addAndGet(threads.getCurrentThreadCpuTime() - start);
+		}
+	}
+
+	@Override
+	public long getHeapUsedBytes() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	@Override
+	public double getMonitorCpuPercent() {
+		return 100.0 * cpu.get() / Math.max(1, System.nanoTime() - started);
+	}
+
+	@Override
+	public String[] report() {
+		List<String> lines = stats.report(console.getEvents());
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public void resetStats() {
+		stats.reset();
+	}
+
+	/**
+	 * Append a line to the file, rolling it over first if it is full.
+	 */
+	private static void append(File file, long maxSize, String line) throws IOException {
+		if (file.length() >= maxSize) {
+			new File(file.getPath() + "." + KEPT_FILES).delete();
+			for (int i = KEPT_FILES - 1; i >= 1; i--) {
+				new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+			}
+			file.renameTo(new File(file.getPath() + ".1"));
+		}
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		try {
+			writer.write(line);
+			writer.write('\n');
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void pair(StringBuilder buf, String name, Object value) {
+		buf.append(' ').append(name).append('=').append(value);
+	}
+
+	private static String format(double value) {
+		return String.format("%.2f", value);
+	}
+}
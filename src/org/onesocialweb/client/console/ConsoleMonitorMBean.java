@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+/**
+ * Management interface of a running console, registered with the platform
+ * MBean server as org.onesocialweb.client.console:type=ConsoleClient,id=n.
+ * Latencies are in milliseconds.
+ */
+public interface ConsoleMonitorMBean {
+
+	boolean isConnected();
+
+	/**
+	 * @return the logged in user, null if none
+	 */
+	String getUser();
+
+	int getInboxSize();
+
+	long getEventsReceived();
+
+	long getEventsDropped();
+
+	/**
+	 * @return the inbox events received per second since the previous sample
+	 */
+	double getEventsPerSecond();
+
+	long getRepaints();
+
+	double getRepaintP99Millis();
+
+	long getCommands();
+
+	double getCommandP50Millis();
+
+	double getCommandP99Millis();
+
+	long getServiceCalls();
+
+	double getServiceCallP50Millis();
+
+	double getServiceCallP99Millis();
+
+	double getServiceCallMaxMillis();
+
+	int getCachedProfiles();
+
+	int getCachedNames();
+
+	int getCachedRows();
+
+	/**
+	 * @return an estimate of the heap used by the cached rows, in bytes
+	 */
+	long getCachedRowBytes();
+
+	int getIndexedEntries();
+
+	/**
+	 * @return an estimate of the heap used by the search index, in bytes
+	 */
+	long getSearchIndexBytes();
+
+	long getHeapUsedBytes();
+
+	/**
+	 * @return the share of one CPU spent sampling and dumping these metrics,
+	 *         in percent
+	 */
+	double getMonitorCpuPercent();
+
+	/**
+	 * @return the report of /stats
+	 */
+	String[] report();
+
+	/**
+	 * Start the latency statistics over.
+	 */
+	void resetStats();
+}
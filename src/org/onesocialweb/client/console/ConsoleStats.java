@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.onesocialweb.client.Inbox;
+import org.onesocialweb.client.OswService;
+
+/**
+ * Latencies of the commands, of the calls to the service and of the repaints,
+ * so that a slow console can be blamed on the server or on the terminal. Each
+ * kind of operation has its own {@link LatencyHistogram}, created on first
+ * use; there are as many as commands and service methods.
+ */
+class ConsoleStats {
+
+	/** System property naming the file the statistics are written to on exit */
+	public static final String FILE_PROPERTY = "osw.console.stats";
+
+	private final ConcurrentMap<String, LatencyHistogram> commands = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final ConcurrentMap<String, LatencyHistogram> calls = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final LatencyHistogram renders = new LatencyHistogram();
+
+	/** All the commands, and all the service calls, together */
+	private final LatencyHistogram allCommands = new LatencyHistogram();
+
+	private final LatencyHistogram allCalls = new LatencyHistogram();
+
+	private volatile long since = System.currentTimeMillis();
+
+	/**
+	 * Record the time taken by a command, in nanoseconds.
+	 */
+	public void command(String name, long nanos) {
+		histogram(commands, name).record(nanos);
+		allCommands.record(nanos);
+	}
+
+	/**
+	 * Record the time taken by a request made outside of the service, in
+	 * nanoseconds.
+	 */
+	public void call(String name, long nanos) {
+		histogram(calls, name).record(nanos);
+		allCalls.record(nanos);
+	}
+
+	/**
+	 * Record the time taken by a repaint, in nanoseconds.
+	 */
+	public void render(long nanos) {
+		renders.record(nanos);
+	}
+
+	/**
+	 * @return the given service, timing each of its calls and the calls to
+	 *         its inbox
+	 */
+	public OswService instrument(OswService service) {
+		return timed(OswService.class, service, "");
+	}
+
+	public LatencyHistogram getCommand(String name) {
+		return commands.get(name);
+	}
+
+	public LatencyHistogram getCall(String name) {
+		return calls.get(name);
+	}
+
+	public LatencyHistogram getRenders() {
+		return renders;
+	}
+
+	public LatencyHistogram getAllCommands() {
+		return allCommands;
+	}
+
+	public LatencyHistogram getAllCalls() {
+		return allCalls;
+	}
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	public void reset() {
+		for (LatencyHistogram histogram : commands.values()) {
+			histogram.reset();
+		}
+		for (LatencyHistogram histogram : calls.values()) {
+			histogram.reset();
+		}
+		renders.reset();
+		allCommands.reset();
+		allCalls.reset();
+		since = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the statistics as lines of text, along with the inbox events
+	 *         received from the given queue
+	 */
+	public List<String> report(InboxEventQueue events) {
+		List<String> lines = new ArrayList<String>();
+		lines.add("since " + new Date(since));
+		lines.add(String.format("%-34s %8s %9s %9s %9s %9s", "", "count", "mean ms", "p50 ms", "p99 ms", "max ms"));
+		section(lines, "commands", commands);
+		section(lines, "service calls", calls);
+		lines.add("renders");
+		line(lines, "repaint", renders);
+		lines.add("inbox events");
+		for (Map.Entry<String, Long> entry : events.getReceived().entrySet()) {
+			lines.add(String.format("  %-32s %8d", entry.getKey(), entry.getValue()));
+		}
+		lines.add(String.format("  %d dropped, %d waiting (at most %d), %.2f ms mean delay, %.2f ms max delay",
+				events.getDropped(), events.getDepth(), events.getMaxDepth(), events.getMeanLatencyNanos() / 1e6,
+				events.getMaxLatencyNanos() / 1e6));
+		return lines;
+	}
+
+	/**
+	 * Write a report to the given file, replacing it.
+	 */
+	public void dump(File file, InboxEventQueue events) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for (String line : report(events)) {
+				writer.println(line);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void section(List<String> lines, String title, Map<String, LatencyHistogram> histograms) {
+		lines.add(title);
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(histograms).entrySet()) {
+			if (entry.getValue().getCount() > 0) {
+				line(lines, entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private static void line(List<String> lines, String name, LatencyHistogram histogram) {
+		lines.add(String.format("  %-32s %8d %9.2f %9.2f %9.2f %9.2f", name, histogram.getCount(), histogram.getMean() / 1e6,
+				histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6));
+	}
+
+	private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms, String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T timed(Class<T> type, final T target, final String prefix) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			/** The last inbox returned by the service, and its timed version */
+			private Inbox inbox;
+
+			private Inbox timedInbox;
+
+			/** Histogram of each method, to find it without building its name */
+			private final ConcurrentMap<Method, LatencyHistogram> methods = new ConcurrentHashMap<Method, LatencyHistogram>();
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					return method.invoke(target, args);
+				}
+				long start = System.nanoTime();
+				Object result;
+				try {
+					result = method.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				} finally {
+					long elapsed = System.nanoTime() - start;
+					LatencyHistogram histogram = methods.get(method);
+					if (histogram == null) {
+						histogram = histogram(calls, prefix + method.getName());
+						methods.put(method, histogram);
+					}
+					histogram.record(elapsed);
+					allCalls.record(elapsed);
+				}
+				if (result instanceof Inbox && method.getReturnType() == Inbox.class) {
+					synchronized (this) {
+						if (result != inbox) {
+							inbox = (Inbox) result;
+							timedInbox = timed(Inbox.class, inbox, "inbox.");
+						}
+						return timedInbox;
+					}
+				}
+				return result;
+			}
+		});
+	}
+}
@@ -0,0 +1,336 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Writes exported records to a file, one at a time, as JSON Lines or as an
+ * Atom feed. Each record is encoded into a fixed size buffer that is written
+ * to the file channel when full, so memory use does not depend on the number
+ * of records.
+ *
+ * Atom entries always carry the updated date and author name RFC 4287
+ * requires: the publication date and the author JID stand in when missing,
+ * then the export date and the feed author.
+ */
+class ExportWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Output formats */
+	public enum Format {
+		JSON_LINES, ATOM;
+
+		/**
+		 * @return Atom for .atom and .xml files, JSON Lines otherwise
+		 */
+		public static Format of(File file) {
+			String name = file.getName().toLowerCase();
+			return (name.endsWith(".atom") || name.endsWith(".xml")) ? ATOM : JSON_LINES;
+		}
+	}
+
+	private final Format format;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+
+	/** The record being written */
+	private final StringBuilder record = new StringBuilder(256);
+
+	private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+	/** The date of the export, as written */
+	private final String exported;
+
+	private long records;
+
+	private long bytes;
+
+	/**
+	 * @param title
+	 *            title of the Atom feed
+	 * @param owner
+	 *            JID of the user whose records are exported, the author of
+	 *            the Atom feed
+	 */
+	public ExportWriter(File file, Format format, String title, String owner) throws IOException {
+		this.format = format;
+		this.channel = new FileOutputStream(file).getChannel();
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		exported = dateFormat.format(new Date());
+
+		if (format == Format.ATOM) {
+			record.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			record.append("<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+			element("id", "xmpp:" + owner, "  ");
+			element("title", title, "  ");
+			element("updated", exported, "  ");
+			author(owner, owner, "  ");
+			write();
+		}
+	}
+
+	/**
+	 * @param updated
+	 *            date of the last change, null if never changed
+	 * @param name
+	 *            display name of the author, null if unknown
+	 */
+	public void activity(String id, Date published, Date updated, String author, String name, String title,
+			String content) throws IOException {
+		if (format == Format.JSON_LINES) {
+			record.append('{');
+			field("type", "activity", true);
+			field("id", id, false);
+			field("published", published != null ? dateFormat.format(published) : null, false);
+			field("updated", updated != null ? dateFormat.format(updated) : null, false);
+			field("author", author, false);
+			field("title", title, false);
+			field("content", content, false);
+			record.append("}\n");
+		} else {
+			record.append("  <entry>\n");
+			element("id", id, "    ");
+			element("title", title != null ? title : "", "    ");
+			updated(updated != null ? updated : published);
+			element("published", published != null ? dateFormat.format(published) : null, "    ");
+			author(name != null ? name : author, author, "    ");
+			element("content", content, "    ");
+			record.append("  </entry>\n");
+		}
+		records++;
+		write();
+	}
+
+	public void relation(String id, Date published, String from, String to, String nature, String status, String message)
+			throws IOException {
+		if (format == Format.JSON_LINES) {
+			record.append('{');
+			field("type", "relation", true);
+			field("id", id, false);
+			field("published", published != null ? dateFormat.format(published) : null, false);
+			field("from", from, false);
+			field("to", to, false);
+			field("nature", nature, false);
+			field("status", status, false);
+			field("message", message, false);
+			record.append("}\n");
+		} else {
+			record.append("  <entry>\n");
+			element("id", id, "    ");
+			element("title", nature != null ? nature : "", "    ");
+			updated(published);
+			element("published", published != null ? dateFormat.format(published) : null, "    ");
+			author(from, from, "    ");
+			if (to != null) {
+				record.append("    <link rel=\"related\" href=\"xmpp:").append(escapeXml(to)).append("\"/>\n");
+			}
+			if (status != null) {
+				record.append("    <category term=\"").append(escapeXml(status)).append("\"/>\n");
+			}
+			element("content", message, "    ");
+			record.append("  </entry>\n");
+		}
+		records++;
+		write();
+	}
+
+	public void jid(String jid) throws IOException {
+		if (format == Format.JSON_LINES) {
+			record.append('{');
+			field("jid", jid, true);
+			record.append("}\n");
+		} else {
+			record.append("  <entry>\n");
+			element("id", "xmpp:" + jid, "    ");
+			element("title", jid, "    ");
+			updated(null);
+			record.append("  </entry>\n");
+		}
+		records++;
+		write();
+	}
+
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long getBytes() {
+		return bytes + buffer.position();
+	}
+
+	public void close() throws IOException {
+		try {
+			if (format == Format.ATOM) {
+				record.append("</feed>\n");
+				write();
+			}
+			drain();
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Encode the current record into the buffer, writing the buffer out each
+	 * time it fills up.
+	 */
+	private void write() throws IOException {
+		CharBuffer chars = CharBuffer.wrap(record);
+		while (true) {
+			CoderResult result = encoder.encode(chars, buffer, true);
+			if (result.isOverflow()) {
+				drain();
+			} else if (result.isError()) {
+				result.throwException();
+			} else {
+				break;
+			}
+		}
+		encoder.reset();
+		record.setLength(0);
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			bytes += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void field(String name, String value, boolean first) {
+		if (value == null) {
+			return;
+		}
+		if (!first) {
+			record.append(',');
+		}
+		record.append('"').append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				record.append("\\\"");
+				break;
+			case '\\':
+				record.append("\\\\");
+				break;
+			case '\n':
+				record.append("\\n");
+				break;
+			case '\r':
+				record.append("\\r");
+				break;
+			case '\t':
+				record.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					record.append(String.format("\\u%04x", (int) c));
+				} else {
+					record.append(c);
+				}
+			}
+		}
+		record.append('"');
+	}
+
+	/**
+	 * Append the updated date of an entry, the export date if null.
+	 */
+	private void updated(Date date) {
+		element("updated", date != null ? dateFormat.format(date) : exported, "    ");
+	}
+
+	/**
+	 * Append an author element, none if the name is null: the feed author
+	 * stands for it.
+	 */
+	private void author(String name, String uri, String indent) {
+		if (name == null) {
+			return;
+		}
+		record.append(indent).append("<author>");
+		element("name", name, "");
+		element("uri", uri, "");
+		record.append("</author>\n");
+	}
+
+	private void element(String name, String value, String indent) {
+		if (value == null) {
+			return;
+		}
+		record.append(indent).append('<').append(name);
+		if (name.equals("content")) {
+			record.append(" type=\"text\"");
+		}
+		record.append('>').append(escapeXml(value)).append("</").append(name).append('>');
+		if (indent.length() > 0) {
+			record.append('\n');
+		}
+	}
+
+	private static String escapeXml(String value) {
+		StringBuilder buf = new StringBuilder(value.length() + 16);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '<':
+				buf.append("&lt;");
+				break;
+			case '>':
+				buf.append("&gt;");
+				break;
+			case '&':
+				buf.append("&amp;");
+				break;
+			case '"':
+				buf.append("&quot;");
+				break;
+			default:
+				// Control characters are not allowed in XML 1.0
+				if (c >= 0x20 || c == '\n' || c == '\r' || c == '\t') {
+					buf.append(c);
+				}
+			}
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.onesocialweb.client.InboxEventHandler;
+import org.onesocialweb.model.activity.ActivityEntry;
+
+/**
+ * Hands inbox events from the XMPP listener thread over to the UI thread.
+ * Offering an event never blocks.
+ *
+ * The queue is bounded. When it is full, events are dropped and the queue is
+ * flagged as overflowed, so that the consumer resynchronises from the inbox
+ * itself. At most one refresh is queued: a refresh offered while another one
+ * waits is folded into the overflow flag, since the inbox already holds what
+ * it brought. Dropped deletes are flagged on their own, the inbox may still
+ * hold the entries they removed, so it must be downloaded again.
+ */
+class InboxEventQueue implements InboxEventHandler {
+
+	/** System property holding the queue capacity */
+	public static final String CAPACITY_PROPERTY = "osw.console.queue";
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private enum Type {
+		RECEIVED("onMessageReceived"), UPDATED("onMessageUpdated"), DELETED("onMessageDeleted"), REFRESH("onRefresh");
+
+		/** The InboxEventHandler method of the event */
+		final String method;
+
+		Type(String method) {
+			this.method = method;
+		}
+	}
+
+	private static class Event {
+		final Type type;
+		final ActivityEntry entry;
+		final List<ActivityEntry> entries;
+		final long enqueued = System.nanoTime();
+
+		Event(Type type, ActivityEntry entry, List<ActivityEntry> entries) {
+			this.type = type;
+			this.entry = entry;
+			this.entries = entries;
+		}
+	}
+
+	private final Queue<Event> queue = new ConcurrentLinkedQueue<Event>();
+
+	/** Told when events are waiting to be drained */
+	private final Runnable listener;
+
+	private final int capacity;
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	private final AtomicInteger pendingRefreshes = new AtomicInteger();
+
+	private final AtomicBoolean overflowed = new AtomicBoolean();
+
+	private final AtomicBoolean deletesDropped = new AtomicBoolean();
+
+	/** Statistics */
+	private final AtomicLong offered = new AtomicLong();
+
+	private final AtomicLongArray received = new AtomicLongArray(Type.values().length);
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicInteger maxDepth = new AtomicInteger();
+
+	private final AtomicLong delivered = new AtomicLong();
+
+	private final AtomicLong latencyNanos = new AtomicLong();
+
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	public InboxEventQueue(Runnable listener) {
+		this(listener, Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+	}
+
+	public InboxEventQueue(Runnable listener, int capacity) {
+		this.listener = listener;
+		this.capacity = Math.max(capacity, 1);
+	}
+
+	@Override
+	public void onMessageReceived(ActivityEntry entry) {
+		offer(new Event(Type.RECEIVED, entry, null));
+	}
+
+	@Override
+	public void onMessageUpdated(ActivityEntry entry) {
+		offer(new Event(Type.UPDATED, entry, null));
+	}
+
+	@Override
+	public void onMessageDeleted(ActivityEntry entry) {
+		offer(new Event(Type.DELETED, entry, null));
+	}
+
+	@Override
+	public void onRefresh(List<ActivityEntry> activities) {
+		offer(new Event(Type.REFRESH, null, activities));
+	}
+
+	private void offer(Event event) {
+		offered.incrementAndGet();
+		received.incrementAndGet(event.type.ordinal());
+		int depth = size.incrementAndGet();
+		boolean refresh = event.type == Type.REFRESH;
+		if (depth > capacity || (refresh && !pendingRefreshes.compareAndSet(0, 1))) {
+			// Rebuilt from the inbox instead
+			size.decrementAndGet();
+			dropped.incrementAndGet();
+			if (event.type == Type.DELETED) {
+				deletesDropped.set(true);
+			}
+			overflowed.set(true);
+			listener.run();
+			return;
+		}
+
+		queue.offer(event);
+
+		int max = maxDepth.get();
+		while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+			max = maxDepth.get();
+		}
+		listener.run();
+	}
+
+	/**
+	 * Deliver the queued events to the given handler, in order. Must be called
+	 * from a single consumer thread.
+	 *
+	 * @return true if events were dropped since the last drain, in which case
+	 *         the handler state must be rebuilt from the inbox
+	 */
+	public boolean drain(InboxEventHandler handler) {
+		for (Event event = queue.poll(); event != null; event = queue.poll()) {
+			size.decrementAndGet();
+
+			long latency = System.nanoTime() - event.enqueued;
+			delivered.incrementAndGet();
+			latencyNanos.addAndGet(latency);
+			long max = maxLatencyNanos.get();
+			while (latency > max && !maxLatencyNanos.compareAndSet(max, latency)) {
+				max = maxLatencyNanos.get();
+			}
+
+			switch (event.type) {
+			case RECEIVED:
+				handler.onMessageReceived(event.entry);
+				break;
+			case UPDATED:
+				handler.onMessageUpdated(event.entry);
+				break;
+			case DELETED:
+				handler.onMessageDeleted(event.entry);
+				break;
+			case REFRESH:
+				// Refreshes offered from now on are queued again
+				pendingRefreshes.set(0);
+				handler.onRefresh(event.entries);
+				break;
+			}
+		}
+		return overflowed.getAndSet(false);
+	}
+
+	/**
+	 * @return true if deletes were dropped since the last call, in which case
+	 *         the inbox must be downloaded again rather than only rebuilt
+	 */
+	public boolean takeDeletesDropped() {
+		return deletesDropped.getAndSet(false);
+	}
+
+	/**
+	 * @return the number of events waiting to be delivered
+	 */
+	public int getDepth() {
+		return size.get();
+	}
+
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	public long getOffered() {
+		return offered.get();
+	}
+
+	/**
+	 * @return the number of events offered, by InboxEventHandler method
+	 */
+	public Map<String, Long> getReceived() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Type type : Type.values()) {
+			result.put(type.method, received.get(type.ordinal()));
+		}
+		return result;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return the mean time between offering and delivering an event, in
+	 *         nanoseconds
+	 */
+	public long getMeanLatencyNanos() {
+		long count = delivered.get();
+		return count > 0 ? latencyNanos.get() / count : 0;
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos.get();
+	}
+}
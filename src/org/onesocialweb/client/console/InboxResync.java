@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the inbox entries published while the connection was lost. The
+ * newest items of the inbox node are fetched until they reach back to the
+ * newest entry already held. When they do not, the number of items missing
+ * is guessed from the pace at which the fetched ones were published, and
+ * more are asked for. If the gap is wider than MAX_ITEMS, it cannot be
+ * bridged and the whole inbox must be downloaded again.
+ *
+ * Entries deleted or updated on the server while disconnected are not seen;
+ * they catch up at the next full refresh.
+ */
+class InboxResync {
+
+	/** Items fetched by the first request */
+	public static final int FIRST_ITEMS = 16;
+
+	/** Beyond this many items, a full refresh is cheaper */
+	public static final int MAX_ITEMS = 256;
+
+	/** Where the newest items of the inbox come from */
+	public interface Source {
+		/**
+		 * @return at most the given number of the newest inbox items, in any
+		 *         order
+		 */
+		List<InboxStore.Entry> newest(int count) throws IOException;
+	}
+
+	/** Most recent first */
+	private static final Comparator<InboxStore.Entry> NEWEST_FIRST = new Comparator<InboxStore.Entry>() {
+		@Override
+		public int compare(InboxStore.Entry a, InboxStore.Entry b) {
+			return (a.published < b.published) ? 1 : (a.published > b.published ? -1 : 0);
+		}
+	};
+
+	private final Source source;
+
+	/** Items fetched by the last call */
+	private int fetched;
+
+	public InboxResync(Source source) {
+		this.source = source;
+	}
+
+	/**
+	 * @param newestId
+	 *            id of the newest entry held
+	 * @param newestPublished
+	 *            its publication time
+	 * @return the entries published since, most recent first, or null if the
+	 *         gap could not be bridged
+	 */
+	public List<InboxStore.Entry> since(String newestId, long newestPublished) throws IOException {
+		fetched = 0;
+		int count = FIRST_ITEMS;
+		while (true) {
+			List<InboxStore.Entry> items = new ArrayList<InboxStore.Entry>(source.newest(count));
+			fetched += items.size();
+			Collections.sort(items, NEWEST_FIRST);
+
+			List<InboxStore.Entry> delta = new ArrayList<InboxStore.Entry>();
+			for (InboxStore.Entry item : items) {
+				if (item.id.equals(newestId) || item.published < newestPublished) {
+					// Reached what we hold, even if the newest entry was deleted meanwhile
+					return delta;
+				}
+				delta.add(item);
+			}
+			if (items.size() < count || count >= MAX_ITEMS) {
+				// The whole node came back without reaching what we hold, or too much is missing
+				return null;
+			}
+
+			long newest = items.get(0).published;
+			long span = newest - items.get(items.size() - 1).published;
+			long needed = (span > 0) ? count * (newest - newestPublished) / span + 1 : 2L * count;
+			if (needed > MAX_ITEMS) {
+				return null;
+			}
+			count = (int) Math.min(MAX_ITEMS, Math.max(2L * count, needed + needed / 4));
+		}
+	}
+
+	/**
+	 * @return the number of items fetched by the last call
+	 */
+	public int getFetched() {
+		return fetched;
+	}
+}
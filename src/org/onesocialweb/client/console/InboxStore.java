@@ -0,0 +1,416 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Local copy of the inbox, kept in an append-only log so that the console can
+ * paint the inbox as soon as the user logs in.
+ *
+ * Each record is framed by its length and a CRC32 of its payload. When the
+ * log is opened, a torn or corrupted record at the end (e.g. after a crash)
+ * is cut off. Records that were superseded by a later update or delete are
+ * dropped by compacting the log into a new file, which then replaces the old
+ * one.
+ */
+class InboxStore {
+
+	/** System property holding the directory where the consoles keep data */
+	public static final String HOME_PROPERTY = "osw.console.home";
+
+	private static final String FILE_NAME = "inbox.log";
+
+	/*
+	 * Record types. The first ones framed the id with writeUTF, which cannot
+	 * write ids of 64 KB or more; they are still read.
+	 */
+	private static final byte PUT_UTF = 1;
+
+	private static final byte DELETE_UTF = 2;
+
+	private static final byte PUT = 3;
+
+	private static final byte DELETE = 4;
+
+	/** Compact when the log holds this many more records than live entries */
+	private static final int COMPACT_SLACK = 1024;
+
+	/** A stored inbox entry */
+	public static class Entry {
+		public final String id;
+		public final long published;
+		public final String author;
+		public final String title;
+
+		public Entry(String id, long published, String author, String title) {
+			this.id = id;
+			this.published = published;
+			this.author = author;
+			this.title = title;
+		}
+
+		boolean sameAs(Entry other) {
+			return published == other.published && equal(author, other.author) && equal(title, other.title);
+		}
+	}
+
+	private final File file;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	private FileChannel channel;
+
+	/** Number of records in the log */
+	private long records;
+
+	/** Whether records were appended since the last flush */
+	private boolean dirty;
+
+	/**
+	 * @return the log file of the given user
+	 */
+	public static File defaultFile(String jid) {
+		String home = System.getProperty(HOME_PROPERTY, System.getProperty("user.home") + File.separator + ".osw-console");
+		return new File(new File(home, jid), FILE_NAME);
+	}
+
+	/**
+	 * Open the log, recovering from a torn write if needed, and load the
+	 * entries it holds.
+	 */
+	public InboxStore(File file) throws IOException {
+		this.file = file;
+		file.getParentFile().mkdirs();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		if (!file.exists() && tmp.exists()) {
+			// A compaction stopped after removing the log, the new one is complete
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not restore " + file + " from " + tmp);
+			}
+		} else {
+			// A compaction that did not complete, the log itself is intact
+			tmp.delete();
+		}
+
+		long valid = load();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		if (channel.size() > valid) {
+			channel.truncate(valid);
+			channel.force(true);
+		}
+		channel.position(valid);
+	}
+
+	/**
+	 * @return the stored entries, most recent first
+	 */
+	public synchronized List<Entry> entries() {
+		List<Entry> result = new ArrayList<Entry>(entries.values());
+		Collections.sort(result, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return (a.published < b.published) ? 1 : (a.published > b.published ? -1 : 0);
+			}
+		});
+		return result;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the publication time of the most recent stored entry, or
+	 *         Long.MIN_VALUE if the store is empty
+	 */
+	public synchronized long newest() {
+		long newest = Long.MIN_VALUE;
+		for (Entry entry : entries.values()) {
+			newest = Math.max(newest, entry.published);
+		}
+		return newest;
+	}
+
+	/**
+	 * Store an entry unless an identical copy is already stored.
+	 *
+	 * @return true if a record was appended
+	 */
+	public synchronized boolean put(Entry entry) throws IOException {
+		Entry previous = entries.get(entry.id);
+		if (previous != null && previous.sameAs(entry)) {
+			return false;
+		}
+		append(encode(PUT, entry.id, entry));
+		entries.put(entry.id, entry);
+		return true;
+	}
+
+	public synchronized void delete(String id) throws IOException {
+		if (entries.remove(id) != null) {
+			append(encode(DELETE, id, null));
+		}
+	}
+
+	/**
+	 * Bring the store in line with the given inbox content. Only the entries
+	 * that are new, changed or gone are written.
+	 *
+	 * @return the number of records appended
+	 */
+	public synchronized int sync(List<Entry> inbox) throws IOException {
+		int written = 0;
+		Set<String> ids = new HashSet<String>();
+		for (Entry entry : inbox) {
+			ids.add(entry.id);
+			if (put(entry)) {
+				written++;
+			}
+		}
+		for (String id : new ArrayList<String>(entries.keySet())) {
+			if (!ids.contains(id)) {
+				delete(id);
+				written++;
+			}
+		}
+		flush();
+		if (records > entries.size() * 2L + COMPACT_SLACK) {
+			compact();
+		}
+		return written;
+	}
+
+	/**
+	 * Force the appended records to disk.
+	 */
+	public synchronized void flush() throws IOException {
+		if (dirty) {
+			channel.force(false);
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Rewrite the log with only the live entries.
+	 */
+	public synchronized void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileChannel out = new RandomAccessFile(tmp, "rw").getChannel();
+		try {
+			out.truncate(0);
+			for (Entry entry : entries.values()) {
+				write(out, encode(PUT, entry.id, entry));
+			}
+			out.force(true);
+		} finally {
+			out.close();
+		}
+
+		channel.close();
+		if (!tmp.renameTo(file)) {
+			// Platforms that cannot rename over an existing file
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+		records = entries.size();
+		dirty = false;
+	}
+
+	public synchronized void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	/** Told about each valid record of a log */
+	interface Replay {
+		void apply(byte[] payload) throws IOException;
+	}
+
+	/**
+	 * Read the log into memory.
+	 *
+	 * @return the length of the valid part of the log
+	 */
+	private long load() throws IOException {
+		return replay(file, new Replay() {
+			@Override
+			public void apply(byte[] payload) throws IOException {
+				InboxStore.this.apply(payload);
+				records++;
+			}
+		});
+	}
+
+	/**
+	 * Hand the records of a log to the given replay, up to the first torn or
+	 * corrupted one, or the first the replay could not decode.
+	 *
+	 * @return the length of the valid part of the log
+	 */
+	static long replay(File file, Replay replay) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+
+		long valid = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				long checksum;
+				byte[] payload;
+				try {
+					length = in.readInt();
+					checksum = in.readInt() & 0xffffffffL;
+					if (length < 0 || length > file.length()) {
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+
+				crc.reset();
+				crc.update(payload);
+				if (crc.getValue() != checksum) {
+					break;
+				}
+
+				try {
+					replay.apply(payload);
+				} catch (IOException e) {
+					break;
+				}
+				valid += 8 + length;
+			}
+		} finally {
+			in.close();
+		}
+		return valid;
+	}
+
+	private void apply(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		String id = (op == PUT_UTF || op == DELETE_UTF) ? in.readUTF() : readString(in);
+		if (id == null) {
+			throw new IOException("record without an id");
+		}
+		if (op == PUT || op == PUT_UTF) {
+			long published = in.readLong();
+			String author = readString(in);
+			String title = readString(in);
+			entries.remove(id);
+			entries.put(id, new Entry(id, published, author, title));
+		} else if (op == DELETE || op == DELETE_UTF) {
+			entries.remove(id);
+		}
+	}
+
+	private byte[] encode(byte op, String id, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(op);
+		writeString(out, id);
+		if (entry != null) {
+			out.writeLong(entry.published);
+			writeString(out, entry.author);
+			writeString(out, entry.title);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void append(byte[] payload) throws IOException {
+		write(channel, payload);
+		records++;
+		dirty = true;
+	}
+
+	/**
+	 * Append a record, framed by its length and checksum, to a log.
+	 */
+	static void write(FileChannel channel, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(payload);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		} else if (length > in.available()) {
+			// Read from a record, which holds less
+			throw new EOFException("string of " + length + " bytes in a shorter record");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads one line of JSON Lines holding a flat object, as written by /export.
+ * Values are strings, or lists of strings for arrays. Numbers, booleans and
+ * null are returned as their text.
+ */
+class JsonLine {
+
+	private final String text;
+
+	private int position;
+
+	private JsonLine(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the line is not a flat JSON object
+	 */
+	public static Map<String, Object> parse(String line) {
+		JsonLine parser = new JsonLine(line);
+		Map<String, Object> result = parser.object();
+		parser.skipBlanks();
+		if (parser.position < line.length()) {
+			throw parser.error("end of line");
+		}
+		return result;
+	}
+
+	/**
+	 * @return the value of a field as a list, empty if absent
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<String> list(Map<String, Object> object, String name) {
+		Object value = object.get(name);
+		if (value == null) {
+			return new ArrayList<String>();
+		}
+		if (value instanceof List) {
+			return (List<String>) value;
+		}
+		List<String> list = new ArrayList<String>();
+		list.add((String) value);
+		return list;
+	}
+
+	/**
+	 * @return the value of a field as a string, null if absent
+	 */
+	public static String string(Map<String, Object> object, String name) {
+		Object value = object.get(name);
+		return (value instanceof String) ? (String) value : null;
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> object = new HashMap<String, Object>();
+		expect('{');
+		skipBlanks();
+		if (peek() == '}') {
+			position++;
+			return object;
+		}
+		while (true) {
+			skipBlanks();
+			String name = string();
+			skipBlanks();
+			expect(':');
+			skipBlanks();
+			object.put(name, value());
+			skipBlanks();
+			char c = next();
+			if (c == '}') {
+				return object;
+			} else if (c != ',') {
+				throw error("',' or '}'");
+			}
+		}
+	}
+
+	private Object value() {
+		char c = peek();
+		if (c == '"') {
+			return string();
+		} else if (c == '[') {
+			position++;
+			List<String> list = new ArrayList<String>();
+			skipBlanks();
+			if (peek() == ']') {
+				position++;
+				return list;
+			}
+			while (true) {
+				skipBlanks();
+				Object value = value();
+				if (!(value instanceof String)) {
+					throw error("a string");
+				}
+				list.add((String) value);
+				skipBlanks();
+				c = next();
+				if (c == ']') {
+					return list;
+				} else if (c != ',') {
+					throw error("',' or ']'");
+				}
+			}
+		} else {
+			// Number, true, false or null
+			int start = position;
+			while (position < text.length() && ",}] \t".indexOf(text.charAt(position)) < 0) {
+				position++;
+			}
+			if (position == start) {
+				throw error("a value");
+			}
+			String word = text.substring(start, position);
+			return word.equals("null") ? null : word;
+		}
+	}
+
+	private String string() {
+		expect('"');
+		StringBuilder buf = new StringBuilder();
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return buf.toString();
+			} else if (c == '\\') {
+				c = next();
+				switch (c) {
+				case 'n':
+					buf.append('\n');
+					break;
+				case 'r':
+					buf.append('\r');
+					break;
+				case 't':
+					buf.append('\t');
+					break;
+				case 'b':
+					buf.append('\b');
+					break;
+				case 'f':
+					buf.append('\f');
+					break;
+				case 'u':
+					if (position + 4 > text.length()) {
+						throw error("4 hex digits");
+					}
+					try {
+						buf.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("4 hex digits");
+					}
+					position += 4;
+					break;
+				default:
+					buf.append(c);
+				}
+			} else {
+				buf.append(c);
+			}
+		}
+	}
+
+	private void skipBlanks() {
+		while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+			position++;
+		}
+	}
+
+	private char peek() {
+		if (position >= text.length()) {
+			throw error("more");
+		}
+		return text.charAt(position);
+	}
+
+	private char next() {
+		char c = peek();
+		position++;
+		return c;
+	}
+
+	private void expect(char c) {
+		if (next() != c) {
+			position--;
+			throw error("'" + c + "'");
+		}
+	}
+
+	private IllegalArgumentException error(String expected) {
+		return new IllegalArgumentException("expecting " + expected + " at column " + (position + 1));
+	}
+}
@@ -0,0 +1,413 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.onesocialweb.client.OswService;
+import org.onesocialweb.client.OswServiceFactory;
+import org.onesocialweb.model.activity.ActivityEntry;
+import org.onesocialweb.model.activity.ActivityFactory;
+import org.onesocialweb.model.activity.ActivityObject;
+import org.onesocialweb.model.activity.ActivityVerb;
+import org.onesocialweb.model.activity.DefaultActivityFactory;
+import org.onesocialweb.model.atom.AtomFactory;
+import org.onesocialweb.model.atom.DefaultAtomFactory;
+
+/**
+ * Load generator for sizing a OneSocialWeb node. Starts a number of simulated
+ * users, each with its own service connection, which run a weighted mix of
+ * the console operations until the test is over. Throughput and latency
+ * percentiles are reported for each operation.
+ *
+ * Users are named prefix1, prefix2... and must exist on the server, or be
+ * created with --register. The service factory is chosen as for the console
+ * (osw.console.factory), so the load can also be run against the
+ * {@link LoopbackServiceFactory} stand-in.
+ *
+ * Usage: LoadDriver [--server host] [--port port] [--users n] [--prefix name]
+ * [--password secret] [--duration seconds] [--think ms] [--threads n]
+ * [--mix login=1,post=5,inbox=3,subscribe=1,profile=2] [--register]
+ *
+ * With --threads 0 (the default) every user runs on its own virtual thread
+ * when the JVM has them; otherwise the users share a pool of the given size.
+ */
+public class LoadDriver {
+
+	private static final String DEFAULT_MIX = "login=1,post=5,inbox=3,subscribe=1,profile=2";
+
+	/** Pool size when there are no virtual threads and none was given */
+	private static final int DEFAULT_THREADS = 64;
+
+	/** Interval between two progress reports */
+	private static final long REPORT_SECONDS = 10;
+
+	/** Latencies and errors of one operation */
+	private static class Operation {
+		final String name;
+		final int weight;
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+
+		Operation(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+	}
+
+	/** A simulated user, runs one operation each time it is scheduled */
+	private class User implements Runnable {
+		final String name;
+		final OswService service;
+		final Random random;
+		boolean loggedIn;
+
+		User(int number, OswService service) {
+			this.name = prefix + number;
+			this.service = service;
+			this.random = new Random(number);
+		}
+
+		@Override
+		public void run() {
+			if (System.nanoTime() >= deadline) {
+				finished();
+				return;
+			}
+			Operation operation = loggedIn ? pick(random) : operations.get("login");
+			long start = System.nanoTime();
+			try {
+				perform(this, operation.name);
+				operation.latencies.record(System.nanoTime() - start);
+			} catch (Exception e) {
+				operation.errors.incrementAndGet();
+				if (operation.name.equals("login")) {
+					loggedIn = false;
+				}
+			}
+			next(this);
+		}
+	}
+
+	private final OswServiceFactory factory = ConsoleClient.createServiceFactory();
+
+	private final ActivityFactory activityFactory = new DefaultActivityFactory();
+
+	private final AtomFactory atomFactory = new DefaultAtomFactory();
+
+	private final Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+
+	private int totalWeight;
+
+	private String server = "localhost";
+
+	private int port = 5222;
+
+	private int users = 10;
+
+	private String prefix = "load";
+
+	private String password = "secret";
+
+	private long duration = TimeUnit.SECONDS.toNanos(60);
+
+	private long think;
+
+	private int threads;
+
+	private boolean register;
+
+	private volatile long deadline;
+
+	private ExecutorService executor;
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("osw-load-timer"));
+
+	private final AtomicInteger running = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		LoadDriver driver = new LoadDriver();
+		try {
+			driver.configure(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: LoadDriver [--server host] [--port port] [--users n] [--prefix name] "
+					+ "[--password secret] [--duration seconds] [--think ms] [--threads n] [--mix " + DEFAULT_MIX
+					+ "] [--register]");
+			System.exit(2);
+		}
+		driver.run();
+		System.exit(0);
+	}
+
+	private void configure(String[] args) {
+		String mix = DEFAULT_MIX;
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("--register")) {
+				register = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + option);
+			}
+			String value = args[++i];
+			try {
+				if (option.equals("--server")) {
+					server = value;
+				} else if (option.equals("--port")) {
+					port = Integer.parseInt(value);
+				} else if (option.equals("--users")) {
+					users = Integer.parseInt(value);
+				} else if (option.equals("--prefix")) {
+					prefix = value;
+				} else if (option.equals("--password")) {
+					password = value;
+				} else if (option.equals("--duration")) {
+					duration = TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+				} else if (option.equals("--think")) {
+					think = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+				} else if (option.equals("--threads")) {
+					threads = Integer.parseInt(value);
+				} else if (option.equals("--mix")) {
+					mix = value;
+				} else {
+					throw new IllegalArgumentException("Unknown option " + option);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+			}
+		}
+
+		for (String part : mix.split(",")) {
+			String[] pair = part.trim().split("=");
+			if (pair.length != 2 || !isOperation(pair[0])) {
+				throw new IllegalArgumentException("Invalid mix " + part + ", operations are login, post, inbox, subscribe and profile");
+			}
+			int weight = Integer.parseInt(pair[1]);
+			operations.put(pair[0], new Operation(pair[0], weight));
+			totalWeight += weight;
+		}
+		if (!operations.containsKey("login")) {
+			// Every user logs in first
+			operations.put("login", new Operation("login", 0));
+		}
+		if (totalWeight <= 0) {
+			throw new IllegalArgumentException("The mix has no weight");
+		}
+	}
+
+	private void run() throws InterruptedException {
+		if (threads <= 0) {
+			executor = CommandExecutor.newVirtualThreadExecutor();
+		}
+		if (executor == null) {
+			int size = (threads > 0) ? threads : Math.min(users, DEFAULT_THREADS);
+			executor = Executors.newFixedThreadPool(size, daemon("osw-load"));
+			System.out.println(users + " users on " + size + " threads");
+		} else {
+			System.out.println(users + " users on virtual threads");
+		}
+
+		List<User> sessions = new ArrayList<User>();
+		for (int i = 1; i <= users; i++) {
+			OswService service = factory.createService();
+			service.setReconnectionAllowed(false);
+			sessions.add(new User(i, service));
+		}
+		if (register) {
+			registerUsers(sessions);
+		}
+
+		final long start = System.nanoTime();
+		deadline = start + duration;
+		running.set(sessions.size());
+		for (User user : sessions) {
+			executor.execute(user);
+		}
+
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.println(progress(start));
+			}
+		}, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+
+		synchronized (running) {
+			while (running.get() > 0) {
+				running.wait(1000);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		timer.shutdownNow();
+
+		for (User user : sessions) {
+			try {
+				user.service.disconnect();
+			} catch (Exception e) {
+				// Not connected
+			}
+		}
+		executor.shutdownNow();
+
+		report(elapsed);
+	}
+
+	private void registerUsers(List<User> sessions) {
+		Map<String, Integer> failures = new HashMap<String, Integer>();
+		for (User user : sessions) {
+			try {
+				user.service.connect(server, port, null);
+				user.service.register(user.name, password, user.name, user.name + "@" + server);
+				user.service.disconnect();
+			} catch (Exception e) {
+				String reason = e.getClass().getSimpleName();
+				failures.put(reason, failures.containsKey(reason) ? failures.get(reason) + 1 : 1);
+			}
+		}
+		if (!failures.isEmpty()) {
+			System.out.println("Registration failures (users may already exist): " + failures);
+		}
+	}
+
+	private void perform(User user, String operation) throws Exception {
+		OswService service = user.service;
+		if (operation.equals("login")) {
+			if (service.isConnected()) {
+				service.disconnect();
+			}
+			user.loggedIn = false;
+			if (!service.connect(server, port, null) || !service.login(user.name, password, "load")) {
+				throw new IllegalStateException("login refused");
+			}
+			user.loggedIn = true;
+		} else if (operation.equals("post")) {
+			String message = "Load test post from " + user.name + " " + user.random.nextInt();
+			ActivityObject object = activityFactory.object();
+			object.setType(ActivityObject.STATUS_UPDATE);
+			object.addContent(atomFactory.content(message, "text/plain", null));
+
+			ActivityEntry entry = activityFactory.entry();
+			entry.setPublished(Calendar.getInstance().getTime());
+			entry.addVerb(activityFactory.verb(ActivityVerb.POST));
+			entry.addObject(object);
+			entry.setTitle(message);
+			service.postActivity(entry);
+		} else if (operation.equals("inbox")) {
+			service.getInbox().refresh();
+		} else if (operation.equals("subscribe")) {
+			service.subscribe(other(user) + "@" + service.getHostname());
+		} else if (operation.equals("profile")) {
+			service.getProfile(other(user) + "@" + service.getHostname());
+		}
+	}
+
+	/**
+	 * @return the name of another simulated user
+	 */
+	private String other(User user) {
+		return prefix + (1 + user.random.nextInt(users));
+	}
+
+	private Operation pick(Random random) {
+		int ticket = random.nextInt(totalWeight);
+		for (Operation operation : operations.values()) {
+			ticket -= operation.weight;
+			if (ticket < 0) {
+				return operation;
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	private void next(final User user) {
+		if (think <= 0) {
+			executor.execute(user);
+		} else {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					executor.execute(user);
+				}
+			}, think, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void finished() {
+		if (running.decrementAndGet() == 0) {
+			synchronized (running) {
+				running.notifyAll();
+			}
+		}
+	}
+
+	private String progress(long start) {
+		long count = 0;
+		long errors = 0;
+		for (Operation operation : operations.values()) {
+			count += operation.latencies.getCount();
+			errors += operation.errors.get();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return String.format("%5.0fs %10d ops %8d errors %10.1f ops/s", seconds, count, errors, count / seconds);
+	}
+
+	private void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+		System.out.println();
+		System.out.printf("%-10s %10s %8s %10s %9s %9s %9s %9s%n", "operation", "count", "errors", "ops/s", "p50 ms", "p90 ms",
+				"p99 ms", "max ms");
+		for (Operation operation : operations.values()) {
+			LatencyHistogram latencies = operation.latencies;
+			System.out.printf("%-10s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f%n", operation.name, latencies.getCount(),
+					operation.errors.get(), latencies.getCount() / seconds, latencies.getPercentile(50) / 1e6,
+					latencies.getPercentile(90) / 1e6, latencies.getPercentile(99) / 1e6, latencies.getMax() / 1e6);
+		}
+	}
+
+	private static boolean isOperation(String name) {
+		return name.equals("login") || name.equals("post") || name.equals("inbox") || name.equals("subscribe")
+				|| name.equals("profile");
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger threads = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.onesocialweb.client.Inbox;
+import org.onesocialweb.client.OswService;
+import org.onesocialweb.client.OswServiceFactory;
+
+/**
+ * Stand-in for a OneSocialWeb node, running in the console process. Every
+ * service call waits for a simulated round trip and succeeds. Use it with
+ * -Dosw.console.factory=org.onesocialweb.client.console.LoopbackServiceFactory
+ * to measure the console and the load driver without a server.
+ *
+ * The round trip is set in milliseconds with osw.loopback.latency
+ * (default 1).
+ */
+public class LoopbackServiceFactory implements OswServiceFactory {
+
+	/** System property holding the simulated round trip, in milliseconds */
+	public static final String LATENCY_PROPERTY = "osw.loopback.latency";
+
+	/** Calls served by all stand-in services */
+	private static final AtomicLong CALLS = new AtomicLong();
+
+	private final long latency = TimeUnit.MILLISECONDS.toNanos(Long.getLong(LATENCY_PROPERTY, 1));
+
+	@Override
+	public OswService createService() {
+		return (OswService) Proxy.newProxyInstance(OswService.class.getClassLoader(), new Class<?>[] { OswService.class },
+				new InvocationHandler() {
+					private volatile String user;
+
+					private volatile boolean connected;
+
+					private final Inbox inbox = (Inbox) Proxy.newProxyInstance(Inbox.class.getClassLoader(),
+							new Class<?>[] { Inbox.class }, new InvocationHandler() {
+								@Override
+								public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+									if (method.getName().equals("refresh")) {
+										roundTrip();
+									}
+									return defaultValue(proxy, method, args);
+								}
+							});
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("connect")) {
+							roundTrip();
+							connected = true;
+						} else if (name.equals("disconnect")) {
+							connected = false;
+							user = null;
+						} else if (name.equals("login")) {
+							roundTrip();
+							user = (String) args[0];
+						} else if (name.equals("isConnected")) {
+							return connected;
+						} else if (name.equals("getHostname")) {
+							return "loopback";
+						} else if (name.equals("getUser")) {
+							return (user != null) ? user + "@loopback" : null;
+						} else if (name.equals("getInbox")) {
+							return inbox;
+						} else if (method.getDeclaringClass() == OswService.class && !name.startsWith("set")) {
+							roundTrip();
+						}
+						return defaultValue(proxy, method, args);
+					}
+				});
+	}
+
+	/**
+	 * @return the number of calls served so far
+	 */
+	public static long getCalls() {
+		return CALLS.get();
+	}
+
+	private void roundTrip() throws InterruptedException {
+		CALLS.incrementAndGet();
+		if (latency > 0) {
+			TimeUnit.NANOSECONDS.sleep(latency);
+		}
+	}
+
+	private static Object defaultValue(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("equals")) {
+			return proxy == args[0];
+		} else if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (name.equals("toString")) {
+			return "loopback";
+		}
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return true;
+		} else if (type == List.class) {
+			return new ArrayList<Object>();
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
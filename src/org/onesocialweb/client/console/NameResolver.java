@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.onesocialweb.model.vcard4.Field;
+import org.onesocialweb.model.vcard4.FullNameField;
+import org.onesocialweb.model.vcard4.Profile;
+
+/**
+ * Display names of the authors shown on screen. Looking a name up never
+ * blocks: unknown authors are shown by their JID, their profiles are fetched
+ * in the background with a few requests in flight, and the listener is told
+ * when names arrived so that the rows can be painted again.
+ *
+ * Names are kept as long as the profiles they come from, so that a changed
+ * name shows up; failed lookups are tried again after at most a minute.
+ */
+class NameResolver {
+
+	/** System property holding the number of lookups in flight */
+	public static final String IN_FLIGHT_PROPERTY = "osw.console.names.inflight";
+
+	private static final int DEFAULT_IN_FLIGHT = 4;
+
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	/** Lookups waiting for a free slot, more are dropped until next paint */
+	private static final int MAX_QUEUED = 256;
+
+	/** Recorded for the authors without a full name */
+	private static final String NO_NAME = "";
+
+	/** Longest time before a failed lookup is tried again */
+	private static final long FAILURE_TTL = TimeUnit.MINUTES.toNanos(1);
+
+	/** A looked up name, NO_NAME if there is none */
+	private static class Name {
+		final String value;
+		final long expires;
+
+		Name(String value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+
+		boolean isExpired(long now) {
+			return now - expires >= 0;
+		}
+	}
+
+	private final ProfileCache profiles;
+
+	/** Told when names were resolved */
+	private final Runnable listener;
+
+	/** Full names by JID */
+	private final Map<String, Name> names;
+
+	/** JIDs being looked up */
+	private final Set<String> pending = new HashSet<String>();
+
+	private final ThreadPoolExecutor lookups;
+
+	/** Bumped by clear(), so that a lookup started before is not stored */
+	private long generation;
+
+	/** Statistics */
+	private long resolved;
+
+	private long failures;
+
+	public NameResolver(ProfileCache profiles, Runnable listener) {
+		this(profiles, listener, DEFAULT_CAPACITY, Math.max(1, Integer.getInteger(IN_FLIGHT_PROPERTY, DEFAULT_IN_FLIGHT)));
+	}
+
+	public NameResolver(ProfileCache profiles, Runnable listener, final int capacity, int inFlight) {
+		this.profiles = profiles;
+		this.listener = listener;
+		this.names = new LinkedHashMap<String, Name>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Name> eldest) {
+				return size() > capacity;
+			}
+		};
+		this.lookups = new ThreadPoolExecutor(inFlight, inFlight, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+					private final AtomicInteger threads = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "osw-console-names-" + threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.lookups.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return the name to show for the given author: the full name if it is
+	 *         known, the JID otherwise
+	 */
+	public synchronized String display(String jid) {
+		if (jid == null) {
+			return null;
+		}
+		// An expired name is still shown until looked up again
+		Name name = names.get(jid);
+		return (name == null || name.value.length() == 0) ? jid : name.value;
+	}
+
+	/**
+	 * Fetch the names of the given authors that are not known yet, or no
+	 * longer.
+	 */
+	public synchronized void prefetch(Collection<String> jids) {
+		long now = System.nanoTime();
+		final long started = generation;
+		for (final String jid : jids) {
+			if (jid == null) {
+				continue;
+			}
+			Name name = names.get(jid);
+			if ((name != null && !name.isExpired(now)) || !pending.add(jid)) {
+				continue;
+			}
+			try {
+				lookups.execute(new Runnable() {
+					@Override
+					public void run() {
+						lookup(jid, started);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Queue full, asked again on the next paint
+				pending.remove(jid);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Forget the name of an author, e.g. after its profile changed.
+	 */
+	public synchronized void invalidate(String jid) {
+		names.remove(jid);
+	}
+
+	public synchronized void clear() {
+		generation++;
+		names.clear();
+	}
+
+	public synchronized int size() {
+		return names.size();
+	}
+
+	public synchronized long getResolved() {
+		return resolved;
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	public void shutdown() {
+		lookups.shutdownNow();
+	}
+
+	private void lookup(String jid, long started) {
+		String name = null;
+		boolean failed = false;
+		try {
+			Profile profile = profiles.get(jid);
+			if (profile != null && profile.hasField(FullNameField.NAME)) {
+				Field field = profile.getField(FullNameField.NAME);
+				name = (field != null) ? field.getValue() : null;
+			}
+		} catch (Exception e) {
+			failed = true;
+		}
+
+		boolean changed;
+		synchronized (this) {
+			pending.remove(jid);
+			if (generation != started) {
+				// Looked up for the user before
+				return;
+			}
+			long ttl = profiles.getTtl();
+			if (failed) {
+				// Shown by its JID for a while, rather than asked again on
+				// every paint
+				failures++;
+				ttl = Math.min(ttl, FAILURE_TTL);
+			} else {
+				resolved++;
+			}
+			String value = (name != null && name.trim().length() > 0) ? name.trim() : NO_NAME;
+			Name previous = names.get(jid);
+			changed = (previous == null) ? value.length() > 0 : !previous.value.equals(value);
+			if (failed && previous != null) {
+				// Keep the name known before
+				value = previous.value;
+				changed = false;
+			}
+			names.put(jid, new Name(value, System.nanoTime() + ttl));
+		}
+		if (changed) {
+			listener.run();
+		}
+	}
+}
@@ -0,0 +1,575 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Status updates and shouts waiting to be posted, kept in an append-only log
+ * so that a post is safe on disk as soon as it is written, whether the
+ * connection is up, down or slow. Posts are sent in the background in the
+ * order they were written, a few at a time, and again after a growing delay
+ * while the server cannot be reached.
+ *
+ * The log uses the record framing of {@link InboxStore}. A post is appended
+ * when queued and a second record marks it sent or dropped; the log is
+ * emptied once nothing is waiting. Posts written together from several
+ * threads share a single fsync, as do the marks of a batch.
+ */
+class Outbox {
+
+	/** System property holding the number of posts sent at once */
+	public static final String IN_FLIGHT_PROPERTY = "osw.console.outbox.inflight";
+
+	private static final int DEFAULT_IN_FLIGHT = 4;
+
+	private static final String FILE_NAME = "outbox.log";
+
+	private static final byte ADD = 1;
+
+	private static final byte SENT = 2;
+
+	private static final byte DROPPED = 3;
+
+	/** Failed attempts after which a post is dropped */
+	private static final int MAX_ATTEMPTS = 5;
+
+	private static final long FIRST_BACKOFF = 1000;
+
+	private static final long MAX_BACKOFF = 60000;
+
+	/** Rewrite the log when it holds this many more records than posts */
+	private static final int COMPACT_SLACK = 1024;
+
+	/** A post waiting to be sent */
+	public static class Item {
+		public final long seq;
+
+		/** When the post was written, it is published at that time */
+		public final long queued;
+
+		public final String message;
+
+		/** The recipient of a shout, null for a status update */
+		public final String recipient;
+
+		/** Who may see the post: everyone, nobody, group:name or person:jid */
+		public final String acl;
+
+		/** Failed attempts so far */
+		int attempts;
+
+		public Item(long seq, long queued, String message, String recipient, String acl) {
+			this.seq = seq;
+			this.queued = queued;
+			this.message = message;
+			this.recipient = recipient;
+			this.acl = acl;
+		}
+	}
+
+	/**
+	 * Posts the items. An IllegalArgumentException means that the item can
+	 * never be posted, it is dropped at once.
+	 */
+	public interface Sender {
+		/**
+		 * @return false while the items cannot be sent, e.g. when not connected
+		 */
+		boolean isReady();
+
+		void send(Item item) throws Exception;
+	}
+
+	private final File file;
+
+	private final Sender sender;
+
+	private final int inFlight;
+
+	/** Waiting posts, by sequence number */
+	private final Map<Long, Item> pending = new TreeMap<Long, Item>();
+
+	private FileChannel channel;
+
+	private long nextSeq = 1;
+
+	/** Records in the log */
+	private long records;
+
+	/** End of the records written, and of those forced to disk */
+	private long written;
+
+	private volatile long durable;
+
+	/** Held while forcing the log, lets the writers wait without blocking appends */
+	private final Object syncLock = new Object();
+
+	private final ScheduledExecutorService drainer;
+
+	private final ExecutorService senders;
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/** The next drain, or the running one */
+	private ScheduledFuture<?> next;
+
+	private long backoff = FIRST_BACKOFF;
+
+	private boolean closed;
+
+	private final AtomicInteger sent = new AtomicInteger();
+
+	private final AtomicInteger dropped = new AtomicInteger();
+
+	private volatile String lastError;
+
+	/**
+	 * @return the outbox file of the given user, next to the inbox store
+	 */
+	public static File defaultFile(String jid) {
+		return new File(InboxStore.defaultFile(jid).getParentFile(), FILE_NAME);
+	}
+
+	/**
+	 * @return the number of posts sent at once, from the system property or
+	 *         the default
+	 */
+	public static int defaultInFlight() {
+		return Math.max(1, Integer.getInteger(IN_FLIGHT_PROPERTY, DEFAULT_IN_FLIGHT));
+	}
+
+	/**
+	 * Open the log, recovering from a torn write if needed, and load the posts
+	 * still waiting. Nothing is sent until {@link #flush()} is called.
+	 */
+	public Outbox(File file, Sender sender, int inFlight) throws IOException {
+		this.file = file;
+		this.sender = sender;
+		this.inFlight = Math.max(1, inFlight);
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		if (!file.exists() && tmp.exists()) {
+			// A compaction stopped after removing the log, the new one is complete
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not restore " + file + " from " + tmp);
+			}
+		} else {
+			tmp.delete();
+		}
+
+		long valid = InboxStore.replay(file, new InboxStore.Replay() {
+			@Override
+			public void apply(byte[] payload) throws IOException {
+				Outbox.this.apply(payload);
+				records++;
+			}
+		});
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		if (channel.size() > valid) {
+			channel.truncate(valid);
+			channel.force(true);
+		}
+		channel.position(valid);
+		written = valid;
+		durable = valid;
+
+		drainer = Executors.newSingleThreadScheduledExecutor(daemons("osw-console-outbox"));
+		senders = Executors.newFixedThreadPool(this.inFlight, daemons("osw-console-outbox-send"));
+	}
+
+	/**
+	 * Queue a post. It is on disk when this returns, and sent as soon as
+	 * possible.
+	 *
+	 * @param recipient
+	 *            of a shout, null for a status update
+	 * @param acl
+	 *            everyone, nobody, group:name or person:jid
+	 */
+	public Item add(String message, String recipient, String acl) throws IOException {
+		Item item;
+		long end;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("The outbox is closed");
+			}
+			item = new Item(nextSeq++, System.currentTimeMillis(), message, recipient, acl);
+			append(encodeAdd(item));
+			pending.put(item.seq, item);
+			end = written;
+		}
+		sync(end);
+		flush();
+		return item;
+	}
+
+	/**
+	 * Send the waiting posts now rather than after the current delay, e.g.
+	 * once the connection is back.
+	 */
+	public synchronized void flush() {
+		backoff = FIRST_BACKOFF;
+		schedule(0);
+	}
+
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the time the oldest waiting post was written, 0 if none
+	 */
+	public synchronized long getOldest() {
+		return pending.isEmpty() ? 0 : pending.values().iterator().next().queued;
+	}
+
+	/**
+	 * @return the waiting posts, oldest first
+	 */
+	public synchronized List<Item> items() {
+		return new ArrayList<Item>(pending.values());
+	}
+
+	public int getSent() {
+		return sent.get();
+	}
+
+	public int getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return why the last attempt failed, null if it did not
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Stop sending; the waiting posts stay in the log for the next time.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (next != null) {
+				next.cancel(false);
+			}
+		}
+		drainer.shutdown();
+		try {
+			drainer.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		senders.shutdown();
+		synchronized (syncLock) {
+			synchronized (this) {
+				compact();
+				channel.force(false);
+				channel.close();
+			}
+		}
+	}
+
+	private void schedule(long delay) {
+		if (closed) {
+			return;
+		}
+		if (next != null && !next.isDone()) {
+			if (next.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+				return;
+			}
+			next.cancel(false);
+		}
+		next = drainer.schedule(drain, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send the waiting posts, a batch at a time, until none is left or a
+	 * batch fails. Runs on the drainer thread only.
+	 */
+	private void drain() {
+		while (true) {
+			List<Item> batch;
+			// Compaction replaces the channel, not while a writer forces it
+			synchronized (syncLock) {
+				synchronized (this) {
+					if (closed) {
+						return;
+					}
+					if (pending.isEmpty()) {
+						next = null;
+						compact();
+						return;
+					}
+					if (!sender.isReady()) {
+						retryLater();
+						return;
+					}
+					batch = new ArrayList<Item>(inFlight);
+					for (Item item : pending.values()) {
+						batch.add(item);
+						if (batch.size() == inFlight) {
+							break;
+						}
+					}
+				}
+			}
+
+			List<Future<Object>> results = new ArrayList<Future<Object>>(batch.size());
+			for (final Item item : batch) {
+				results.add(senders.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						sender.send(item);
+						return null;
+					}
+				}));
+			}
+
+			boolean failed = false;
+			long end;
+			synchronized (this) {
+				for (int i = 0; i < batch.size(); i++) {
+					Item item = batch.get(i);
+					Throwable error = outcome(results.get(i));
+					try {
+						if (error == null) {
+							mark(SENT, item);
+							sent.incrementAndGet();
+						} else if (error instanceof IllegalArgumentException || ++item.attempts >= MAX_ATTEMPTS) {
+							mark(DROPPED, item);
+							dropped.incrementAndGet();
+							lastError = describe(error);
+						} else {
+							if (!sender.isReady()) {
+								// Lost the connection, this does not count
+								item.attempts--;
+							}
+							lastError = describe(error);
+							failed = true;
+						}
+					} catch (IOException e) {
+						lastError = describe(e);
+						failed = true;
+					}
+				}
+				end = written;
+			}
+			try {
+				sync(end);
+			} catch (IOException e) {
+				lastError = describe(e);
+			}
+
+			if (failed) {
+				synchronized (this) {
+					retryLater();
+				}
+				return;
+			}
+			synchronized (this) {
+				backoff = FIRST_BACKOFF;
+			}
+		}
+	}
+
+	/**
+	 * Drain again after the current delay, and double it.
+	 */
+	private void retryLater() {
+		next = null;
+		schedule(backoff);
+		backoff = Math.min(MAX_BACKOFF, backoff * 2);
+	}
+
+	/**
+	 * @return why a send failed, null if it succeeded
+	 */
+	private Throwable outcome(Future<Object> result) {
+		try {
+			result.get();
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return e;
+		}
+	}
+
+	private static String describe(Throwable e) {
+		return e.getClass().getSimpleName() + (e.getMessage() != null ? ": " + e.getMessage() : "");
+	}
+
+	private void mark(byte op, Item item) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(op);
+		out.writeLong(item.seq);
+		out.flush();
+		append(bytes.toByteArray());
+		pending.remove(item.seq);
+	}
+
+	/**
+	 * Force the log to disk up to the given position at least. Writers that
+	 * come while a force is going on are covered by the next one.
+	 */
+	private void sync(long end) throws IOException {
+		synchronized (syncLock) {
+			if (durable >= end) {
+				return;
+			}
+			long upto;
+			synchronized (this) {
+				upto = written;
+			}
+			channel.force(false);
+			durable = upto;
+		}
+	}
+
+	/**
+	 * Empty the log once nothing is waiting, or rewrite it with the waiting
+	 * posts only when it holds too many sent ones.
+	 */
+	private void compact() {
+		try {
+			if (pending.isEmpty()) {
+				if (written > 0) {
+					channel.truncate(0);
+					channel.position(0);
+					channel.force(false);
+					written = 0;
+					durable = 0;
+					records = 0;
+				}
+			} else if (records > pending.size() * 2L + COMPACT_SLACK) {
+				rewrite();
+			}
+		} catch (IOException e) {
+			lastError = describe(e);
+		}
+	}
+
+	private void rewrite() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileChannel out = new RandomAccessFile(tmp, "rw").getChannel();
+		try {
+			out.truncate(0);
+			for (Item item : pending.values()) {
+				InboxStore.write(out, encodeAdd(item));
+			}
+			out.force(true);
+		} finally {
+			out.close();
+		}
+
+		channel.close();
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		written = channel.size();
+		channel.position(written);
+		durable = written;
+		records = pending.size();
+	}
+
+	private void append(byte[] payload) throws IOException {
+		InboxStore.write(channel, payload);
+		written = channel.position();
+		records++;
+	}
+
+	private void apply(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		long seq = in.readLong();
+		if (op == ADD) {
+			long queued = in.readLong();
+			String message = InboxStore.readString(in);
+			String recipient = InboxStore.readString(in);
+			String acl = InboxStore.readString(in);
+			pending.put(seq, new Item(seq, queued, message, recipient, acl));
+		} else {
+			pending.remove(seq);
+		}
+		nextSeq = Math.max(nextSeq, seq + 1);
+	}
+
+	private static byte[] encodeAdd(Item item) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ADD);
+		out.writeLong(item.seq);
+		out.writeLong(item.queued);
+		InboxStore.writeString(out, item.message);
+		InboxStore.writeString(out, item.recipient);
+		InboxStore.writeString(out, item.acl);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static ThreadFactory daemons(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger threads = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.onesocialweb.client.exception.AuthenticationRequired;
+import org.onesocialweb.client.exception.ConnectionRequired;
+import org.onesocialweb.client.exception.RequestException;
+import org.onesocialweb.model.vcard4.Profile;
+
+/**
+ * Profiles fetched from the server, by JID. The least recently used profile
+ * is evicted when the cache is full. A profile older than the time to live
+ * is still returned, while a fresh copy is fetched in the background.
+ */
+class ProfileCache {
+
+	/** System property holding the number of cached profiles */
+	public static final String CAPACITY_PROPERTY = "osw.console.profiles";
+
+	/** System property holding the profile time to live, in seconds */
+	public static final String TTL_PROPERTY = "osw.console.profiles.ttl";
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private static final int DEFAULT_TTL = 300;
+
+	/** Fetches a profile from the server */
+	public interface Loader {
+		Profile load(String jid) throws ConnectionRequired, AuthenticationRequired, RequestException;
+	}
+
+	/** A cached profile, null if the user has none */
+	private static class Entry {
+		final Profile profile;
+		final long loaded;
+		boolean refreshing;
+
+		Entry(Profile profile, long loaded) {
+			this.profile = profile;
+			this.loaded = loaded;
+		}
+	}
+
+	private final Loader loader;
+
+	private final long ttl;
+
+	private final Map<String, Entry> entries;
+
+	/** Bumped by clear(), so that a load started before is not stored */
+	private long generation;
+
+	/** Refreshes stale profiles */
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "osw-console-profiles");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** Statistics */
+	private long hits;
+
+	private long staleHits;
+
+	private long misses;
+
+	private long evictions;
+
+	private long refreshes;
+
+	private long refreshFailures;
+
+	public ProfileCache(Loader loader) {
+		this(loader, Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY), TimeUnit.SECONDS.toNanos(Integer
+				.getInteger(TTL_PROPERTY, DEFAULT_TTL)));
+	}
+
+	/**
+	 * @param ttl
+	 *            time to live of a profile, in nanoseconds
+	 */
+	public ProfileCache(Loader loader, final int capacity, long ttl) {
+		this.loader = loader;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the time to live of a profile, in nanoseconds
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @return the profile of the given user, from the cache if it holds one
+	 */
+	public Profile get(final String jid) throws ConnectionRequired, AuthenticationRequired, RequestException {
+		long started;
+		synchronized (this) {
+			final Entry entry = entries.get(jid);
+			if (entry != null) {
+				if (System.nanoTime() - entry.loaded < ttl) {
+					hits++;
+				} else {
+					staleHits++;
+					if (!entry.refreshing) {
+						refresh(jid, entry);
+					}
+				}
+				return entry.profile;
+			}
+			misses++;
+			started = generation;
+		}
+
+		Profile profile = loader.load(jid);
+		synchronized (this) {
+			if (generation == started) {
+				put(jid, profile);
+			}
+		}
+		return profile;
+	}
+
+	/**
+	 * @return true if the cache holds a profile for the user, fresh or stale
+	 */
+	public synchronized boolean contains(String jid) {
+		return entries.containsKey(jid);
+	}
+
+	/**
+	 * Store a profile that was fetched or changed by other means.
+	 */
+	public synchronized void put(String jid, Profile profile) {
+		entries.put(jid, new Entry(profile, System.nanoTime()));
+	}
+
+	/**
+	 * Drop the profile of a user, e.g. after it was changed.
+	 */
+	public synchronized void invalidate(String jid) {
+		entries.remove(jid);
+	}
+
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getStaleHits() {
+		return staleHits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getRefreshes() {
+		return refreshes;
+	}
+
+	public synchronized long getRefreshFailures() {
+		return refreshFailures;
+	}
+
+	public void shutdown() {
+		refresher.shutdownNow();
+	}
+
+	private void refresh(final String jid, final Entry entry) {
+		entry.refreshing = true;
+		try {
+			refresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Profile profile = loader.load(jid);
+						synchronized (ProfileCache.this) {
+							refreshes++;
+							// Unless it was invalidated or replaced meanwhile
+							if (entries.get(jid) == entry) {
+								entries.put(jid, new Entry(profile, System.nanoTime()));
+							}
+						}
+					} catch (Exception e) {
+						synchronized (ProfileCache.this) {
+							refreshFailures++;
+							// Serve the stale copy and try again later
+							entry.refreshing = false;
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			entry.refreshing = false;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onesocialweb.model.vcard4.Field;
+import org.onesocialweb.model.vcard4.Profile;
+import org.onesocialweb.model.vcard4.VCard4Factory;
+import org.onesocialweb.model.vcard4.exception.CardinalityException;
+import org.onesocialweb.model.vcard4.exception.UnsupportedFieldException;
+
+/**
+ * Changes to a profile, staged by /set and /clear and sent together. The
+ * staged fields are compared, by name and value, with the last known copy of
+ * the profile on the server; only the fields that differ are changed, and
+ * nothing needs to be sent if none does.
+ */
+class ProfileEdit {
+
+	/** The new fields of each staged name, none to clear it; in staging order */
+	private final Map<String, List<Field>> staged = new LinkedHashMap<String, List<Field>>();
+
+	/**
+	 * Stage a field, in place of all the fields of its name.
+	 */
+	public synchronized void set(Field field) {
+		staged.put(field.getName(), Collections.singletonList(field));
+	}
+
+	/**
+	 * Stage the removal of all the fields of a name.
+	 */
+	public synchronized void clear(String name) {
+		staged.put(name, Collections.<Field> emptyList());
+	}
+
+	public synchronized boolean isEmpty() {
+		return staged.isEmpty();
+	}
+
+	/**
+	 * @return the names of the staged fields that differ from the profile,
+	 *         which may be null if the user has none
+	 */
+	public synchronized List<String> diff(Profile base) {
+		List<String> names = new ArrayList<String>();
+		for (Map.Entry<String, List<Field>> entry : staged.entrySet()) {
+			if (!values(base, entry.getKey()).equals(values(entry.getValue()))) {
+				names.add(entry.getKey());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * @return the staged changes as lines of text, name: old -> new
+	 */
+	public synchronized List<String> describe(Profile base) {
+		List<String> lines = new ArrayList<String>();
+		List<String> changed = diff(base);
+		for (Map.Entry<String, List<Field>> entry : staged.entrySet()) {
+			lines.add(String.format("%s: %s -> %s%s", entry.getKey(), values(base, entry.getKey()),
+					values(entry.getValue()), changed.contains(entry.getKey()) ? "" : " (unchanged)"));
+		}
+		return lines;
+	}
+
+	/**
+	 * @return a new profile: the fields of base, with those that differ
+	 *         replaced by the staged ones; null if none differs
+	 */
+	public synchronized Profile apply(Profile base, String userId, VCard4Factory factory) throws UnsupportedFieldException,
+			CardinalityException {
+		List<String> changed = diff(base);
+		if (changed.isEmpty()) {
+			return null;
+		}
+		Profile profile = factory.profile();
+		profile.setUserId(userId);
+		if (base != null) {
+			for (Field field : base.getFields()) {
+				if (!changed.contains(field.getName())) {
+					profile.addField(field);
+				}
+			}
+		}
+		for (String name : changed) {
+			for (Field field : staged.get(name)) {
+				profile.addField(field);
+			}
+		}
+		return profile;
+	}
+
+	private static List<String> values(Profile profile, String name) {
+		List<Field> fields = new ArrayList<Field>();
+		if (profile != null) {
+			for (Field field : profile.getFields()) {
+				if (field.getName().equals(name)) {
+					fields.add(field);
+				}
+			}
+		}
+		return values(fields);
+	}
+
+	private static List<String> values(List<Field> fields) {
+		List<String> values = new ArrayList<String>(fields.size());
+		for (Field field : fields) {
+			values.add(field.getValue());
+		}
+		return values;
+	}
+}
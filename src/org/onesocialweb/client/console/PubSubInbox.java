@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Fetches the newest items of the inbox node over the XMPP connection of a
+ * session, with a pubsub items request limited by max_items, which the inbox
+ * itself cannot do.
+ *
+ * The request is an IQ of its own, and its reply is collected by packet id.
+ * Smack parses the reply with the provider the client library registered for
+ * pubsub payloads; the items are read back from the payload as that provider
+ * writes it. A reply whose items cannot be read fails the request, so that
+ * the caller falls back on a full refresh.
+ */
+class PubSubInbox implements InboxResync.Source {
+
+	public static final String INBOX_NODE = "http://onesocialweb.org/spec/1.0/inbox";
+
+	private static final String PUBSUB = "http://jabber.org/protocol/pubsub";
+
+	private static final String ATOM = "http://www.w3.org/2005/Atom";
+
+	private static final String ACTIVITY = "http://activitystrea.ms/spec/1.0/";
+
+	private static final Pattern FRACTION = Pattern.compile("\\.(\\d+)");
+
+	/** An inbox item, with the verbs and objects of its entry */
+	public static class Item extends InboxStore.Entry {
+		public final List<String> verbs;
+		public final List<ItemObject> objects;
+
+		public Item(String id, long published, String author, String title, List<String> verbs, List<ItemObject> objects) {
+			super(id, published, author, title);
+			this.verbs = verbs;
+			this.objects = objects;
+		}
+	}
+
+	/** An activity object of an item */
+	public static class ItemObject {
+		/** The object type, null if the entry tells none */
+		public String type;
+		public final List<ItemContent> contents = new ArrayList<ItemContent>();
+	}
+
+	/** A content of an activity object, with its MIME type */
+	public static class ItemContent {
+		public final String type;
+		public final String value;
+
+		ItemContent(String type, String value) {
+			this.type = type;
+			this.value = value;
+		}
+	}
+
+	/** Requests the newest items of the inbox */
+	private static class ItemsRequest extends IQ {
+		private final int count;
+
+		ItemsRequest(int count) {
+			this.count = count;
+			setType(IQ.Type.GET);
+		}
+
+		@Override
+		public String getChildElementXML() {
+			return "<pubsub xmlns=\"" + PUBSUB + "\"><items node=\"" + INBOX_NODE + "\" max_items=\"" + count + "\"/></pubsub>";
+		}
+	}
+
+	private final XMPPConnection connection;
+
+	public PubSubInbox(XMPPConnection connection) {
+		this.connection = connection;
+	}
+
+	@Override
+	public List<InboxStore.Entry> newest(int count) throws IOException {
+		ItemsRequest request = new ItemsRequest(count);
+		PacketCollector collector = connection.createPacketCollector(new PacketIDFilter(request.getPacketID()));
+		try {
+			connection.sendPacket(request);
+			Packet reply = collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
+			if (reply == null) {
+				throw new IOException("no reply from the server");
+			} else if (reply.getError() != null) {
+				throw new IOException(reply.getError().toString());
+			}
+			String xml = (reply instanceof IQ) ? ((IQ) reply).getChildElementXML() : null;
+			if (xml == null) {
+				throw new IOException("the reply could not be read");
+			}
+			return items(xml);
+		} catch (IllegalStateException e) {
+			// Smack refuses to send while not connected
+			throw new IOException(e.getMessage());
+		} finally {
+			collector.cancel();
+		}
+	}
+
+	/**
+	 * Copy the element the parser is on as text, leaving the parser on its
+	 * end tag. The namespaces in scope are declared on the copy.
+	 */
+	static String copy(XmlPullParser parser) throws XmlPullParserException, IOException {
+		StringBuilder xml = new StringBuilder();
+		int depth = parser.getDepth();
+		for (int event = parser.getEventType();; event = parser.next()) {
+			if (event == XmlPullParser.START_TAG) {
+				xml.append('<').append(name(parser.getPrefix(), parser.getName()));
+				if (parser.getDepth() == depth) {
+					// The innermost declaration of each prefix
+					Set<String> declared = new HashSet<String>();
+					for (int i = parser.getNamespaceCount(depth) - 1; i >= 0; i--) {
+						if (declared.add(String.valueOf(parser.getNamespacePrefix(i)))) {
+							namespace(xml, parser.getNamespacePrefix(i), parser.getNamespaceUri(i));
+						}
+					}
+				} else {
+					for (int i = parser.getNamespaceCount(parser.getDepth() - 1); i < parser.getNamespaceCount(parser.getDepth()); i++) {
+						namespace(xml, parser.getNamespacePrefix(i), parser.getNamespaceUri(i));
+					}
+				}
+				for (int i = 0; i < parser.getAttributeCount(); i++) {
+					xml.append(' ').append(name(parser.getAttributePrefix(i), parser.getAttributeName(i))).append("=\"")
+							.append(StringUtils.escapeForXML(parser.getAttributeValue(i))).append('"');
+				}
+				xml.append('>');
+			} else if (event == XmlPullParser.END_TAG) {
+				xml.append("</").append(name(parser.getPrefix(), parser.getName())).append('>');
+				if (parser.getDepth() == depth) {
+					return xml.toString();
+				}
+			} else if (event == XmlPullParser.TEXT) {
+				xml.append(StringUtils.escapeForXML(parser.getText()));
+			} else if (event == XmlPullParser.END_DOCUMENT) {
+				throw new EOFException("end of stream in a pubsub reply");
+			}
+		}
+	}
+
+	/**
+	 * @return the inbox items of an items payload
+	 * @throws IOException
+	 *             if it holds no items element
+	 */
+	static List<InboxStore.Entry> items(String xml) throws IOException {
+		List<InboxStore.Entry> entries = new ArrayList<InboxStore.Entry>();
+		boolean found = false;
+		try {
+			XmlPullParser parser = parser(xml);
+			String item = null, id = null, author = null, title = null;
+			long published = Long.MIN_VALUE;
+			List<String> verbs = null;
+			List<ItemObject> objects = null;
+			ItemObject object = null;
+			int entry = -1;
+			boolean inAuthor = false;
+			for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+				String name = parser.getName();
+				String namespace = parser.getNamespace();
+				if (event == XmlPullParser.START_TAG) {
+					if (name.equals("items") && namespace.equals(PUBSUB)) {
+						found = true;
+					} else if (name.equals("item") && namespace.equals(PUBSUB)) {
+						item = parser.getAttributeValue(null, "id");
+						id = author = title = null;
+						published = Long.MIN_VALUE;
+						verbs = new ArrayList<String>();
+						objects = new ArrayList<ItemObject>();
+					} else if (name.equals("entry") && namespace.equals(ATOM) && entry < 0) {
+						entry = parser.getDepth();
+					} else if (entry >= 0 && parser.getDepth() == entry + 1) {
+						if ((name.equals("author") && namespace.equals(ATOM)) || (name.equals("actor") && namespace.equals(ACTIVITY))) {
+							inAuthor = true;
+						} else if (name.equals("verb") && namespace.equals(ACTIVITY)) {
+							verbs.add(parser.nextText().trim());
+						} else if (name.equals("object") && namespace.equals(ACTIVITY)) {
+							object = new ItemObject();
+						} else if (namespace.equals(ATOM)) {
+							if (name.equals("id")) {
+								id = parser.nextText().trim();
+							} else if (name.equals("published")) {
+								published = date(parser.nextText());
+							} else if (name.equals("title")) {
+								title = parser.nextText();
+							}
+						}
+					} else if (object != null && parser.getDepth() == entry + 2) {
+						if (name.equals("object-type") && namespace.equals(ACTIVITY)) {
+							object.type = parser.nextText().trim();
+						} else if (name.equals("content") && namespace.equals(ATOM)) {
+							String type = parser.getAttributeValue(null, "type");
+							object.contents.add(new ItemContent(type, parser.nextText()));
+						}
+					} else if (inAuthor && name.equals("uri") && author == null) {
+						author = parser.nextText().trim();
+					}
+				} else if (event == XmlPullParser.END_TAG && entry >= 0) {
+					if (parser.getDepth() == entry + 1) {
+						inAuthor = false;
+						if (object != null) {
+							objects.add(object);
+							object = null;
+						}
+					} else if (parser.getDepth() == entry) {
+						entry = -1;
+						String key = (id != null && id.length() > 0) ? id : item;
+						if (key != null) {
+							entries.add(new Item(key, published, author, title, verbs, objects));
+						}
+					}
+				}
+			}
+		} catch (XmlPullParserException e) {
+			throw new IOException("could not read the inbox items: " + e.getMessage());
+		}
+		if (!found) {
+			throw new IOException("the reply holds no inbox items");
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the time of an Atom date, Long.MIN_VALUE if it cannot be read
+	 */
+	static long date(String text) {
+		// Down to the millisecond, so that it compares with the inbox entries
+		Matcher fraction = FRACTION.matcher(text.trim());
+		String millis = fraction.find() ? (fraction.group(1) + "00").substring(0, 3) : "000";
+		String value = fraction.replaceFirst("").replaceFirst("Z$", "+0000").replaceFirst("([+-]\\d\\d):(\\d\\d)$", "$1$2");
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		try {
+			return format.parse(value).getTime() + Integer.parseInt(millis);
+		} catch (ParseException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	private static XmlPullParser parser(String xml) throws XmlPullParserException {
+		XmlPullParser parser = new MXParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new StringReader(xml));
+		return parser;
+	}
+
+	private static String name(String prefix, String name) {
+		return (prefix != null && prefix.length() > 0) ? prefix + ":" + name : name;
+	}
+
+	private static void namespace(StringBuilder xml, String prefix, String uri) {
+		if (prefix != null && prefix.equals("xml")) {
+			return;
+		}
+		xml.append((prefix != null) ? " xmlns:" + prefix : " xmlns").append("=\"").append(StringUtils.escapeForXML(uri)).append('"');
+	}
+}
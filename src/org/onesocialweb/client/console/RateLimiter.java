@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket: requests are let through at a steady rate, with bursts of up
+ * to the bucket size after a quiet period.
+ */
+class RateLimiter {
+
+	/** Tokens added per nanosecond */
+	private final double rate;
+
+	private final double burst;
+
+	private double tokens;
+
+	private long last = System.nanoTime();
+
+	/**
+	 * @param perSecond
+	 *            steady number of requests per second
+	 * @param burst
+	 *            number of requests that may be sent at once
+	 */
+	public RateLimiter(double perSecond, int burst) {
+		this.rate = perSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+	}
+
+	/**
+	 * Wait until a request may be sent.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait = reserve();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Take a token, going into debt if there is none.
+	 *
+	 * @return how long to wait before the token is really there, in
+	 *         nanoseconds
+	 */
+	private synchronized long reserve() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) * rate);
+		last = now;
+		tokens -= 1;
+		return (tokens >= 0) ? 0 : (long) (-tokens / rate);
+	}
+}
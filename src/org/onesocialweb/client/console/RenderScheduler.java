@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces render requests into at most one frame per frame interval. A
+ * request only marks the view as dirty; the frame itself runs on the
+ * scheduler thread. A request made while a frame is running always leads to
+ * another frame, so the last state is always drawn.
+ */
+class RenderScheduler {
+
+	/** System property holding the maximum number of frames per second */
+	public static final String FPS_PROPERTY = "osw.console.fps";
+
+	private static final int DEFAULT_FPS = 30;
+
+	private final ScheduledExecutorService executor;
+
+	private final Runnable frame;
+
+	private final long intervalNanos;
+
+	/** Set when the view changed since the last frame */
+	private final AtomicBoolean dirty = new AtomicBoolean();
+
+	/** Set while a frame is scheduled or running */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private volatile long lastFrame;
+
+	/** Statistics */
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong frames = new AtomicLong();
+
+	private final AtomicLong frameNanos = new AtomicLong();
+
+	public RenderScheduler(Runnable frame) {
+		this(frame, Integer.getInteger(FPS_PROPERTY, DEFAULT_FPS));
+	}
+
+	public RenderScheduler(Runnable frame, int fps) {
+		this.frame = frame;
+		this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(fps, 1);
+		this.lastFrame = System.nanoTime() - intervalNanos;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "osw-console-render");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Mark the view as dirty. The frame runs as soon as the frame budget
+	 * allows it, together with any other request made in the meantime.
+	 */
+	public void requestRender() {
+		requests.incrementAndGet();
+		dirty.set(true);
+		schedule();
+	}
+
+	/**
+	 * Stop rendering; pending frames are dropped.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			long delay = Math.max(0, lastFrame + intervalNanos - System.nanoTime());
+			try {
+				executor.schedule(task, delay, TimeUnit.NANOSECONDS);
+			} catch (RuntimeException e) {
+				// Shut down
+				scheduled.set(false);
+			}
+		}
+	}
+
+	private final Runnable task = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				if (dirty.getAndSet(false)) {
+					long start = System.nanoTime();
+					lastFrame = start;
+					frames.incrementAndGet();
+					try {
+						frame.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+					frameNanos.addAndGet(System.nanoTime() - start);
+				}
+			} finally {
+				scheduled.set(false);
+			}
+
+			// Requests made while the frame was painting
+			if (dirty.get()) {
+				schedule();
+			}
+		}
+	};
+
+	/**
+	 * @return the number of render requests
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of frames painted
+	 */
+	public long getFrames() {
+		return frames.get();
+	}
+
+	/**
+	 * @return the number of requests that were folded into another frame
+	 */
+	public long getSkipped() {
+		return Math.max(0, requests.get() - frames.get());
+	}
+
+	/**
+	 * @return the total time spent painting frames, in nanoseconds
+	 */
+	public long getFrameNanos() {
+		return frameNanos.get();
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Formats the rows of an activity list. Formatted rows are cached by entry id
+ * together with the values they were built from, so that a repaint only
+ * formats the entries that are new or changed.
+ */
+class RowFormatter {
+
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	/** DateFormat is not thread safe, each thread gets its own */
+	private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+		}
+	};
+
+	/** A formatted row and the values it was built from */
+	private static class Row {
+		final long published;
+		final String author;
+		final String status;
+		final String text;
+
+		Row(long published, String author, String status, String text) {
+			this.published = published;
+			this.author = author;
+			this.status = status;
+			this.text = text;
+		}
+
+		boolean matches(long published, String author, String status) {
+			return this.published == published && equal(this.author, author) && equal(this.status, status);
+		}
+	}
+
+	private final Map<String, Row> rows;
+
+	/** Statistics */
+	private long hits;
+
+	private long misses;
+
+	public RowFormatter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public RowFormatter(final int capacity) {
+		rows = new LinkedHashMap<String, Row>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Row> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Format a date with the shared short date and time format.
+	 */
+	public static String date(Date date) {
+		return DATE_FORMAT.get().format(date);
+	}
+
+	/**
+	 * @return the row for an activity, from the cache when the entry did not
+	 *         change since it was last formatted
+	 */
+	public synchronized String activity(String id, Date published, String author, String status) {
+		long time = (published != null) ? published.getTime() : Long.MIN_VALUE;
+		Row row = (id != null) ? rows.get(id) : null;
+		if (row != null && row.matches(time, author, status)) {
+			hits++;
+			return row.text;
+		}
+		misses++;
+
+		StringBuilder buf = new StringBuilder(64);
+		buf.append(published != null ? date(published) : null).append(" \t| ");
+		if (author != null) {
+			buf.append(author).append(" \t| ");
+		}
+		buf.append(status).append('\n');
+		String text = buf.toString();
+
+		if (id != null) {
+			rows.put(id, new Row(time, author, status, text));
+		}
+		return text;
+	}
+
+	/**
+	 * Drop the cached row of an entry.
+	 */
+	public synchronized void evict(String id) {
+		if (id != null) {
+			rows.remove(id);
+		}
+	}
+
+	public synchronized void clear() {
+		rows.clear();
+	}
+
+	public synchronized int size() {
+		return rows.size();
+	}
+
+	/**
+	 * @return an estimate of the heap used by the cached rows, in bytes
+	 */
+	public synchronized long getHeapBytes() {
+		long bytes = 0;
+		for (Map.Entry<String, Row> entry : rows.entrySet()) {
+			Row row = entry.getValue();
+			// Map entry and row objects, then their strings
+			bytes += 40 + 32 + chars(entry.getKey()) + chars(row.author) + chars(row.status) + chars(row.text);
+		}
+		return bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private static long chars(String value) {
+		return (value != null) ? 40 + 2L * value.length() : 0;
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import jline.ANSIBuffer;
+
+/**
+ * Paints rows of text above the prompt line. The renderer keeps the last
+ * painted frame so that a new frame only costs the cursor moves and line
+ * rewrites needed to turn the old frame into the new one.
+ *
+ * Rows may be given a key (e.g. the activity id). When a single block of keys
+ * was inserted or removed, the rows below are shifted with the terminal
+ * insert/delete line codes instead of being rewritten.
+ */
+class ScreenRenderer {
+
+	/** Control sequence introducer */
+	private static final String CSI = ((char) 27) + "[";
+
+	private static final int TAB_WIDTH = 8;
+
+	/** A row of the frame that was written over, compared by identity */
+	private static final String UNKNOWN = new String("");
+
+	/** Output stream the frames are written to */
+	private final PrintStream out;
+
+	/** Rows currently on screen, null when the screen content is unknown */
+	private String[] frame;
+
+	/** Keys of the rows currently on screen */
+	private String[] frameKeys;
+
+	/** Text shown at the right end of the prompt line */
+	private String status = "";
+
+	private int height = 24;
+
+	private int width = 80;
+
+	/** Statistics */
+	private long paints;
+
+	private long fullPaints;
+
+	private long rowsWritten;
+
+	private long bytesWritten;
+
+	public ScreenRenderer(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Set the terminal size; the next paint is a full repaint if it changed.
+	 */
+	public synchronized void setSize(int height, int width) {
+		if (height != this.height || width != this.width) {
+			this.height = Math.max(height, 2);
+			this.width = Math.max(width, 2);
+			frame = null;
+		}
+	}
+
+	/**
+	 * Forget what is on screen, e.g. after something else scrolled or cleared
+	 * the terminal. The next paint is a full repaint.
+	 */
+	public synchronized void invalidate() {
+		frame = null;
+	}
+
+	/**
+	 * Print text on the prompt line. Each line feed scrolls the terminal up
+	 * by a line: the rows on screen move up with it, and only the rows the
+	 * text ends up on are rewritten by the next paint.
+	 */
+	public synchronized void print(CharSequence text) {
+		int lines = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				lines++;
+			}
+		}
+		if (frame != null && lines > 0) {
+			final int visible = frame.length;
+			if (lines >= visible) {
+				frame = null;
+			} else {
+				System.arraycopy(frame, lines, frame, 0, visible - lines);
+				System.arraycopy(frameKeys, lines, frameKeys, 0, visible - lines);
+				for (int i = visible - lines; i < visible; i++) {
+					frame[i] = UNKNOWN;
+					frameKeys[i] = null;
+				}
+			}
+		}
+		bytesWritten += text.length();
+
+		out.print(text);
+		out.flush();
+	}
+
+	/**
+	 * Show a short text at the right end of the prompt line, e.g. the number
+	 * of pending requests. An empty text removes it.
+	 */
+	public synchronized void setStatus(String text) {
+		if (text.equals(status)) {
+			return;
+		}
+
+		StringBuilder buf = new StringBuilder();
+		buf.append(ANSIBuffer.ANSICodes.save());
+		if (status.length() > text.length()) {
+			buf.append(ANSIBuffer.ANSICodes.gotoxy(height, width - status.length()));
+			for (int i = text.length(); i < status.length(); i++) {
+				buf.append(' ');
+			}
+		}
+		if (text.length() > 0) {
+			buf.append(ANSIBuffer.ANSICodes.gotoxy(height, width - text.length()));
+			buf.append(text);
+		}
+		buf.append(ANSIBuffer.ANSICodes.restore());
+		status = text;
+		bytesWritten += buf.length();
+
+		out.print(buf);
+		out.flush();
+	}
+
+	/**
+	 * @return the number of rows available above the prompt line
+	 */
+	public synchronized int getRows() {
+		return height - 1;
+	}
+
+	/**
+	 * Paint the given rows. Only the first {@link #getRows()} rows are shown.
+	 *
+	 * @param keys
+	 *            identity of each row used to detect inserted and removed
+	 *            rows, or null
+	 * @param rows
+	 *            the text of each row
+	 * @param prompt
+	 *            what is drawn on the prompt line after a full repaint
+	 */
+	public synchronized void paint(List<String> keys, List<String> rows, CharSequence prompt) {
+		final int visible = height - 1;
+		final String[] next = new String[visible];
+		final String[] nextKeys = new String[visible];
+		for (int i = 0; i < visible && i < rows.size(); i++) {
+			next[i] = clip(rows.get(i));
+			nextKeys[i] = (keys != null && i < keys.size()) ? keys.get(i) : null;
+		}
+
+		StringBuilder buf = new StringBuilder();
+		buf.append(ANSIBuffer.ANSICodes.save());
+
+		if (frame == null) {
+			// Full repaint
+			buf.append(ANSIBuffer.ANSICodes.gotoxy(1, 1));
+			buf.append(CSI).append('J');
+			for (int i = 0; i < visible; i++) {
+				if (next[i] != null && next[i].length() > 0) {
+					buf.append(ANSIBuffer.ANSICodes.gotoxy(i + 1, 1));
+					buf.append(next[i]);
+					rowsWritten++;
+				}
+			}
+			buf.append(ANSIBuffer.ANSICodes.gotoxy(height, 1));
+			buf.append(prompt);
+			if (status.length() > 0) {
+				buf.append(ANSIBuffer.ANSICodes.gotoxy(height, width - status.length()));
+				buf.append(status);
+			}
+			fullPaints++;
+		} else {
+			shift(buf, nextKeys);
+			for (int i = 0; i < visible; i++) {
+				patch(buf, i, frame[i], next[i]);
+			}
+		}
+
+		buf.append(ANSIBuffer.ANSICodes.restore());
+
+		frame = next;
+		frameKeys = nextKeys;
+		paints++;
+		bytesWritten += buf.length();
+
+		out.print(buf);
+		out.flush();
+	}
+
+	/**
+	 * Detect a single block of inserted or removed keys and move the rows on
+	 * screen accordingly. The frame is updated to match the terminal.
+	 */
+	private void shift(StringBuilder buf, String[] nextKeys) {
+		final int visible = frame.length;
+
+		// Find the first row whose key changed
+		int first = 0;
+		while (first < visible && nextKeys[first] != null && nextKeys[first].equals(frameKeys[first])) {
+			first++;
+		}
+		if (first == visible || nextKeys[first] == null || frameKeys[first] == null) {
+			return;
+		}
+
+		// Rows inserted: the old key at 'first' moved down
+		for (int n = 1; first + n < visible; n++) {
+			if (frameKeys[first].equals(nextKeys[first + n])) {
+				scroll(buf, first, n, 'L');
+				System.arraycopy(frame, first, frame, first + n, visible - first - n);
+				System.arraycopy(frameKeys, first, frameKeys, first + n, visible - first - n);
+				for (int i = first; i < first + n; i++) {
+					frame[i] = null;
+					frameKeys[i] = null;
+				}
+				return;
+			}
+		}
+
+		// Rows removed: the new key at 'first' moved up
+		for (int n = 1; first + n < visible; n++) {
+			if (nextKeys[first].equals(frameKeys[first + n])) {
+				scroll(buf, first, n, 'M');
+				System.arraycopy(frame, first + n, frame, first, visible - first - n);
+				System.arraycopy(frameKeys, first + n, frameKeys, first, visible - first - n);
+				for (int i = visible - n; i < visible; i++) {
+					frame[i] = null;
+					frameKeys[i] = null;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Insert (L) or delete (M) n lines at the given row, limiting the scroll
+	 * region to the rows above the prompt.
+	 */
+	private void scroll(StringBuilder buf, int row, int n, char op) {
+		buf.append(CSI).append("1;").append(height - 1).append('r');
+		buf.append(ANSIBuffer.ANSICodes.gotoxy(row + 1, 1));
+		buf.append(CSI).append(n).append(op);
+		buf.append(CSI).append('r');
+	}
+
+	/**
+	 * Rewrite the part of a row that changed.
+	 */
+	private void patch(StringBuilder buf, int row, String before, String after) {
+		if (before == UNKNOWN) {
+			buf.append(ANSIBuffer.ANSICodes.gotoxy(row + 1, 1));
+			if (after != null) {
+				buf.append(after);
+			}
+			buf.append(ANSIBuffer.ANSICodes.clreol());
+			rowsWritten++;
+			return;
+		}
+		if (before == null) {
+			before = "";
+		}
+		if (after == null) {
+			after = "";
+		}
+		if (before.equals(after)) {
+			return;
+		}
+
+		// Common head and tail of the two versions
+		final int max = Math.min(before.length(), after.length());
+		int head = 0;
+		while (head < max && before.charAt(head) == after.charAt(head)) {
+			head++;
+		}
+		int tail = 0;
+		while (tail < max - head
+				&& before.charAt(before.length() - 1 - tail) == after.charAt(after.length() - 1 - tail)) {
+			tail++;
+		}
+
+		buf.append(ANSIBuffer.ANSICodes.gotoxy(row + 1, head + 1));
+		if (before.length() == after.length()) {
+			// Same width, the tail is still in place
+			buf.append(after, head, after.length() - tail);
+		} else {
+			buf.append(after, head, after.length());
+			if (after.length() < before.length()) {
+				buf.append(ANSIBuffer.ANSICodes.clreol());
+			}
+		}
+		rowsWritten++;
+	}
+
+	/**
+	 * Expand tabs and cut the row to the terminal width, so that one row never
+	 * wraps onto the next line.
+	 */
+	private String clip(String row) {
+		if (row == null) {
+			return null;
+		}
+		final int max = width - 1;
+		StringBuilder buf = new StringBuilder(Math.min(row.length(), max));
+		for (int i = 0; i < row.length() && buf.length() < max; i++) {
+			char c = row.charAt(i);
+			if (c == '\t') {
+				do {
+					buf.append(' ');
+				} while (buf.length() % TAB_WIDTH != 0 && buf.length() < max);
+			} else if (c == '\n' || c == '\r') {
+				break;
+			} else {
+				buf.append(c);
+			}
+		}
+		// Trailing blanks are not worth writing
+		int end = buf.length();
+		while (end > 0 && buf.charAt(end - 1) == ' ') {
+			end--;
+		}
+		buf.setLength(end);
+		return buf.toString();
+	}
+
+	public synchronized long getPaints() {
+		return paints;
+	}
+
+	public synchronized long getFullPaints() {
+		return fullPaints;
+	}
+
+	public synchronized long getRowsWritten() {
+		return rowsWritten;
+	}
+
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+}
@@ -0,0 +1,589 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Full text index of the activities seen by the console. Each entry is
+ * given a document number in the order it is indexed, and every term keeps
+ * the numbers of the documents it appears in as a list of variable length
+ * encoded gaps, which costs one or two bytes per posting.
+ *
+ * An entry that changes is indexed again under a new number, and the old
+ * number is marked deleted. The index is rebuilt from the stored texts when
+ * more than half of the documents are deleted.
+ *
+ * Queries are made of terms, "quoted phrases", author:jid, after:yyyy-mm-dd
+ * and before:yyyy-mm-dd. All of them must match.
+ */
+class SearchIndex {
+
+	/** Rebuild when this many documents are deleted, and half of all */
+	private static final int COMPACT_MIN = 1024;
+
+	/** A matching entry */
+	public static class Hit {
+		public final String id;
+		public final long published;
+		public final String author;
+		public final String title;
+
+		Hit(String id, long published, String author, String title) {
+			this.id = id;
+			this.published = published;
+			this.author = author;
+			this.title = title;
+		}
+	}
+
+	/** A parsed query */
+	public static class Query {
+		final List<String> terms = new ArrayList<String>();
+		final List<List<String>> phrases = new ArrayList<List<String>>();
+		String author;
+		long after = Long.MIN_VALUE;
+		long before = Long.MAX_VALUE;
+
+		boolean isEmpty() {
+			return terms.isEmpty() && author == null && after == Long.MIN_VALUE && before == Long.MAX_VALUE;
+		}
+	}
+
+	/** Document numbers of a term, as variable length encoded gaps */
+	private static class Postings {
+		byte[] data = new byte[4];
+		int length;
+		int last = -1;
+		int count;
+
+		void add(int doc) {
+			int gap = doc - last;
+			last = doc;
+			count++;
+			if (data.length - length < 5) {
+				data = Arrays.copyOf(data, Math.max(data.length * 3 / 2, length + 5));
+			}
+			while ((gap & ~0x7f) != 0) {
+				data[length++] = (byte) ((gap & 0x7f) | 0x80);
+				gap >>>= 7;
+			}
+			data[length++] = (byte) gap;
+		}
+	}
+
+	/** Walks the document numbers of a posting list in order */
+	private static class Cursor {
+		final Postings postings;
+		int position;
+		int doc = -1;
+
+		Cursor(Postings postings) {
+			this.postings = postings;
+		}
+
+		/**
+		 * @return the next document number, or -1 at the end
+		 */
+		int next() {
+			if (position >= postings.length) {
+				return doc = -1;
+			}
+			int gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = postings.data[position++];
+				gap |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return doc = (doc < 0 ? -1 : doc) + gap;
+		}
+
+		/**
+		 * @return the first document number at or after target, or -1
+		 */
+		int advance(int target) {
+			while (doc < target) {
+				if (next() < 0) {
+					return -1;
+				}
+			}
+			return doc;
+		}
+	}
+
+	private final Map<String, Postings> terms = new HashMap<String, Postings>();
+
+	/** Document number of each indexed entry */
+	private final Map<String, Integer> documents = new HashMap<String, Integer>();
+
+	/** Per document: entry id, publication time, author, title and content */
+	private String[] ids = new String[1024];
+
+	private long[] published = new long[1024];
+
+	private int[] authors = new int[1024];
+
+	private byte[][] titles = new byte[1024][];
+
+	private byte[][] contents = new byte[1024][];
+
+	private int size;
+
+	private final BitSet deleted = new BitSet();
+
+	private int deletedCount;
+
+	/** Distinct authors, documents refer to them by index */
+	private final List<String> authorNames = new ArrayList<String>();
+
+	private final Map<String, Integer> authorIds = new HashMap<String, Integer>();
+
+	/** Statistics */
+	private long postingCount;
+
+	/**
+	 * Index an entry, or index it again if it changed.
+	 */
+	public synchronized void put(String id, long time, String author, String title, String content) {
+		if (id == null) {
+			return;
+		}
+		if (content != null && content.equals(title)) {
+			content = null;
+		}
+
+		Integer previous = documents.get(id);
+		if (previous != null) {
+			int doc = previous;
+			if (published[doc] == time && equal(author, authorName(doc)) && equal(title, decode(titles[doc]))
+					&& equal(content, decode(contents[doc]))) {
+				return;
+			}
+			markDeleted(doc);
+		}
+
+		add(id, time, author, encode(title), encode(content));
+		if (deletedCount > COMPACT_MIN && deletedCount > size / 2) {
+			compact();
+		}
+	}
+
+	public synchronized void remove(String id) {
+		Integer doc = documents.remove(id);
+		if (doc != null) {
+			markDeleted(doc);
+		}
+	}
+
+	/**
+	 * @return the number of indexed entries
+	 */
+	public synchronized int size() {
+		return documents.size();
+	}
+
+	public synchronized int getTerms() {
+		return terms.size();
+	}
+
+	public synchronized long getPostings() {
+		return postingCount;
+	}
+
+	/**
+	 * @return the size of the posting lists, in bytes
+	 */
+	public synchronized long getPostingBytes() {
+		long bytes = 0;
+		for (Postings postings : terms.values()) {
+			bytes += postings.length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return an estimate of the heap used by the index, in bytes
+	 */
+	public synchronized long getHeapBytes() {
+		// Per document arrays, then the map of document numbers
+		long bytes = 5L * 16 + 4L * ids.length + 8L * published.length + 4L * authors.length + 4L * titles.length
+				+ 4L * contents.length + deleted.size() / 8;
+		bytes += 48L * documents.size();
+		for (int doc = 0; doc < size; doc++) {
+			if (!deleted.get(doc)) {
+				bytes += chars(ids[doc]) + array(titles[doc]) + array(contents[doc]);
+			}
+		}
+		for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+			// Map entry, term, postings object and array
+			bytes += 32 + chars(entry.getKey()) + 32 + array(entry.getValue().data);
+		}
+		for (String author : authorNames) {
+			bytes += 4 + 48 + chars(author);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Parse a query.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a date cannot be parsed
+	 */
+	public static Query parse(String text) {
+		Query query = new Query();
+		int i = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '"') {
+				int end = text.indexOf('"', i + 1);
+				if (end < 0) {
+					end = text.length();
+				}
+				List<String> phrase = tokenize(text.substring(i + 1, end));
+				query.terms.addAll(phrase);
+				if (phrase.size() > 1) {
+					query.phrases.add(phrase);
+				}
+				i = end + 1;
+			} else {
+				int end = i;
+				while (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+					end++;
+				}
+				String word = text.substring(i, end);
+				if (word.startsWith("author:") && word.length() > 7) {
+					query.author = word.substring(7);
+				} else if (word.startsWith("after:")) {
+					query.after = day(word.substring(6));
+				} else if (word.startsWith("before:")) {
+					query.before = day(word.substring(7));
+				} else {
+					query.terms.addAll(tokenize(word));
+				}
+				i = end;
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * @return the entries matching the query, most recent first
+	 */
+	public synchronized List<Hit> search(Query query, int limit) {
+		Set<Integer> authorFilter = null;
+		if (query.author != null) {
+			authorFilter = new HashSet<Integer>();
+			for (int i = 0; i < authorNames.size(); i++) {
+				String name = authorNames.get(i);
+				if (name.equals(query.author) || name.startsWith(query.author + "@")) {
+					authorFilter.add(i);
+				}
+			}
+			if (authorFilter.isEmpty()) {
+				return Collections.emptyList();
+			}
+		}
+
+		// Cursors on the posting lists, shortest first
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		for (String term : new HashSet<String>(query.terms)) {
+			Postings postings = terms.get(term);
+			if (postings == null) {
+				return Collections.emptyList();
+			}
+			cursors.add(new Cursor(postings));
+		}
+		Collections.sort(cursors, new Comparator<Cursor>() {
+			@Override
+			public int compare(Cursor a, Cursor b) {
+				return a.postings.count - b.postings.count;
+			}
+		});
+
+		// Documents that pass the cheap filters, in document order
+		int[] candidates = new int[64];
+		int count = 0;
+		if (cursors.isEmpty()) {
+			for (int doc = 0; doc < size; doc++) {
+				if (accept(doc, query, authorFilter)) {
+					candidates = append(candidates, count++, doc);
+				}
+			}
+		} else {
+			Cursor lead = cursors.get(0);
+			int doc = lead.next();
+			while (doc >= 0) {
+				int candidate = doc;
+				for (int i = 1; i < cursors.size() && candidate >= 0; i++) {
+					int found = cursors.get(i).advance(candidate);
+					if (found != candidate) {
+						candidate = found;
+					}
+				}
+				if (candidate < 0) {
+					break;
+				}
+				if (candidate == doc) {
+					if (accept(doc, query, authorFilter)) {
+						candidates = append(candidates, count++, doc);
+					}
+					doc = lead.next();
+				} else {
+					doc = lead.advance(candidate);
+				}
+			}
+		}
+
+		// Keep the most recent ones. Later documents are usually more recent,
+		// so going backwards lets the older ones be skipped before the
+		// phrases are checked.
+		if (limit <= 0) {
+			return Collections.emptyList();
+		}
+		Comparator<Integer> oldestFirst = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return newer(a, b) ? 1 : (newer(b, a) ? -1 : 0);
+			}
+		};
+		PriorityQueue<Integer> top = new PriorityQueue<Integer>(Math.min(limit, count) + 1, oldestFirst);
+		for (int i = count - 1; i >= 0; i--) {
+			int doc = candidates[i];
+			if (top.size() == limit && !newer(doc, top.peek())) {
+				continue;
+			}
+			if (!matchesPhrases(doc, query)) {
+				continue;
+			}
+			top.add(doc);
+			if (top.size() > limit) {
+				top.poll();
+			}
+		}
+
+		List<Hit> hits = new ArrayList<Hit>(top.size());
+		while (!top.isEmpty()) {
+			int doc = top.poll();
+			hits.add(new Hit(ids[doc], published[doc], authorName(doc), decode(titles[doc])));
+		}
+		Collections.reverse(hits);
+		return hits;
+	}
+
+	private boolean newer(int a, int b) {
+		return published[a] > published[b] || (published[a] == published[b] && a > b);
+	}
+
+	private boolean accept(int doc, Query query, Set<Integer> authorFilter) {
+		if (deleted.get(doc)) {
+			return false;
+		}
+		if (published[doc] < query.after || published[doc] >= query.before) {
+			return false;
+		}
+		return authorFilter == null || authorFilter.contains(authors[doc]);
+	}
+
+	private boolean matchesPhrases(int doc, Query query) {
+		if (!query.phrases.isEmpty()) {
+			List<String> tokens = tokenize(decode(titles[doc]));
+			tokens.add("");
+			tokens.addAll(tokenize(decode(contents[doc])));
+			for (List<String> phrase : query.phrases) {
+				if (Collections.indexOfSubList(tokens, phrase) < 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static int[] append(int[] array, int index, int value) {
+		if (index == array.length) {
+			array = Arrays.copyOf(array, array.length * 2);
+		}
+		array[index] = value;
+		return array;
+	}
+
+	private void add(String id, long time, String author, byte[] title, byte[] content) {
+		if (size == ids.length) {
+			int capacity = size * 2;
+			ids = Arrays.copyOf(ids, capacity);
+			published = Arrays.copyOf(published, capacity);
+			authors = Arrays.copyOf(authors, capacity);
+			titles = Arrays.copyOf(titles, capacity);
+			contents = Arrays.copyOf(contents, capacity);
+		}
+
+		int doc = size++;
+		ids[doc] = id;
+		published[doc] = time;
+		authors[doc] = authorId(author);
+		titles[doc] = title;
+		contents[doc] = content;
+		documents.put(id, doc);
+
+		Set<String> words = new HashSet<String>();
+		words.addAll(tokenize(decode(title)));
+		words.addAll(tokenize(decode(content)));
+		words.addAll(tokenize(author));
+		for (String word : words) {
+			Postings postings = terms.get(word);
+			if (postings == null) {
+				postings = new Postings();
+				terms.put(word, postings);
+			}
+			postings.add(doc);
+			postingCount++;
+		}
+	}
+
+	private void markDeleted(int doc) {
+		if (!deleted.get(doc)) {
+			deleted.set(doc);
+			deletedCount++;
+		}
+	}
+
+	/**
+	 * Index the live documents again, without the deleted ones.
+	 */
+	private void compact() {
+		String[] oldIds = ids;
+		long[] oldPublished = published;
+		int[] oldAuthors = authors;
+		byte[][] oldTitles = titles;
+		byte[][] oldContents = contents;
+		int oldSize = size;
+		BitSet oldDeleted = (BitSet) deleted.clone();
+
+		int capacity = Math.max(1024, oldSize - deletedCount);
+		ids = new String[capacity];
+		published = new long[capacity];
+		authors = new int[capacity];
+		titles = new byte[capacity][];
+		contents = new byte[capacity][];
+		size = 0;
+		deleted.clear();
+		deletedCount = 0;
+		terms.clear();
+		documents.clear();
+		postingCount = 0;
+
+		for (int doc = 0; doc < oldSize; doc++) {
+			if (!oldDeleted.get(doc)) {
+				add(oldIds[doc], oldPublished[doc], authorNames.get(oldAuthors[doc]), oldTitles[doc], oldContents[doc]);
+			}
+		}
+	}
+
+	private int authorId(String author) {
+		String key = (author != null) ? author : "";
+		Integer id = authorIds.get(key);
+		if (id == null) {
+			id = authorNames.size();
+			authorNames.add(key);
+			authorIds.put(key, id);
+		}
+		return id;
+	}
+
+	private String authorName(int doc) {
+		String name = authorNames.get(authors[doc]);
+		return (name.length() > 0) ? name : null;
+	}
+
+	private static long chars(String value) {
+		return (value != null) ? 40 + 2L * value.length() : 0;
+	}
+
+	private static long array(byte[] value) {
+		return (value != null) ? 16 + value.length : 0;
+	}
+
+	/**
+	 * Split a text into lower case words.
+	 */
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		if (text == null) {
+			return tokens;
+		}
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = (i < text.length()) ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				word.append(Character.toLowerCase(c));
+			} else if (word.length() > 0) {
+				tokens.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return tokens;
+	}
+
+	private static long day(String text) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		format.setLenient(false);
+		try {
+			return format.parse(text).getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("expecting a date as yyyy-mm-dd: " + text);
+		}
+	}
+
+	/** Texts are kept as UTF-8, half the size of a String for most posts */
+	private static byte[] encode(String text) {
+		try {
+			return (text != null) ? text.getBytes("UTF-8") : null;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(byte[] bytes) {
+		try {
+			return (bytes != null) ? new String(bytes, "UTF-8") : null;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2010 Vodafone Group Services Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.onesocialweb.client.console;
+
+/**
+ * Scroll position of the list shown on screen. Only the rows between the
+ * offset and the offset plus the screen height are formatted and painted.
+ */
+class Viewport {
+
+	/** Index of the first visible row */
+	private int offset;
+
+	/** Requested scroll, applied when the list size is known */
+	private int delta;
+
+	/**
+	 * Go back to the top of the list.
+	 */
+	public synchronized void reset() {
+		offset = 0;
+		delta = 0;
+	}
+
+	/**
+	 * Scroll by the given number of pages, negative to go up.
+	 */
+	public synchronized void page(int pages, int rows) {
+		delta += pages * rows;
+	}
+
+	/**
+	 * Scroll so that the row at the given index is the first visible one.
+	 */
+	public synchronized void scrollTo(int index) {
+		offset = Math.max(index, 0);
+		delta = 0;
+	}
+
+	/**
+	 * Compute the first visible row for a list of the given size.
+	 *
+	 * @param size
+	 *            number of rows in the list
+	 * @param rows
+	 *            number of rows on screen
+	 * @return the index of the first visible row
+	 */
+	public synchronized int clamp(int size, int rows) {
+		offset = Math.max(0, Math.min(offset + delta, size - rows));
+		delta = 0;
+		return offset;
+	}
+}